@@ -36,7 +36,6 @@
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 
-import java.net.*;
 import java.io.*;
 import net.sourceforge.jmodbus.*;
 
@@ -44,13 +43,9 @@ public class RandomRegs {
 
     public static void main(String[] args) {
 	
-	ServerSocket svrsocket = null;
-	Socket socket = null;
 	int unit_identifier = 0;
 	Thread rndWorker;
-	Thread modbWorker;
-	ModbusTCPSlave modbus;
-	int address_size;
+	ModbusTCPServer server;
 	
 	// Create modbus registers of appropriate size
 	ModbusRegisterBank in_regs = new ModbusRegisterBank(100);
@@ -63,31 +58,18 @@ public class RandomRegs {
 	rndWorker = new Thread(random);
 	rndWorker.start();
 	
+	// Serve the registers to all the connections from two threads
+	server = new ModbusTCPServer(ModbusTCPTransport.MODBUS_TCP_PORT, unit_identifier, 2);
+	server.setInputRegisters(in_regs);
+	server.setOutputRegisters(out_regs);
+
 	try {
-	    svrsocket = new ServerSocket(ModbusTCPTransport.MODBUS_TCP_PORT);
+	    server.start();
+	    System.out.println("Waiting for requests");
 	}
 	catch (IOException ex) {
 	    System.out.println(ex.getMessage());
 	    ex.printStackTrace();
-	    return;
-	}
-	
-	while (true) {
-	    
-	    try {
-		System.out.println("Waiting for request");
-		socket = svrsocket.accept();
-		System.out.println("Recieved a connection request");
-		modbus = new ModbusTCPSlave(unit_identifier,socket);
-		modbus.setInputRegisters(in_regs);
-		modbus.setOutputRegisters(out_regs);
-		modbWorker = new Thread(modbus);
-		modbWorker.start();
-	    }
-	    catch (IOException ex) {
-		System.out.println(ex.getMessage());
-		ex.printStackTrace();
-	    }
 	}
     }
 }
@@ -77,13 +77,17 @@ public class RandomWorker implements Runnable {
 	}
 	
 	int i=0;	
+	int[] values = new int[100];
 
 	while (true) {
             
             for (i=0; i<100; i++) {
-                registers.setRegister(i, rnd.nextInt(65535));
+                values[i] = rnd.nextInt(65535);
             }
 
+	    // Set them all at once, so they are never read half updated
+	    registers.setRegister(0, values);
+
 	    try {
                 Thread.sleep(300000);
             }
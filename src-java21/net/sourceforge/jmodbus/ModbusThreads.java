@@ -0,0 +1,87 @@
+/*
+ * ModbusThreads.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Class to create the threads that run the blocking parts of the
+ * library, such as the loop serving a single connection.  This is the
+ * Java 21 version of the class in the multi-release jar, which creates
+ * virtual threads, so a thread for each connection scales to a very
+ * large number of connections.
+ */
+public final class ModbusThreads {
+
+    // Not to be created, just a holder for the functions
+    private ModbusThreads() {
+    }
+
+    /**
+     * Check if the threads created are virtual threads.
+     *
+     * @return True if virtual threads are used.
+     */
+    public static boolean isVirtual() {
+	return true;
+    }
+
+    /**
+     * Create a virtual thread to run a task.  The thread is not started.
+     *
+     * @param task The task to be run by the thread.
+     * @param name The name of the thread.
+     * @return The new thread.
+     */
+    public static Thread newThread(Runnable task, String name) {
+	return Thread.ofVirtual().name(name).unstarted(task);
+    }
+
+    /**
+     * Create an executor that runs each task given to it on a new
+     * virtual thread.
+     *
+     * @param name The prefix of the names of the threads.
+     * @return The new executor.
+     */
+    public static ExecutorService newExecutor(String name) {
+	return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+    }
+}
@@ -5,12 +5,22 @@ import java.io.IOException;
 public class LocalTransport implements ModbusTransport {
 
     java.util.concurrent.BlockingQueue<ModbusMessage> q = new java.util.concurrent.ArrayBlockingQueue(1000);
+
+    // Messages are copied into pooled messages to be queued, as the
+    // sender will reuse its own message as soon as we return
+    private ModbusMessagePool pool = new ModbusMessagePool(16);
+
 	@Override
 	public boolean sendFrame(ModbusMessage msg) throws IOException {
+        ModbusMessage copy = pool.acquire();
+        System.arraycopy(msg.buff, 0, copy.buff, 0, msg.length);
+        copy.length = msg.length;
+        copy.transID = msg.transID;
         try {
-			q.put(msg);
+			q.put(copy);
             return true;
 		} catch (InterruptedException e) {
+            pool.release(copy);
     		return false;
 		}
 	}
@@ -19,9 +29,10 @@ public class LocalTransport implements ModbusTransport {
 	public boolean receiveFrame(ModbusMessage msg) throws IOException {
 		try {
 			ModbusMessage msg2 = q.take();
-            msg.buff = msg2.buff;
+            System.arraycopy(msg2.buff, 0, msg.buff, 0, msg2.length);
             msg.length = msg2.length;
             msg.transID = msg2.transID;
+            pool.release(msg2);
             return true;
 		} catch (InterruptedException e) {
     		return false;
@@ -100,7 +100,12 @@ public class Modbus {
     /**
      * Command code to write a single coil.
      */
-    public static final byte WRITE_COIL               = (byte) 0x01;
+    public static final byte WRITE_COIL               = (byte) 0x05;
+    
+    /**
+     * Command code to write multiple coils.
+     */
+    public static final byte WRITE_MULTIPLE_COILS     = (byte) 0x0F;
     
     /**
      * Command code to read read input discretes.
@@ -165,6 +170,31 @@ public class Modbus {
      */
     public static final int MAX_MESSAGE_LENGTH = 256;
 
+    /**
+     * Largest number of registers that can be read by one request.  The
+     * response, with the slave address, function code, byte count and
+     * serial checksum, must fit in MAX_MESSAGE_LENGTH.
+     */
+    public static final int MAX_READ_REGISTERS = (MAX_MESSAGE_LENGTH - 5) / 2;
+
+    /**
+     * Largest number of registers that can be written by one request,
+     * as set by the Modbus spec.
+     */
+    public static final int MAX_WRITE_REGISTERS = 123;
+
+    /**
+     * Largest number of coils or input discretes that can be read by
+     * one request, as set by the Modbus spec.
+     */
+    public static final int MAX_READ_COILS = 2000;
+
+    /**
+     * Largest number of coils that can be written by one request, as
+     * set by the Modbus spec.
+     */
+    public static final int MAX_WRITE_COILS = 1968;
+
     /**
      * The maximum value for a 16 bit unsigend integer.
      */
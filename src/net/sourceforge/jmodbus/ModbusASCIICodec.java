@@ -0,0 +1,164 @@
+/*
+ * ModbusASCIICodec.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.util.Arrays;
+
+/**
+ * Class to encode and decode the hexadecimal characters of Modbus ASCII
+ * frames.  Each nibble is looked up in a table rather than worked out,
+ * and the LRC is accumulated in the same pass, so a frame is only
+ * gone over once.
+ * <P>
+ * Invalid characters and LRC failures are reported by the return value
+ * of decode rather than by throwing an exception, as a noisy line is not
+ * an exceptional event.
+ */
+public final class ModbusASCIICodec {
+
+    /**
+     * Value returned by decode when the frame contains a character
+     * that is not an upper case hexadecimal digit, or an odd number of
+     * characters.
+     */
+    public static final int INVALID_CHARACTER = -1;
+
+    /**
+     * Value returned by decode when the LRC of the frame does not check.
+     */
+    public static final int LRC_FAILED = -2;
+
+    // The character for each nibble value
+    private static final byte[] ENCODE = {
+	'0', '1', '2', '3', '4', '5', '6', '7',
+	'8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+    };
+
+    // The nibble value of each character, or -1 if it is not
+    // a valid hexadecimal digit
+    private static final byte[] DECODE = new byte[256];
+
+    static {
+	Arrays.fill(DECODE, (byte) -1);
+	for (int i=0; i<ENCODE.length; i++) {
+	    DECODE[ENCODE[i]] = (byte) i;
+	}
+    }
+
+    // Not to be created, just a holder for the functions
+    private ModbusASCIICodec() {
+    }
+
+    /**
+     * Function to encode a message as hexadecimal characters followed
+     * by its LRC.  The start and end of frame markers are not written.
+     *
+     * @param src The message bytes.
+     * @param length The number of message bytes.
+     * @param dst The array the characters are written into, which must
+     *            have room for 2*(length+1) characters.
+     * @param offset The index in dst of the first character.
+     * @return The index in dst following the last character written.
+     */
+    public static int encode(byte[] src, int length, byte[] dst, int offset) {
+	int sum = 0;
+	int b;
+
+	for (int i=0; i<length; i++) {
+	    b = src[i] & 0xFF;
+	    sum += b;
+	    dst[offset++] = ENCODE[b >>> 4];
+	    dst[offset++] = ENCODE[b & 0x0F];
+	}
+
+	// The LRC is the two's complement of the sum of the bytes
+	b = -sum & 0xFF;
+	dst[offset++] = ENCODE[b >>> 4];
+	dst[offset++] = ENCODE[b & 0x0F];
+
+	return offset;
+    }
+
+    /**
+     * Function to decode the hexadecimal characters of a frame,
+     * including the LRC but not the start and end of frame markers,
+     * and check the LRC.  The message bytes are written to dst even if
+     * the LRC does not check.
+     *
+     * @param src The array holding the characters.
+     * @param offset The index in src of the first character.
+     * @param count The number of characters.
+     * @param dst The array the message bytes are written into, which must
+     *            have room for count/2 bytes.
+     * @return The length of the message without the LRC, or
+     *         INVALID_CHARACTER or LRC_FAILED.
+     */
+    public static int decode(byte[] src, int offset, int count, byte[] dst) {
+	int length = count >> 1;
+	int sum = 0;
+	int high;
+	int low;
+	int b;
+
+	if ((count & 1) != 0 || length < 1) {
+	    return INVALID_CHARACTER;
+	}
+
+	for (int i=0; i<length; i++) {
+	    high = DECODE[src[offset++] & 0xFF];
+	    low = DECODE[src[offset++] & 0xFF];
+
+	    // Either being -1 makes the combination negative
+	    if ((high | low) < 0) {
+		return INVALID_CHARACTER;
+	    }
+
+	    b = (high << 4) | low;
+	    sum += b;
+	    dst[i] = (byte) b;
+	}
+
+	// Adding in the LRC leaves zero if it is right
+	if ((sum & 0xFF) != 0) {
+	    return LRC_FAILED;
+	}
+
+	return length - 1;
+    }
+}
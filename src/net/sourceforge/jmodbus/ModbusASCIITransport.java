@@ -81,6 +81,22 @@ public class ModbusASCIITransport implements ModbusTransport {
      */
     public static final int MAX_ASCII_MESSAGE_LENGTH = (2*Modbus.MAX_MESSAGE_LENGTH)+5;
     
+    /**
+     * The size of the ring buffer that received characters are read
+     * into.  This must be a power of two.
+     */
+    private static final int RING_SIZE = 1024;
+
+    // Masks a ring buffer position down to an index
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    // States of the frame scanner, waiting for the start of a frame,
+    // collecting the characters of a frame or waiting for the LF that
+    // follows its CR
+    private static final int SCAN_IDLE  = 0;
+    private static final int SCAN_FRAME = 1;
+    private static final int SCAN_END   = 2;
+
     /**
      * The serial port over which communications will be
      * conducted.
@@ -88,30 +104,46 @@ public class ModbusASCIITransport implements ModbusTransport {
     private SerialPort port;
 
     /**
-     * The input buffer that will be used for storing 
-     * the character stream messages as they are recieved.
+     * The input buffer that will be used for storing the
+     * characters of a frame, between the start and end of
+     * frame delimiters, as they are scanned.
      */
-    private byte[] input_buffer;
+    private byte[] input_buffer = new byte[MAX_ASCII_MESSAGE_LENGTH];
 
     /**
      * The output buffer that will be used for storing 
      * the character stream messages before they are sent.
      */
-    private byte[] output_buffer;
+    private byte[] output_buffer = new byte[MAX_ASCII_MESSAGE_LENGTH];
 
     /**
-     * The PushbackInputStream is used to search for the start and end
-     * of frame delimiters.  It will be wrapped around the InputSream from
-     * the serial port.
+     * The ring buffer that characters are read into from the
+     * InputStream.  Characters that follow the end of a frame stay in
+     * the ring for the next receive, so several frames can come from
+     * one read.
      */
-    private PushbackInputStream in;
+    private byte[] ring = new byte[RING_SIZE];
 
     /**
-     * The BufferedInputStream used to make sure that all low level 
-     * read operations do not have to do any nasty byte-banning or
-     * similar.
+     * The position the next character read will be stored at, and the
+     * position of the next character to scan.  These only ever
+     * increase and are masked to index the ring.
      */
-    private BufferedInputStream bin;
+    private int ringHead = 0;
+    private int ringTail = 0;
+
+    /**
+     * The state of the frame scanner and the number of frame
+     * characters in the input buffer, kept between receives so
+     * nothing is scanned twice.
+     */
+    private int scanState = SCAN_IDLE;
+    private int frameChars = 0;
+
+    /**
+     * The InputStream is used to receive messages from the serial port.
+     */
+    private InputStream in;
 
     /**
      * The OutputStream is used to send messages down the serial port.
@@ -141,17 +173,13 @@ public class ModbusASCIITransport implements ModbusTransport {
 
 	this.port = port;
 	
-	input_buffer = new byte[MAX_ASCII_MESSAGE_LENGTH];
-	output_buffer = new byte[MAX_ASCII_MESSAGE_LENGTH];
-	
-	// Try and attach the PushbackInputStream
+	// Try to get the InputStream
 	try {
-	    bin = new BufferedInputStream(port.getInputStream(), MAX_ASCII_MESSAGE_LENGTH);
-	    in = new PushbackInputStream(bin, MAX_ASCII_MESSAGE_LENGTH);
+	    in = port.getInputStream();
 	}
 	catch (Exception ex) {
 	    if (Modbus.debug >= 1) {
-		System.out.println("ModbusASCIITransport: PushbackInputStream failed!");
+		System.out.println("ModbusASCIITransport: InputStream failed!");
 	    }
 	    return;
 	}
@@ -174,6 +202,20 @@ public class ModbusASCIITransport implements ModbusTransport {
     }
     
     
+    /**
+     * Constructor that uses a pair of streams instead of a serial port,
+     * for serial lines reached by other means, such as Modbus ASCII
+     * carried over a TCP socket.
+     *
+     * @param in The stream frames are received from.
+     * @param out The stream frames are sent to.
+     */
+    public ModbusASCIITransport(InputStream in, OutputStream out) {
+	this.in = in;
+	this.out = out;
+    }
+    
+    
     /**
      * Method to send a Modbus frame via the transport media.  The return 
      * status of the function indicates if the transmission sucedded.
@@ -187,8 +229,6 @@ public class ModbusASCIITransport implements ModbusTransport {
     public boolean sendFrame(ModbusMessage msg) {
 	
 	int index = 0;
-	int i = 0;
-	byte newLRC = 0;
 
 	// Print Message if in debug mode
 	if (Modbus.debug >= 3) {
@@ -198,26 +238,9 @@ public class ModbusASCIITransport implements ModbusTransport {
 	// Start by setting the start delimeter
 	output_buffer[index++] = START_FRAME_MARKER;
 
-	// Now start to write all the values
-	for (i=0; i<msg.length; i++) {
-	    
-	    // Write the high nibble
-	    output_buffer[index++] = encodeNibble((byte)(((msg.buff[i] & 0xF0) >>> 4) & 0xFF));
-
-	    // Write the low nibble
-	    output_buffer[index++] = encodeNibble((byte)(((msg.buff[i] & 0x0F) >>> 0) & 0xFF));
-	    
-	}
+	// Now write all the values followed by the LRC
+	index = ModbusASCIICodec.encode(msg.buff, msg.length, output_buffer, index);
 
-	// Now calculate the LRC value
-	newLRC = LRC(msg.buff, msg.length);
-	
-	// Write the high nibble of the LRC
-	output_buffer[index++] = encodeNibble((byte)(((newLRC & 0xF0) >>> 4) & 0xFF));
-	
-	// Write the low nibble of the LRC
-	output_buffer[index++] = encodeNibble((byte)(((newLRC & 0x0F) >>> 0) & 0xFF));
-	
 	// Write the end of frame markers
 	output_buffer[index++] = END_FRAME_MARKER_1;
 	output_buffer[index++] = END_FRAME_MARKER_2;
@@ -255,6 +278,11 @@ public class ModbusASCIITransport implements ModbusTransport {
      * value indicates the length of the frame.  This method will block until
      * the comminication path is terminated or a frame is sucessfully received.
      * <P>
+     * Characters are read into a ring buffer and scanned once, by a state
+     * machine that carries on from where the last receive stopped.  Any
+     * characters following the end of the frame are left in the ring, so
+     * the next frame may already be waiting without another read.
+     * <P>
      * Even if false is return the Modbus Message that is passed may be 
      * modified.  It's buffer is used to save excessive array copying.
      *
@@ -265,94 +293,80 @@ public class ModbusASCIITransport implements ModbusTransport {
      */
     public boolean receiveFrame(ModbusMessage msg) {
 
-	int count = 0;
 	int recv = 0;
-	int start_marker = -1;
-	int end_marker = -1;
-	int i = 0;
-	int msg_length = 0;
-	int decode_msg_length = 0;
-	byte newLRC = 0;
+	int index = 0;
+	byte c = 0;
 	
 	// Print Message if in debug mode
 	if (Modbus.debug >= 3) {
 	    System.out.println("ModbusASCIITransport: Receiveing Frame.....");
 	}
 	
-	// We are first going to skip forward unitll we find a the
-	// start of frame marker ':' 
-	while (start_marker < 0 && count < MAX_ASCII_MESSAGE_LENGTH) {
-	    // Start off by getting all the bytes
-	    // that we are allowed to have
-	    try {
-		recv = in.read(input_buffer,count,MAX_ASCII_MESSAGE_LENGTH - count);
-	    }
-	    catch (IOException ex) {
-		if (Modbus.debug >= 3) {
-		    System.out.println(ex.getMessage());
-		    ex.printStackTrace();
-		}
-		return false;
-	    }
-	    if (recv == -1) {
-		// Print Message if in debug mode
-		if (Modbus.debug >= 2) {
-		    System.out.println("ModbusASCIITransport: Stream Closed, receive returning -1");
-		}
-		return false;
-	    }
-	    count += recv;
-	    
-	    // If we got past all of that we can assume we have read 
-	    // at least 1 byte
-	    
-	    // Now checek to see of we can find the start of frame delimiter
-	    for (i=0; i<count; i++) {
-		if (input_buffer[i] == START_FRAME_MARKER) {
-		    start_marker = i;
+	while (true) {
+	    // Scan the characters we have, carrying on from where the
+	    // last scan stopped
+	    while (ringTail != ringHead) {
+		c = ring[ringTail++ & RING_MASK];
+
+		switch (scanState) {
+		case SCAN_IDLE:
+		    // Skip forward untill we find the start of frame marker
+		    if (c == START_FRAME_MARKER) {
+			frameChars = 0;
+			scanState = SCAN_FRAME;
+		    }
 		    break;
-		}
-	    }
-	}
-	
-	// We now need to see if we found the start marker.
-	// if we have read a full buffer and have not found 
-	// the start marker then we are in trouble and we'll
-	// return false
-	if (start_marker == -1) {
-	    if (Modbus.debug >= 3) {
-		System.out.println("ModbusASCIITransport: start marker not found");
-	    }
-	    return false;
-	}
 
-	// We now have a valid start marker....
-	
-	// We will now unread the start marker and all the bytes following so the
-	// start marker will be at the front of the stream and then see how much
-	// of a message we need to read to try and find the end marker
-	
-	// Unread some bytes
-	try {
-	    in.unread(input_buffer, start_marker, count-start_marker);
-	}
-	catch (IOException ex) {
-	    if (Modbus.debug >= 3) {
-		System.out.println(ex.getMessage());
-		ex.printStackTrace();
+		case SCAN_FRAME:
+		    if (c == START_FRAME_MARKER) {
+			// A new frame has started before the last one
+			// finished, so the last one is abandoned
+			if (Modbus.debug >= 3) {
+			    System.out.println("ModbusASCIITransport: frame restarted");
+			}
+			frameChars = 0;
+		    }
+		    else if (c == END_FRAME_MARKER_1) {
+			scanState = SCAN_END;
+		    }
+		    else if (frameChars < 2*Modbus.MAX_MESSAGE_LENGTH) {
+			// The characters decode to the message and its LRC,
+			// which must all fit in the message buffer
+			input_buffer[frameChars++] = c;
+		    }
+		    else {
+			if (Modbus.debug >= 3) {
+			    System.out.println("ModbusASCIITransport: frame too long, end marker not found");
+			}
+			scanState = SCAN_IDLE;
+			return false;
+		    }
+		    break;
+
+		case SCAN_END:
+		    if (c == END_FRAME_MARKER_2) {
+			scanState = SCAN_IDLE;
+			return decodeFrame(msg);
+		    }
+		    if (Modbus.debug >= 3) {
+			System.out.println("ModbusASCIITransport: CR not followed by LF");
+		    }
+		    if (c == START_FRAME_MARKER) {
+			frameChars = 0;
+			scanState = SCAN_FRAME;
+		    }
+		    else {
+			scanState = SCAN_IDLE;
+		    }
+		    return false;
+		}
 	    }
-	    return false;
-	}
-	
-	// Reset the counter
-	count = 0;
 
-	// Read some more bytes
-	while ((end_marker < 0) && (count < MAX_ASCII_MESSAGE_LENGTH)) {
-	    // Start off by getting all the bytes
-	    // that we are allowed to have
+	    // Everything has been scanned, so read as much as will fit
+	    // in the ring without wrapping
+	    index = ringHead & RING_MASK;
 	    try {
-		recv = in.read(input_buffer,count,MAX_ASCII_MESSAGE_LENGTH - count);
+		recv = in.read(ring, index, RING_SIZE - index);
 	    }
 	    catch (IOException ex) {
 		if (Modbus.debug >= 3) {
@@ -368,102 +382,47 @@ public class ModbusASCIITransport implements ModbusTransport {
 		}
 		return false;
 	    }
-	    count += recv;
-	    
-	    // If we got past all of that we can assume we have read 
-	    // at least 1 byte
-	    
-	    // Now checek to see of we can find the end of frame delimiter
-	    // which is 2 chars so we will have to be carefull.
-	    if (count > 2) {
-		for (i=0; i<(count-1); i++) {
-		    if ((input_buffer[i] == END_FRAME_MARKER_1) &&
-		        (input_buffer[i+1] == END_FRAME_MARKER_2)) {
-			end_marker = i;
-			break;
-		    }
-		}
-	    }
-	}
-	
-	// We now need to see if we found the end marker.
-	// if we have read a full buffer and have not found 
-	// the end marker then we are in trouble and we'll
-	// return false
-	if (end_marker == -1) {
-	    if (Modbus.debug >= 3) {
-		System.out.println("ModbusASCIITransport: end marker not found");
-	    }
-	    return false;
+	    ringHead += recv;
 	}
-	
-	// We now have a valid end marker....
-	
-	// We will now unread all the bytes past the end of the frame
- 	try {
-	    in.unread(input_buffer, end_marker+2, count-end_marker-2);
-	}
-	catch (IOException ex) {
-	    if (Modbus.debug >= 3) {
-		System.out.println(ex.getMessage());
-		ex.printStackTrace();
-	    }
-	    return false;
-	}
-	
-	// Set the length of the encoded message
-	msg_length = end_marker + 2;
-	
-	// The message length *must* be at least 7 bytes long to contain
-	// a valid 1 byte Modbus message.  It must also have an odd number
-	// of bytes.  Check that this is the case
-	if ((msg_length < 7) && (msg_length % 2 == 1)) {
+    }
+
+
+    // Decode the frame characters that have been scanned into the
+    // input buffer into the message
+    private boolean decodeFrame(ModbusMessage msg) {
+	int decode_msg_length = 0;
+
+	// The frame must hold at least a 1 byte Modbus message and the
+	// LRC, and an even number of characters.  Check that this is the case
+	if ((frameChars < 4) || (frameChars % 2 == 1)) {
 	    if (Modbus.debug >= 3) {
-		System.out.println("ModbusASCIITransport: ASCII message is too short or is not an odd number.  Length: " + msg_length);
+		System.out.println("ModbusASCIITransport: ASCII message is too short or is not an even number.  Length: " + frameChars);
 	    }
 	    return false;
 	}
 	
-	// At this point we now know we have a properly delimetered frame
-	// sitting in the input buffer
-	
 	// Print Message if in debug mode
 	if (Modbus.debug >= 4) {
 	    System.out.println("ModbusASCIITransport: Encoded Message");
-	    System.out.println(ByteUtils.toHex(input_buffer,msg_length));
+	    System.out.println(ByteUtils.toHex(input_buffer,frameChars));
 	}
 	
-	// We now need to start decoding the message, and then we will
-	// check the LRC.  We will dump this into the message buffer, even
-	// if we are going to return false.
-	for (i=0; i<((msg_length-3)/2); i++) {
-	    // We will put this in a try...catch loop for if a bogus
-	    // character gets into the frame then this will throw an
-	    // illegal argument exception an in that case we will just
-	    // make the receiveFrame command return false
-	    try {
-		msg.buff[i] = decodeByte(input_buffer[1+2*i], input_buffer[2+2*i]);
-	    }
-	    catch (IllegalArgumentException ex) {
-		if (Modbus.debug >= 3) {
-		    System.out.println(ex.getMessage());
-		}
-		return false;
+	// We now need to decode the message and check the LRC, which
+	// is done in one pass straight into the message buffer.  This
+	// is done even if we are going to return false.
+	decode_msg_length = ModbusASCIICodec.decode(input_buffer, 0, frameChars, msg.buff);
+
+	if (decode_msg_length == ModbusASCIICodec.INVALID_CHARACTER) {
+	    if (Modbus.debug >= 3) {
+		System.out.println("ModbusASCIITransport: illegal character in frame");
 	    }
+	    return false;
 	}
-	
-	// i will be the length of the decoded message + 1 [LRC byte]
-	decode_msg_length = i-1;
-	
-	// Calculate the LRC value
-	newLRC = LRC(msg.buff, decode_msg_length);
-	
+
 	// Check the LRC value
-	if (newLRC != msg.buff[decode_msg_length]) {
+	if (decode_msg_length == ModbusASCIICodec.LRC_FAILED) {
 	    if (Modbus.debug >= 3) {
 		System.out.println("ModbusASCIITransport: LRC check failed");
-		System.out.println("Message LRC: " + ByteUtils.toHex(msg.buff[decode_msg_length]));
-		System.out.println("Calculated LRC: " + ByteUtils.toHex(newLRC));
 	    }
 	    return false;
 	}
@@ -481,149 +440,6 @@ public class ModbusASCIITransport implements ModbusTransport {
 	return true;
     }
 
-
-    /**
-     * Method to calculate the Longitudinal Redundancy Check (LRC) on a byte
-     * array, up to a specified number of bytes.
-     * 
-     * @author Kelvin Proctor
-     * 
-     * @param buff The byte array to calculate the LRC on.
-     * @param length The number of bytes of the byte array to be used
-     *               in the LRC claculation.
-     * @return The LRC value calculated from the byte array. 
-     */
-    private static byte LRC(byte[] buff, int length) {
-	
-	int acc = 0;
-	int fflsacc = 0;
-	
-	for (int i=0; i<length; i++) {
-	    acc += buff[i];
-	    acc &= 0xFF;
-	}
-	
-	fflsacc = (0xFF - acc) & 0xFF;
-	
-	return ((byte)(fflsacc+1));	
-    }
-    
-    
-    /** 
-     * Function to decode a byte from two ASCII character nibbles.
-     *
-     * @author Kelvin Proctor
-     *
-     * @param high_nibble The high nibble character.
-     * @param low_nibble The low nibble character
-     * @return The decoded byte
-     */
-    private static byte decodeByte(byte high_nibble, byte low_nibble) {
-	return (byte)( (decodeNibble(high_nibble) << 4) + 
-                        (decodeNibble(low_nibble) << 0) );
-    }
-
-
-    /** 
-     * Function to decode a nibble from an ASCII character.
-     *
-     * @author Kelvin Proctor
-     *
-     * @param nibble The nibble character.
-     * @return The decoded nibble as a whole byte (range
-     *         is therefore 0x00 to 0x0F.
-     */
-    private static byte decodeNibble(byte nibble) {
-	
-	switch(nibble) {
-	    
-	case 0x30:
-	    return ((byte) 0x00);
-	case 0x31:
-	    return ((byte) 0x01);
-	case 0x32:
-	    return ((byte) 0x02);
-	case 0x33:
- 	    return ((byte) 0x03);
-	case 0x34:
-	    return ((byte) 0x04);
-	case 0x35:
-	    return ((byte) 0x05);
-	case 0x36:
-	    return ((byte) 0x06);
-	case 0x37:
-	    return ((byte) 0x07);
-	case 0x38:
-	    return ((byte) 0x08);
-	case 0x39:
-	    return ((byte) 0x09);
-	case 0x41:
-	    return ((byte) 0x0A);
-	case 0x42:
- 	    return ((byte) 0x0B);
-	case 0x43:
-	    return ((byte) 0x0C);
-	case 0x44:
-	    return ((byte) 0x0D);
-	case 0x45:
-	    return ((byte) 0x0E);
-	case 0x46:
-	    return ((byte) 0x0F);
-	default:
-	    throw(new IllegalArgumentException("ModbusASCIITransport: illegal nibble value " + nibble));
-	}
-    }
-    
-    /** 
-     * Function to encode a nibble ASCII character from a nibble byte.
-     *
-     * @author Kelvin Proctor
-     *
-     * @param nibble The nibble byte (must be in the range
-     *               0x00 to 0x0F).
-     * @return The encoded nibble as an ASCII character.
-     */
-    private static byte encodeNibble(byte nibble) {
-	
-	switch(nibble) {
-	    
-	case 0x00:
-	    return ((byte) 0x30);
-	case 0x01:
-	    return ((byte) 0x31);
-	case 0x02:
-	    return ((byte) 0x32);
-	case 0x03:
- 	    return ((byte) 0x33);
-	case 0x04:
-	    return ((byte) 0x34);
-	case 0x05:
-	    return ((byte) 0x35);
-	case 0x06:
-	    return ((byte) 0x36);
-	case 0x07:
-	    return ((byte) 0x37);
-	case 0x08:
-	    return ((byte) 0x38);
-	case 0x09:
-	    return ((byte) 0x39);
-	case 0x0A:
-	    return ((byte) 0x41);
-	case 0x0B:
- 	    return ((byte) 0x42);
-	case 0x0C:
-	    return ((byte) 0x43);
-	case 0x0D:
-	    return ((byte) 0x44);
-	case 0x0E:
-	    return ((byte) 0x45);
-	case 0x0F:
-	    return ((byte) 0x46);
-	default:
-	    throw(new IllegalArgumentException("ModbusASCIITransport: illegal nibble value" + nibble));
-	}
-    }
-
     public void disconnect() {}
 }
 
@@ -0,0 +1,189 @@
+/*
+ * ModbusAsyncMaster.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Class to represent an asynchronous Modbus Master device.  This is a
+ * base class that will be extended by classes representing the different
+ * ways of driving the transactions.  Rather than blocking until the
+ * response arrives, each function returns a CompletableFuture that is
+ * completed with the result once the slave has answered.
+ * <P>
+ * If the slave answers with a Modbus exception the future completes
+ * exceptionally with a ModbusException carrying the exception code.  If
+ * the transaction fails for any other reason it completes exceptionally
+ * with an IOException.
+ */
+public abstract class ModbusAsyncMaster {
+
+    /**
+     * Function to read multiple registers from the slave device.
+     *
+     * @param unitID The unit ID of the device to talk
+     *               to (set to zero is unknown).
+     * @param reference The reference number of the first
+     *                 register to read.
+     * @param length The number of register to be read.
+     * @return Future for the values of the registers read.
+     */
+    public CompletableFuture<int[]> readMultipleRegisters(int unitID,
+							   int reference,
+							   int length)
+	throws IllegalArgumentException {
+	return submit(ModbusTransaction.readMultipleRegisters(unitID, reference, length))
+	    .thenApply(ModbusTransaction::getValues);
+    }
+
+    /**
+     * Function to read input registers from the slave device.
+     *
+     * @param unitID The unit ID of the device to talk
+     *               to (set to zero is unknown).
+     * @param reference The reference number of the first
+     *                 register to read.
+     * @param length The number of register to be read.
+     * @return Future for the values of the registers read.
+     */
+    public CompletableFuture<int[]> readInputRegisters(int unitID,
+							int reference,
+							int length)
+	throws IllegalArgumentException {
+	return submit(ModbusTransaction.readInputRegisters(unitID, reference, length))
+	    .thenApply(ModbusTransaction::getValues);
+    }
+
+    /**
+     * Function to write multiple registers to the slave device.
+     *
+     * @param unitID The unit ID of the device to talk
+     *               to (set to zero is unknown).
+     * @param reference The reference number of the first
+     *                 register to write.
+     * @param length The number of register to be written.
+     * @param values The values to be written.
+     * @return Future that completes once the slave has confirmed
+     *         the write.
+     */
+    public CompletableFuture<Void> writeMultipleRegisters(int unitID,
+							   int reference,
+							   int length,
+							   int[] values)
+	throws IllegalArgumentException {
+	return submit(ModbusTransaction.writeMultipleRegisters(unitID, reference, length, values))
+	    .thenApply(transaction -> (Void) null);
+    }
+
+    /**
+     * Function to submit a transaction to be executed.  The returned
+     * future completes with the transaction once it has been answered.
+     * A transaction must not be submitted again until its future has
+     * completed.
+     *
+     * @param transaction The transaction to be executed.
+     * @return Future for the completed transaction.
+     */
+    public abstract CompletableFuture<ModbusTransaction> submit(ModbusTransaction transaction);
+
+    /**
+     * Function to close the connection to the slave device.  Any
+     * transactions that have not been answered complete exceptionally.
+     */
+    public abstract void disconnect();
+
+    /**
+     * Function to attach a new future to a transaction that is about
+     * to be submitted.
+     *
+     * @param transaction The transaction being submitted.
+     * @return The future that will be completed with the transaction.
+     */
+    protected static CompletableFuture<ModbusTransaction> attach(ModbusTransaction transaction) {
+	CompletableFuture<ModbusTransaction> future = new CompletableFuture<ModbusTransaction>();
+
+	if (transaction.future != null && !transaction.future.isDone()) {
+	    throw new IllegalStateException("Transaction is already submitted");
+	}
+	transaction.future = future;
+	return future;
+    }
+
+    /**
+     * Function to complete the future of a transaction once the
+     * transaction has been answered or has failed.
+     *
+     * @param transaction The transaction that has finished.
+     */
+    protected static void finish(ModbusTransaction transaction) {
+	CompletableFuture<ModbusTransaction> future = transaction.future;
+
+	if (future == null) {
+	    return;
+	}
+
+	switch (transaction.getState()) {
+	case ModbusTransaction.COMPLETE:
+	    future.complete(transaction);
+	    break;
+	case ModbusTransaction.EXCEPTION:
+	    future.completeExceptionally(new ModbusException(transaction.getFunction(),
+							     transaction.getExceptionCode()));
+	    break;
+	default:
+	    future.completeExceptionally(new IOException("Modbus transaction failed"));
+	    break;
+	}
+    }
+
+    /**
+     * Function to fail a transaction that will never be answered,
+     * completing its future exceptionally with the cause given.
+     *
+     * @param transaction The transaction that has failed.
+     * @param cause The reason the transaction failed.
+     */
+    protected static void fail(ModbusTransaction transaction, IOException cause) {
+	transaction.fail();
+	if (transaction.future != null) {
+	    transaction.future.completeExceptionally(cause);
+	}
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * ModbusBufferTransport.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.io.IOException;
+
+/**
+ * Interface for Modbus transports that send and receive frames held in
+ * ByteBuffers.  Unlike ModbusTransport, where each frame is copied
+ * between the message array and the transport media, the frame is laid
+ * out in the buffer as it is sent, so it can be written and read with a
+ * single channel call and without intermediate copies.
+ * <P>
+ * A buffer transport can be used wherever a ModbusTransport is needed
+ * by wrapping it in a ModbusBufferTransportAdapter.
+ */
+public interface ModbusBufferTransport {
+
+    /**
+     * Method to send a Modbus frame via the transport media.  The header
+     * of the frame must be complete, that is the transaction ID and
+     * length must be set.
+     *
+     * @param frame The frame to be sent.
+     * @return Transmission sucess flag, to indicate if the transmission
+     *         was sucessful.
+     * @throws IOException
+     */
+    public boolean sendFrame(ModbusFrame frame) throws IOException;
+
+    /**
+     * Method to receive a Modbus frame via the transport media.  This
+     * method will block until a frame is received or the communication
+     * path is terminated.
+     *
+     * @param frame The frame for the received data to be written into.
+     * @return Receive sucess flag, to indicate if the receive was sucessful.
+     * @throws IOException
+     */
+    public boolean receiveFrame(ModbusFrame frame) throws IOException;
+
+    /**
+     * Method to close the transport media.
+     */
+    public void disconnect();
+}
@@ -0,0 +1,101 @@
+/*
+ * ModbusBufferTransportAdapter.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.io.IOException;
+
+/**
+ * Class to adapt a ModbusBufferTransport onto the ModbusTransport
+ * interface, so it can be used by the existing masters and slaves.  Each
+ * message is copied once, between its array and a frame owned by the
+ * adapter, which is all the copying there is between the message and the
+ * channel.
+ * <P>
+ * Like the transports it adapts, an adapter may be used by one thread
+ * sending and another receiving, but not by two threads doing the same.
+ */
+public class ModbusBufferTransportAdapter implements ModbusTransport {
+
+    // The transport adapted and the frames used with it
+    private ModbusBufferTransport transport;
+    private ModbusFrame sendFrame;
+    private ModbusFrame receiveFrame;
+
+    /**
+     * Class constructor.
+     *
+     * @param transport The transport to adapt.
+     * @param direct True if the frames are to use direct buffers.
+     */
+    public ModbusBufferTransportAdapter(ModbusBufferTransport transport, boolean direct) {
+	this.transport = transport;
+	sendFrame = new ModbusFrame(direct);
+	receiveFrame = new ModbusFrame(direct);
+    }
+
+    /**
+     * Get the transport that is adapted.
+     *
+     * @return The transport.
+     */
+    public ModbusBufferTransport getTransport() {
+	return transport;
+    }
+
+    public boolean sendFrame(ModbusMessage msg) throws IOException {
+	sendFrame.copyFrom(msg);
+	return transport.sendFrame(sendFrame);
+    }
+
+    public boolean receiveFrame(ModbusMessage msg) throws IOException {
+	if (!transport.receiveFrame(receiveFrame)) {
+	    return false;
+	}
+	receiveFrame.copyTo(msg);
+	return true;
+    }
+
+    public void disconnect() {
+	transport.disconnect();
+    }
+
+    public String toString() {
+	return transport.toString();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * ModbusCRC16.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+/**
+ * Class to calculate the CRC-16 used by Modbus RTU (polynomial 0xA001
+ * reflected, initial value 0xFFFF).  The CRC is calculated a byte at a
+ * time from a 256 entry table, and can be updated as each byte arrives,
+ * so a receiver has already checked the CRC when the last byte of the
+ * frame lands.
+ * <P>
+ * The CRC is sent low byte first.  Running the CRC over a frame
+ * including its two CRC bytes gives zero when the frame is intact, which
+ * is how the check is made.
+ */
+public final class ModbusCRC16 {
+
+    /**
+     * The value the CRC is started with.
+     */
+    public static final int INITIAL = 0xFFFF;
+
+    // The CRC of each possible value of the low byte
+    private static final char[] TABLE = new char[256];
+
+    static {
+	int crc;
+
+	for (int i=0; i<256; i++) {
+	    crc = i;
+	    for (int bit=0; bit<8; bit++) {
+		if ((crc & 0x0001) != 0) {
+		    crc = (crc >>> 1) ^ 0xA001;
+		}
+		else {
+		    crc >>>= 1;
+		}
+	    }
+	    TABLE[i] = (char) crc;
+	}
+    }
+
+    // Not to be created, just a holder for the functions
+    private ModbusCRC16() {
+    }
+
+    /**
+     * Function to update a CRC with a byte.
+     *
+     * @param crc The CRC so far.
+     * @param b The next byte.
+     * @return The updated CRC.
+     */
+    public static int update(int crc, byte b) {
+	return (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+    }
+
+    /**
+     * Function to update a CRC with part of a byte array.
+     *
+     * @param crc The CRC so far.
+     * @param buff The byte array.
+     * @param offset The index of the first byte to use.
+     * @param length The number of bytes to use.
+     * @return The updated CRC.
+     */
+    public static int update(int crc, byte[] buff, int offset, int length) {
+	int end = offset + length;
+
+	for (int i=offset; i<end; i++) {
+	    crc = (crc >>> 8) ^ TABLE[(crc ^ buff[i]) & 0xFF];
+	}
+	return crc;
+    }
+
+    /**
+     * Function to calculate the CRC of part of a byte array.
+     *
+     * @param buff The byte array.
+     * @param offset The index of the first byte to use.
+     * @param length The number of bytes to use.
+     * @return The CRC.
+     */
+    public static int calculate(byte[] buff, int offset, int length) {
+	return update(INITIAL, buff, offset, length);
+    }
+}
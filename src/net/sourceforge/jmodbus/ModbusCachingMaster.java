@@ -0,0 +1,518 @@
+/*
+ * ModbusCachingMaster.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class to cache the results of reads made by another master.  A read of
+ * the same unit ID, function code and register range as an earlier read
+ * is answered from the cache until the time to live of the range has
+ * passed, so components reading the same registers at about the same
+ * time only cause one request to be sent.
+ * <P>
+ * The time to live of a read is that of the first rule set with setTTL
+ * covering its range, or the default time to live if there is none.  The
+ * cache holds a limited number of ranges, the least recently used ones
+ * being dropped to make room.  A write invalidates the cached reads of
+ * the holding registers or coils that it overlaps.  Writes made by other
+ * masters are not seen, so a time to live should be chosen that allows
+ * for them.
+ * <P>
+ * All the methods of this class are synchronized, so unlike other
+ * masters it may be shared by several threads.  The master being cached
+ * must not be used other than through this class.
+ */
+public class ModbusCachingMaster extends ModbusMaster {
+
+	private static final Logger log = LoggerFactory.getLogger(ModbusCachingMaster.class.getName());
+
+    // The master the requests that miss the cache are sent with
+    private ModbusMaster master;
+
+    // The cached reads in order of use, and the time to live rules
+    private Map<Key, Cached> cache;
+    private List<Rule> rules = new ArrayList<Rule>();
+    private long defaultTTL;
+
+    // Statistics
+    private long hits;
+    private long misses;
+
+    /**
+     * Class constructor.
+     *
+     * @param master The master the requests that miss the cache are
+     *               sent with.
+     * @param maxEntries The largest number of reads to cache.
+     * @param defaultTTL The time to live in milliseconds of reads not
+     *                   covered by any rule, 0 to not cache them.
+     */
+    public ModbusCachingMaster(ModbusMaster master, final int maxEntries, long defaultTTL) {
+	super(master.transport);
+
+	if (maxEntries < 1) {
+	    throw new IllegalArgumentException("Cache must hold at least 1 entry");
+	}
+	if (defaultTTL < 0) {
+	    throw new IllegalArgumentException("Time to live must not be negative");
+	}
+
+	this.master = master;
+	this.defaultTTL = TimeUnit.MILLISECONDS.toNanos(defaultTTL);
+	cache = new LinkedHashMap<Key, Cached>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest) {
+		    return size() > maxEntries;
+		}
+	    };
+    }
+
+    /**
+     * Function to set the time to live of reads of a range of registers.
+     * A read is covered by the rule if it lies wholly inside the range,
+     * and the rules are checked in the order they were set.
+     *
+     * @param unitID The unit ID the rule applies to.
+     * @param function The read function code the rule applies to.
+     * @param reference The reference number of the first register.
+     * @param length The number of registers.
+     * @param ttl The time to live in milliseconds, 0 to not cache.
+     */
+    public synchronized void setTTL(int unitID,
+				    byte function,
+				    int reference,
+				    int length,
+				    long ttl) throws IllegalArgumentException {
+
+	checkArguments(unitID, reference, length, 0);
+
+	if (ttl < 0) {
+	    throw new IllegalArgumentException("Time to live must not be negative");
+	}
+
+	rules.add(new Rule(unitID, function, reference, length, TimeUnit.MILLISECONDS.toNanos(ttl)));
+    }
+
+    /**
+     * Function to empty the cache, so the next reads all go to the
+     * slave device.
+     */
+    public synchronized void invalidate() {
+	cache.clear();
+    }
+
+    /**
+     * Get the number of reads answered from the cache.
+     *
+     * @return The number of cache hits.
+     */
+    public synchronized long getHits() {
+	return hits;
+    }
+
+    /**
+     * Get the number of reads sent to the slave device.
+     *
+     * @return The number of cache misses.
+     */
+    public synchronized long getMisses() {
+	return misses;
+    }
+
+    public synchronized boolean readMultipleRegisters(int unitID,
+						      int reference,
+						      int length,
+						      int transID,
+						      int[] results)
+	throws IllegalArgumentException, IOException {
+
+	if (lookup(unitID, READ_MULTIPLE_REGISTERS, reference, length, results)) {
+	    return true;
+	}
+	if (!master.readMultipleRegisters(unitID, reference, length, transID, results)) {
+	    return false;
+	}
+	store(unitID, READ_MULTIPLE_REGISTERS, reference, length, results);
+	return true;
+    }
+
+    public synchronized boolean readInputRegisters(int unitID,
+						   int reference,
+						   int length,
+						   int transID,
+						   int[] results)
+	throws IllegalArgumentException, IOException {
+
+	if (lookup(unitID, READ_INPUT_REGISTERS, reference, length, results)) {
+	    return true;
+	}
+	if (!master.readInputRegisters(unitID, reference, length, transID, results)) {
+	    return false;
+	}
+	store(unitID, READ_INPUT_REGISTERS, reference, length, results);
+	return true;
+    }
+
+    public synchronized boolean writeMultipleRegisters(int unitID,
+						       int reference,
+						       int length,
+						       int transID,
+						       int[] values)
+	throws IllegalArgumentException, IOException {
+
+	// Even a failed write may have changed some of the registers
+	invalidate(unitID, WRITE_MULTIPLE_REGISTERS, reference, length);
+	return master.writeMultipleRegisters(unitID, reference, length, transID, values);
+    }
+
+    public synchronized boolean writeSingleRegister(int unitID,
+						    int reference,
+						    int value,
+						    int transID)
+	throws IllegalArgumentException, IOException {
+
+	invalidate(unitID, WRITE_SINGLE_REGISTER, reference, 1);
+	return master.writeSingleRegister(unitID, reference, value, transID);
+    }
+
+    public synchronized boolean readCoils(int unitID,
+					  int reference,
+					  int length,
+					  int transID,
+					  boolean[] results)
+	throws IllegalArgumentException, IOException {
+
+	if (lookup(unitID, READ_COILS, reference, length, results)) {
+	    return true;
+	}
+	if (!master.readCoils(unitID, reference, length, transID, results)) {
+	    return false;
+	}
+	store(unitID, READ_COILS, reference, length, results);
+	return true;
+    }
+
+    public synchronized boolean readInputDiscretes(int unitID,
+						   int reference,
+						   int length,
+						   int transID,
+						   boolean[] results)
+	throws IllegalArgumentException, IOException {
+
+	if (lookup(unitID, READ_INPUT_DISCRETES, reference, length, results)) {
+	    return true;
+	}
+	if (!master.readInputDiscretes(unitID, reference, length, transID, results)) {
+	    return false;
+	}
+	store(unitID, READ_INPUT_DISCRETES, reference, length, results);
+	return true;
+    }
+
+    public synchronized boolean writeCoil(int unitID,
+					  int reference,
+					  boolean value,
+					  int transID)
+	throws IllegalArgumentException, IOException {
+
+	invalidate(unitID, WRITE_COIL, reference, 1);
+	return master.writeCoil(unitID, reference, value, transID);
+    }
+
+    public synchronized boolean writeMultipleCoils(int unitID,
+						   int reference,
+						   int length,
+						   int transID,
+						   boolean[] values)
+	throws IllegalArgumentException, IOException {
+
+	invalidate(unitID, WRITE_MULTIPLE_COILS, reference, length);
+	return master.writeMultipleCoils(unitID, reference, length, transID, values);
+    }
+
+    public synchronized boolean execute(ModbusTransaction transaction) throws IOException {
+	return execute(new ModbusTransaction[] { transaction });
+    }
+
+    /**
+     * Function to execute a group of transactions.  Reads found in the
+     * cache are completed straight away and the rest are executed as a
+     * group by the master being cached, so they can still be pipelined.
+     *
+     * @param transactions The transactions to be executed.
+     * @return True if all of the transactions completed without error.
+     * @throws IOException
+     */
+    public synchronized boolean execute(ModbusTransaction[] transactions) throws IOException {
+	List<ModbusTransaction> missed = new ArrayList<ModbusTransaction>(transactions.length);
+	ModbusTransaction transaction;
+	boolean retval;
+
+	for (int i=0; i<transactions.length; i++) {
+	    transaction = transactions[i];
+
+	    if (transaction.isWrite()) {
+		invalidate(transaction.getUnitID(), transaction.getFunction(),
+			   transaction.getReference(), transaction.getLength());
+	    }
+	    else if (lookup(transaction.getUnitID(), transaction.getFunction(),
+			    transaction.getReference(), transaction.getLength(), transaction.getValues())) {
+		transaction.complete(transaction.getValues());
+		continue;
+	    }
+	    missed.add(transaction);
+	}
+
+	if (missed.isEmpty()) {
+	    return true;
+	}
+
+	retval = master.execute(missed.toArray(new ModbusTransaction[missed.size()]));
+
+	for (int i=0; i<missed.size(); i++) {
+	    transaction = missed.get(i);
+
+	    if (!transaction.isWrite() && transaction.isComplete()) {
+		store(transaction.getUnitID(), transaction.getFunction(),
+		      transaction.getReference(), transaction.getLength(), transaction.getValues());
+	    }
+	}
+
+	// A read executed before an overlapping write in the same group
+	// has just stored the values from before the write, so the
+	// writes are invalidated again now the whole group has run
+	for (int i=0; i<missed.size(); i++) {
+	    transaction = missed.get(i);
+
+	    if (transaction.isWrite()) {
+		invalidate(transaction.getUnitID(), transaction.getFunction(),
+			   transaction.getReference(), transaction.getLength());
+	    }
+	}
+
+	return retval;
+    }
+
+    public void disconnect() {
+	master.disconnect();
+    }
+
+    // Answer a read from the cache if it holds fresh values for it
+    private boolean lookup(int unitID, byte function, int reference, int length, int[] results) {
+	Cached entry = find(unitID, function, reference, length);
+
+	if (entry == null) {
+	    return false;
+	}
+	System.arraycopy(entry.values, 0, results, 0, length);
+	return true;
+    }
+
+    // Answer a read of coils from the cache if it holds fresh values for it
+    private boolean lookup(int unitID, byte function, int reference, int length, boolean[] results) {
+	Cached entry = find(unitID, function, reference, length);
+
+	if (entry == null) {
+	    return false;
+	}
+	for (int i=0; i<length; i++) {
+	    results[i] = entry.values[i] != 0;
+	}
+	return true;
+    }
+
+    // Find the fresh cached values of a read, counting the hit or miss
+    private Cached find(int unitID, byte function, int reference, int length) {
+	Key key = new Key(unitID, function, reference, length);
+	Cached entry = cache.get(key);
+
+	if (entry != null && System.nanoTime() - entry.expires >= 0) {
+	    cache.remove(key);
+	    entry = null;
+	}
+
+	if (entry == null) {
+	    misses++;
+	    return null;
+	}
+
+	hits++;
+
+	if (debug >= 3) {
+	    log.debug("ModbusCachingMaster: cache hit for " + key);
+	}
+	return entry;
+    }
+
+    // Remember the values read, if the range is to be cached
+    private void store(int unitID, byte function, int reference, int length, int[] values) {
+	long ttl = getTTL(unitID, function, reference, length);
+	Cached entry;
+
+	if (ttl > 0) {
+	    entry = new Cached();
+	    entry.values = new int[length];
+	    System.arraycopy(values, 0, entry.values, 0, length);
+	    entry.expires = System.nanoTime() + ttl;
+	    cache.put(new Key(unitID, function, reference, length), entry);
+	}
+    }
+
+    // Remember the values of coils read, held as 1 for on and 0 for off
+    private void store(int unitID, byte function, int reference, int length, boolean[] values) {
+	int[] bits = new int[length];
+
+	for (int i=0; i<length; i++) {
+	    bits[i] = values[i] ? 1 : 0;
+	}
+	store(unitID, function, reference, length, bits);
+    }
+
+    // Find the time to live of a range
+    private long getTTL(int unitID, byte function, int reference, int length) {
+	Rule rule;
+
+	for (int i=0; i<rules.size(); i++) {
+	    rule = rules.get(i);
+	    if (rule.unitID == unitID
+		&& rule.function == function
+		&& reference >= rule.reference
+		&& reference + length <= rule.reference + rule.length) {
+		return rule.ttl;
+	    }
+	}
+	return defaultTTL;
+    }
+
+    // Drop the cached reads of holding registers or coils overlapping
+    // a write with the given function code
+    private void invalidate(int unitID, byte function, int reference, int length) {
+	Iterator<Key> keys = cache.keySet().iterator();
+	Key key;
+	byte read;
+
+	// Coils are only read back by READ_COILS
+	switch (function) {
+	case WRITE_MULTIPLE_REGISTERS:
+	case WRITE_SINGLE_REGISTER:
+	    read = READ_MULTIPLE_REGISTERS;
+	    break;
+	default:
+	    read = READ_COILS;
+	    break;
+	}
+
+	while (keys.hasNext()) {
+	    key = keys.next();
+	    if (key.unitID == unitID
+		&& key.function == read
+		&& key.reference < reference + length
+		&& reference < key.reference + key.length) {
+		keys.remove();
+	    }
+	}
+    }
+
+    // What a read is cached under
+    private static class Key {
+	int unitID;
+	byte function;
+	int reference;
+	int length;
+
+	Key(int unitID, byte function, int reference, int length) {
+	    this.unitID = unitID;
+	    this.function = function;
+	    this.reference = reference;
+	    this.length = length;
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof Key)) {
+		return false;
+	    }
+	    Key other = (Key) o;
+	    return unitID == other.unitID
+		&& function == other.function
+		&& reference == other.reference
+		&& length == other.length;
+	}
+
+	public int hashCode() {
+	    return (((unitID * 31 + function) * 31 + reference) * 31) + length;
+	}
+
+	public String toString() {
+	    return "unit " + unitID + " function " + ByteUtils.toHex(function)
+		+ " reference " + reference + " length " + length;
+	}
+    }
+
+    // The values of a cached read and when they go stale
+    private static class Cached {
+	int[] values;
+	long expires;
+    }
+
+    // The time to live of a range of registers
+    private static class Rule {
+	int unitID;
+	byte function;
+	int reference;
+	int length;
+	long ttl;
+
+	Rule(int unitID, byte function, int reference, int length, long ttl) {
+	    this.unitID = unitID;
+	    this.function = function;
+	    this.reference = reference;
+	    this.length = length;
+	    this.ttl = ttl;
+	}
+    }
+}
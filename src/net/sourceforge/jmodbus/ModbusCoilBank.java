@@ -40,10 +40,14 @@ package net.sourceforge.jmodbus;
 
 /**
  * Class to represent the coils (1 bit data items) in a Modbus device.  
- * The class uses boolean varibales internally to represent coils
- * as the minimum block allocation of memory for a JVM is 4 bytes 
- * so type does not matter.  Thus booleans were chosed to make
- * logic comparisons easy.
+ * The coils are packed 64 to a long, so a large bank takes an eighth of
+ * the memory of one boolean per coil.  Blocks of coils can be packed
+ * straight to and unpacked straight from the Modbus wire format, where
+ * the first coil is the least significant bit of the first byte, a word
+ * at a time rather than a coil at a time.
+ * <P>
+ * Setting a coil changes the word it is packed in, so all the methods
+ * are synchronized to allow a bank to be shared between threads.
  *
  * @author Kelvin Proctor
  *
@@ -56,9 +60,10 @@ public class ModbusCoilBank {
     private int coils_size;		
     
     /**
-     * The boolean array that represents this bank of coils.
+     * The long array that represents this bank of coils, coil n
+     * being bit (n % 64) of word (n / 64).
      */
-    private boolean[] coils;
+    private long[] coils;
     
     /**
      * Class constructor that, given the size of the coil bank
@@ -72,20 +77,46 @@ public class ModbusCoilBank {
      */	
     public ModbusCoilBank(int coils_size) {
 	
-	if (coils_size < 1) {
-	    this.coils_size = 1;
-	}
-	else if (coils_size > Modbus.ADDRESS_MAX) {
-	    this.coils_size = Modbus.ADDRESS_MAX;
+	this.coils_size = limitSize(coils_size);
+	
+	coils = new long[(this.coils_size + 63) >>> 6];
+    }
+    
+    /**
+     * Constructor for subclasses that keep the coils in some other
+     * form.  No memory is allocated for the coils, so the subclass
+     * must override getNumberCoils and all the methods that get or set
+     * coils.
+     */
+    protected ModbusCoilBank() {
+    }
+
+    // Keep the size of a bank within the Modbus address range
+    static int limitSize(int size) {
+	if (size < 1) {
+	    return 1;
 	}
-	else {
-	    this.coils_size = coils_size;
+	else if (size > Modbus.ADDRESS_MAX) {
+	    return Modbus.ADDRESS_MAX;
 	}
-	
-	coils = new boolean[this.coils_size];
-	
-	for (int i = 0; i < this.coils_size; i++) {
-	    coils[i] = false;
+	return size;
+    }
+
+    /**
+     * Throw an ArrayIndexOutOfBoundsException if a block of coils is
+     * not within this bank, naming the first coil outside it.  The
+     * coils past the end of a bank share the storage of the last ones,
+     * so an array or buffer holding them would not catch it.
+     *
+     * @param index The address of the desired starting coil (note 
+     *              that this is a zero based index)
+     * @param length The number of coils.
+     */
+    protected void checkRange(int index, int length) {
+	int size = getNumberCoils();
+
+	if (index < 0 || length < 0 || index + length > size) {
+	    throw new ArrayIndexOutOfBoundsException(index < 0 || index >= size ? index : index + length - 1);
 	}
     }
     
@@ -113,8 +144,9 @@ public class ModbusCoilBank {
      *              this is a zero based index)
      * @return The value of the requested coil.
      */
-    public boolean getCoil(int index) {
-	return coils[index];
+    public synchronized boolean getCoil(int index) {
+	checkRange(index, 1);
+	return (coils[index >>> 6] & (1L << index)) != 0;
     }
     
     /**
@@ -130,8 +162,14 @@ public class ModbusCoilBank {
      *              this is a zero based index)
      * @param value The value of the coil to be set.
      */
-    public void setCoil(int index, boolean value) {
-	coils[index] = value;
+    public synchronized void setCoil(int index, boolean value) {
+	checkRange(index, 1);
+	if (value) {
+	    coils[index >>> 6] |= (1L << index);
+	}
+	else {
+	    coils[index >>> 6] &= ~(1L << index);
+	}
     }
     
     /**
@@ -148,10 +186,11 @@ public class ModbusCoilBank {
      * @param length The number of coils to be retrieved
      * @return Array containing the values of the requested coils.
      */
-    public boolean[] getCoils(int index, int length) {
+    public synchronized boolean[] getCoils(int index, int length) {
+	checkRange(index, length);
 	boolean[] coil_set = new boolean[length];
 	for (int i=0; i<length; i++) {
-	    coil_set[i] = coils[i+index];
+	    coil_set[i] = (coils[(index+i) >>> 6] & (1L << (index+i))) != 0;
 	}
 	return coil_set;
     }
@@ -170,13 +209,167 @@ public class ModbusCoilBank {
      * @param coil_set Array of booleans containing the values 
      *                 of the coils to be set.
      */
-    public void setCoils(int index, boolean[] coil_set) {
+    public synchronized void setCoils(int index, boolean[] coil_set) {
+	checkRange(index, coil_set.length);
 	for (int i=0; i<coil_set.length; i++) {
-	    coils[index+i] = coil_set[i];
+	    if (coil_set[i]) {
+		coils[(index+i) >>> 6] |= (1L << (index+i));
+	    }
+	    else {
+		coils[(index+i) >>> 6] &= ~(1L << (index+i));
+	    }
 	}
     }
-}
 
-     
-     
-     
+    /**
+     * Packs a block of coils into a byte array in the Modbus wire
+     * format, the first coil being the least significant bit of the
+     * first byte.  Unused bits of the last byte are cleared.  This is
+     * the format of the data of a READ_COILS or READ_INPUT_DISCRETES
+     * response.
+     * <P>
+     * <B>NOTE:</B> Attempting to get a coil outside the range
+     * of this coil bank will result in a 
+     * ArrayIndexOutOfBoundsException being thrown
+     *
+     * @param index The address of the desired starting coil (note 
+     *              that this is a zero based index)
+     * @param length The number of coils to be packed.
+     * @param buff The byte array to pack the coils into, which must
+     *             have room for (length+7)/8 bytes.
+     * @param offset The index in buff of the first byte.
+     * @return The number of bytes written.
+     */
+    public synchronized int getCoils(int index, int length, byte[] buff, int offset) {
+	int start = offset;
+	int n;
+	long bits;
+
+	checkRange(index, length);
+
+	while (length > 0) {
+	    n = Math.min(length, 64);
+	    bits = getBits(index, n);
+	    for (int i=0; i<n; i+=8) {
+		buff[offset++] = (byte) (bits >>> i);
+	    }
+	    index += n;
+	    length -= n;
+	}
+
+	return offset - start;
+    }
+
+    /**
+     * Unpacks a block of coils from a byte array in the Modbus wire
+     * format, the first coil being the least significant bit of the
+     * first byte.  This is the format of the data of a
+     * WRITE_MULTIPLE_COILS request.
+     * <P>
+     * <B>NOTE:</B> Attempting to set a coil outside the range
+     * of this coil bank will result in a 
+     * ArrayIndexOutOfBoundsException being thrown
+     *
+     * @param index The address of the desired starting coil (note 
+     *              that this is a zero based index)
+     * @param length The number of coils to be unpacked.
+     * @param buff The byte array holding the packed coils.
+     * @param offset The index in buff of the first byte.
+     */
+    public synchronized void setCoils(int index, int length, byte[] buff, int offset) {
+	int n;
+	long bits;
+
+	checkRange(index, length);
+
+	while (length > 0) {
+	    n = Math.min(length, 64);
+	    bits = 0;
+	    for (int i=0; i<n; i+=8) {
+		bits |= (buff[offset++] & 0xFFL) << i;
+	    }
+	    setBits(index, n, bits);
+	    index += n;
+	    length -= n;
+	}
+    }
+
+    /**
+     * Sets every coil of a block of coils to the same value.
+     * <P>
+     * <B>NOTE:</B> Attempting to set a coil outside the range
+     * of this coil bank will result in a 
+     * ArrayIndexOutOfBoundsException being thrown
+     *
+     * @param index The address of the desired starting coil (note 
+     *              that this is a zero based index)
+     * @param length The number of coils to be set.
+     * @param value The value the coils are to be set to.
+     */
+    public synchronized void fillCoils(int index, int length, boolean value) {
+	int n;
+
+	checkRange(index, length);
+
+	while (length > 0) {
+	    n = Math.min(length, 64);
+	    setBits(index, n, value ? -1L : 0L);
+	    index += n;
+	    length -= n;
+	}
+    }
+
+    /**
+     * Counts the coils of a block of coils that are set.
+     * <P>
+     * <B>NOTE:</B> Attempting to count a coil outside the range
+     * of this coil bank will result in a 
+     * ArrayIndexOutOfBoundsException being thrown
+     *
+     * @param index The address of the desired starting coil (note 
+     *              that this is a zero based index)
+     * @param length The number of coils to be counted.
+     * @return The number of coils in the block that are set.
+     */
+    public synchronized int countCoils(int index, int length) {
+	int count = 0;
+	int n;
+
+	checkRange(index, length);
+
+	while (length > 0) {
+	    n = Math.min(length, 64);
+	    count += Long.bitCount(getBits(index, n));
+	    index += n;
+	    length -= n;
+	}
+
+	return count;
+    }
+
+    // Get up to 64 coils as the low bits of a long
+    private long getBits(int index, int n) {
+	int word = index >>> 6;
+	int shift = index & 63;
+	long bits = coils[word] >>> shift;
+
+	if (shift + n > 64) {
+	    bits |= coils[word+1] << (64 - shift);
+	}
+	return n == 64 ? bits : bits & ((1L << n) - 1);
+    }
+
+    // Set up to 64 coils from the low bits of a long
+    private void setBits(int index, int n, long bits) {
+	int word = index >>> 6;
+	int shift = index & 63;
+	long mask = n == 64 ? -1L : (1L << n) - 1;
+
+	bits &= mask;
+	coils[word] = (coils[word] & ~(mask << shift)) | (bits << shift);
+
+	if (shift + n > 64) {
+	    coils[word+1] = (coils[word+1] & ~(mask >>> (64 - shift))) | (bits >>> (64 - shift));
+	}
+    }
+}
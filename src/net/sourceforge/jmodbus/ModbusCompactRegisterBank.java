@@ -0,0 +1,239 @@
+/*
+ * ModbusCompactRegisterBank.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+/**
+ * Class to represent the registers of a Modbus device in half the memory
+ * of a ModbusRegisterBank, by keeping each register in a char rather
+ * than an int.  This matters when a great many banks are simulated in
+ * one JVM, where the register arrays are most of the heap.
+ * <P>
+ * As a char holds exactly 16 bits, a register is always read back as
+ * an unsigned value from 0 to 65535, whatever int it was set to.
+ * <P>
+ * Besides the methods of a ModbusRegisterBank, blocks of registers can
+ * be copied to and from char arrays owned by the caller, which is a
+ * straight array copy with nothing allocated.
+ * <P>
+ * The registers are guarded by the lock of ModbusRegisterBank in the
+ * same way as its own, so blocks of registers are read and written
+ * atomically and reads do not take a lock unless a write overlaps them.
+ */
+public class ModbusCompactRegisterBank extends ModbusRegisterBank {
+
+    // The registers of this bank
+    private char[] registers;
+
+    /**
+     * Class constructor that allocates the registers and initializes
+     * them all to zero.
+     *
+     * @param register_size The number of registers in this bank.
+     */
+    public ModbusCompactRegisterBank(int register_size) {
+	registers = new char[limitSize(register_size)];
+    }
+
+    public int getNumberRegisters() {
+	return registers.length;
+    }
+
+    public int getRegister(int index) {
+	long stamp = lock.tryOptimisticRead();
+	int value = registers[index];
+
+	if (!lock.validate(stamp)) {
+	    stamp = lock.readLock();
+	    try {
+		value = registers[index];
+	    }
+	    finally {
+		lock.unlockRead(stamp);
+	    }
+	}
+	return value;
+    }
+
+    public void setRegister(int index, int value) {
+	long stamp = lock.writeLock();
+	try {
+	    registers[index] = (char) value;
+	}
+	finally {
+	    lock.unlockWrite(stamp);
+	}
+    }
+
+    public void getRegisters(int index, int length, int[] regs, int offset) {
+	checkRange(index, length);
+
+	long stamp = lock.tryOptimisticRead();
+
+	copy(index, length, regs, offset);
+
+	if (!lock.validate(stamp)) {
+	    stamp = lock.readLock();
+	    try {
+		copy(index, length, regs, offset);
+	    }
+	    finally {
+		lock.unlockRead(stamp);
+	    }
+	}
+    }
+
+    /**
+     * Gets the value of a particular block of registers into an
+     * existing char array.
+     * <P>
+     * <B>NOTE:</B> Attempting to get a register outside the range
+     * of this register bank will result in a 
+     * ArrayIndexOutOfBoundsException being thrown
+     *
+     * @param index The address of the desired starting register (note 
+     *              that this is a zero based index)
+     * @param length The number of registers to be retrieved
+     * @param regs The array the values are to be written into.
+     * @param offset The index in regs of the first value.
+     */
+    public void getRegisters(int index, int length, char[] regs, int offset) {
+	long stamp = lock.tryOptimisticRead();
+
+	System.arraycopy(registers, index, regs, offset, length);
+
+	if (!lock.validate(stamp)) {
+	    stamp = lock.readLock();
+	    try {
+		System.arraycopy(registers, index, regs, offset, length);
+	    }
+	    finally {
+		lock.unlockRead(stamp);
+	    }
+	}
+    }
+
+    public int getRegisters(int index, int length, byte[] buff, int offset) {
+	checkRange(index, length);
+
+	long stamp = lock.tryOptimisticRead();
+
+	encode(index, length, buff, offset);
+
+	if (!lock.validate(stamp)) {
+	    stamp = lock.readLock();
+	    try {
+		encode(index, length, buff, offset);
+	    }
+	    finally {
+		lock.unlockRead(stamp);
+	    }
+	}
+	return 2*length;
+    }
+
+    public void setRegister(int index, int[] regs) {
+	checkRange(index, regs.length);
+
+	long stamp = lock.writeLock();
+	try {
+	    for (int i=0; i<regs.length; i++) {
+		registers[index+i] = (char) regs[i];
+	    }
+	}
+	finally {
+	    lock.unlockWrite(stamp);
+	}
+    }
+
+    /**
+     * Sets the value of a particular block of registers from a char
+     * array.
+     * <P>
+     * <B>NOTE:</B> Attempting to set a register outside the range
+     * of this register bank will result in a 
+     * ArrayIndexOutOfBoundsException being thrown
+     *
+     * @param index The address of the desired starting register (note 
+     *              that this is a zero based index)
+     * @param length The number of registers to be set.
+     * @param regs The array holding the values.
+     * @param offset The index in regs of the first value.
+     */
+    public void setRegisters(int index, int length, char[] regs, int offset) {
+	long stamp = lock.writeLock();
+	try {
+	    System.arraycopy(regs, offset, registers, index, length);
+	}
+	finally {
+	    lock.unlockWrite(stamp);
+	}
+    }
+
+    public void setRegisters(int index, int length, byte[] buff, int offset) {
+	checkRange(index, length);
+
+	long stamp = lock.writeLock();
+	try {
+	    for (int i=0; i<length; i++) {
+		registers[index+i] = (char) (((buff[offset+2*i] & 0xFF) << 8) | (buff[offset+2*i+1] & 0xFF));
+	    }
+	}
+	finally {
+	    lock.unlockWrite(stamp);
+	}
+    }
+
+    // Copy a block of registers into an int array
+    private void copy(int index, int length, int[] regs, int offset) {
+	for (int i=0; i<length; i++) {
+	    regs[offset+i] = registers[index+i];
+	}
+    }
+
+    // Encode a block of registers into the wire format
+    private void encode(int index, int length, byte[] buff, int offset) {
+	char value;
+
+	for (int i=0; i<length; i++) {
+	    value = registers[index+i];
+	    buff[offset+2*i] = (byte) (value >>> 8);
+	    buff[offset+2*i+1] = (byte) value;
+	}
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * ModbusException.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.io.IOException;
+
+/**
+ * Exception to signal that a slave device answered a query with a
+ * Modbus exception response.  The exception code sent by the slave
+ * (such as ILLEGAL_DATA_ADDRESS) is carried with the exception.
+ */
+public class ModbusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    // The function code of the query and the exception code
+    // the slave answered it with
+    private byte function;
+    private byte exceptionCode;
+
+    /**
+     * Class constructor.
+     *
+     * @param function The function code of the query.
+     * @param exceptionCode The exception code of the response.
+     */
+    public ModbusException(byte function, byte exceptionCode) {
+	super("Modbus exception " + ByteUtils.toHex(exceptionCode)
+	      + " for function " + ByteUtils.toHex(function));
+	this.function = function;
+	this.exceptionCode = exceptionCode;
+    }
+
+    /**
+     * Get the function code of the query that caused the exception.
+     *
+     * @return The function code.
+     */
+    public byte getFunction() {
+	return function;
+    }
+
+    /**
+     * Get the exception code the slave answered with.
+     *
+     * @return The exception code.
+     */
+    public byte getExceptionCode() {
+	return exceptionCode;
+    }
+}
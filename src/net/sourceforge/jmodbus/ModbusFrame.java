@@ -0,0 +1,226 @@
+/*
+ * ModbusFrame.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Class to represent a Modbus TCP frame held in a ByteBuffer.  The MBAP
+ * header and the body of the message (the unit identifier followed by
+ * the PDU) are laid out one after the other, exactly as they are sent,
+ * so a whole frame can be written or read with a single channel call.
+ * The buffer may be a direct buffer, in which case the channel does not
+ * need to copy it either.
+ * <P>
+ * The body is addressed in the same way as the buff array of a
+ * ModbusMessage, byte 0 being the unit identifier and byte 1 the
+ * function code.
+ */
+public class ModbusFrame {
+
+    /**
+     * The capacity (in bytes) a buffer must have to hold any frame.
+     */
+    public static final int CAPACITY = ModbusTCPTransport.HEADER_LENGTH + Modbus.MAX_MESSAGE_LENGTH;
+
+    // Where the body starts in the buffer
+    private static final int BODY = ModbusTCPTransport.HEADER_LENGTH;
+
+    // The buffer the frame is held in
+    private ByteBuffer buffer;
+
+    /**
+     * Class constructor that allocates a buffer for the frame.
+     *
+     * @param direct True if a direct buffer is to be allocated.
+     */
+    public ModbusFrame(boolean direct) {
+	this(direct ? ByteBuffer.allocateDirect(CAPACITY) : ByteBuffer.allocate(CAPACITY));
+    }
+
+    /**
+     * Class constructor that uses the given buffer to hold the frame.
+     * The frame starts at index 0 of the buffer.
+     *
+     * @param buffer The buffer, of at least CAPACITY bytes.
+     */
+    public ModbusFrame(ByteBuffer buffer) {
+	if (buffer.capacity() < CAPACITY) {
+	    throw new IllegalArgumentException("Buffer is too small to hold a frame");
+	}
+	this.buffer = buffer;
+	setLength(0);
+    }
+
+    /**
+     * Get the buffer holding the frame.  Between position 0 and the
+     * limit it holds the whole frame, ready to be written to a channel.
+     *
+     * @return The buffer.
+     */
+    public ByteBuffer getBuffer() {
+	return buffer;
+    }
+
+    /**
+     * Get the transaction ID from the header.
+     *
+     * @return The transaction ID.
+     */
+    public int getTransID() {
+	return buffer.getShort(0) & 0xFFFF;
+    }
+
+    /**
+     * Set the transaction ID in the header.
+     *
+     * @param transID The transaction ID.
+     */
+    public void setTransID(int transID) {
+	buffer.putShort(0, (short) transID);
+    }
+
+    /**
+     * Get the length of the body from the header.
+     *
+     * @return The number of bytes in the body.
+     */
+    public int getLength() {
+	return buffer.getShort(4) & 0xFFFF;
+    }
+
+    /**
+     * Set the length of the body.  The protocol identifier and length
+     * fields of the header are written, and the buffer is set to hold
+     * the whole frame.
+     *
+     * @param length The number of bytes in the body.
+     */
+    public void setLength(int length) {
+	if (length < 0 || length > Modbus.MAX_MESSAGE_LENGTH) {
+	    throw new IllegalArgumentException("Length is out of range");
+	}
+	buffer.putShort(2, ModbusTCPTransport.PROTOCOL_IDENTIFIER);
+	buffer.putShort(4, (short) length);
+	buffer.limit(BODY + length);
+	buffer.position(0);
+    }
+
+    /**
+     * Check that the header is one we understand, that is it has the
+     * Modbus protocol identifier and a length that will fit the frame.
+     *
+     * @return True if the header is valid.
+     */
+    public boolean checkHeader() {
+	int length = getLength();
+
+	return buffer.getShort(2) == ModbusTCPTransport.PROTOCOL_IDENTIFIER
+	    && length >= 2
+	    && length <= ModbusTCPTransport.DATA_MAX;
+    }
+
+    /**
+     * Get a byte of the body.
+     *
+     * @param index The index of the byte in the body.
+     * @return The byte.
+     */
+    public byte get(int index) {
+	return buffer.get(BODY + index);
+    }
+
+    /**
+     * Set a byte of the body.
+     *
+     * @param index The index of the byte in the body.
+     * @param value The byte.
+     */
+    public void put(int index, byte value) {
+	buffer.put(BODY + index, value);
+    }
+
+    /**
+     * Get a 16 bit unsigned value, high byte first, from the body.
+     *
+     * @param index The index in the body of the high byte.
+     * @return The value.
+     */
+    public int getUnsignedShort(int index) {
+	return buffer.getShort(BODY + index) & 0xFFFF;
+    }
+
+    /**
+     * Set a 16 bit value, high byte first, in the body.
+     *
+     * @param index The index in the body of the high byte.
+     * @param value The value.
+     */
+    public void putShort(int index, int value) {
+	buffer.putShort(BODY + index, (short) value);
+    }
+
+    /**
+     * Function to copy a message into this frame.
+     *
+     * @param msg The message to copy.
+     */
+    public void copyFrom(ModbusMessage msg) {
+	setTransID(msg.transID);
+	setLength(msg.length);
+	buffer.position(BODY);
+	buffer.put(msg.buff, 0, msg.length);
+	buffer.position(0);
+    }
+
+    /**
+     * Function to copy this frame into a message.
+     *
+     * @param msg The message to copy into.
+     */
+    public void copyTo(ModbusMessage msg) {
+	int length = getLength();
+
+	buffer.position(BODY);
+	buffer.get(msg.buff, 0, length);
+	buffer.position(0);
+	msg.length = length;
+	msg.transID = getTransID();
+    }
+}
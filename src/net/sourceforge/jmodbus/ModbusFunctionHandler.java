@@ -0,0 +1,67 @@
+/*
+ * ModbusFunctionHandler.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+/**
+ * Interface to be implemented by the handler of a Modbus function code
+ * in a ModbusSlave.  The slave looks the handler up by the function code
+ * of each request, so applications can add vendor specific function
+ * codes, or replace the standard ones, with setFunctionHandler.
+ * <P>
+ * A slave may process requests from several threads at once, so a
+ * handler must keep no state of its own between calls, or must make
+ * its own arrangements for being called concurrently.
+ */
+public interface ModbusFunctionHandler {
+
+    /**
+     * Function to process a request addressed to one of the units of a
+     * slave and prepare the response.  The response should be complete,
+     * including the unit identifier, function code and length, unless an
+     * exception code is returned, in which case the slave prepares the
+     * exception response.
+     *
+     * @param unit The unit the request was addressed to.
+     * @param request The request message that was received.
+     * @param response The message the response is to be written into.
+     * @return Zero if the response has been prepared, or the Modbus
+     *         exception code to reply with, such as ILLEGAL_DATA_ADDRESS.
+     */
+    byte process(ModbusUnit unit, ModbusMessage request, ModbusMessage response);
+}
@@ -0,0 +1,222 @@
+/*
+ * ModbusMappedCoilBank.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Class to represent the coils of a Modbus device kept in a file that
+ * is mapped into memory.  The coils survive a restart of the slave
+ * without having to be saved and loaded, and other processes on the
+ * same machine can read and write them through their own mapping of
+ * the file.
+ * <P>
+ * The file holds the coils in the Modbus wire format, 8 to a byte, so
+ * coil n is bit (n % 8) of byte (n / 8).  A new file, or one that is too
+ * short, is extended with coils that are off.  A file that is longer
+ * keeps its length, and only the coils at its start are mapped, so the
+ * size of the file is not a check that it was written for a bank of the
+ * same size.
+ * <P>
+ * Setting a coil rewrites the byte it shares with its neighbours, so
+ * other processes writing to the same file must not write coils in the
+ * same bytes at the same time as this object.
+ * <P>
+ * Once closed the bank can not be used, and the file may be mapped again
+ * by a new bank.  The mapping itself is only released when the garbage
+ * collector reclaims it, so until then the file can not be deleted on
+ * platforms such as Windows that lock mapped files.
+ */
+public class ModbusMappedCoilBank extends ModbusCoilBank implements Closeable {
+
+    // The number of coils in this bank
+    private int coils_size;
+
+    // The mapping of the file, only ever used with absolute positions,
+    // or null once closed
+    private MappedByteBuffer buffer;
+
+    /**
+     * Class constructor that maps the coils from a file, creating the
+     * file if it does not exist.
+     *
+     * @param file The file to keep the coils in.
+     * @param coils_size The number of coils in this bank.
+     * @throws IOException If the file can not be opened or mapped.
+     */
+    public ModbusMappedCoilBank(File file, int coils_size) throws IOException {
+	this.coils_size = limitSize(coils_size);
+
+	// The mapping stays valid once the file is closed
+	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	try {
+	    buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (this.coils_size + 7) >>> 3);
+	}
+	finally {
+	    raf.close();
+	}
+    }
+
+    /**
+     * Function to write any changes to the coils out to the file, so
+     * they are not lost if the machine goes down.  The operating system
+     * writes them out in its own time otherwise.
+     */
+    public synchronized void force() {
+	mapping().force();
+    }
+
+    /**
+     * Function to write any changes to the coils out to the file and
+     * drop the mapping.  The bank can not be used afterwards.
+     */
+    public synchronized void close() {
+	if (buffer != null) {
+	    buffer.force();
+	    buffer = null;
+	}
+    }
+
+    public int getNumberCoils() {
+	return coils_size;
+    }
+
+    public synchronized boolean getCoil(int index) {
+	checkRange(index, 1);
+	return (mapping().get(index >>> 3) & (1 << (index & 7))) != 0;
+    }
+
+    public synchronized void setCoil(int index, boolean value) {
+	checkRange(index, 1);
+	setBits(index, 1, value ? 1 : 0);
+    }
+
+    public synchronized boolean[] getCoils(int index, int length) {
+	boolean[] coil_set = new boolean[length];
+	MappedByteBuffer buffer = mapping();
+
+	checkRange(index, length);
+	for (int i=0; i<length; i++) {
+	    coil_set[i] = (buffer.get((index+i) >>> 3) & (1 << ((index+i) & 7))) != 0;
+	}
+	return coil_set;
+    }
+
+    public synchronized void setCoils(int index, boolean[] coil_set) {
+	checkRange(index, coil_set.length);
+	for (int i=0; i<coil_set.length; i++) {
+	    setBits(index+i, 1, coil_set[i] ? 1 : 0);
+	}
+    }
+
+    public synchronized int getCoils(int index, int length, byte[] buff, int offset) {
+	int bytes = (length + 7) >>> 3;
+
+	checkRange(index, length);
+	for (int i=0; i<bytes; i++) {
+	    buff[offset+i] = (byte) getBits(index + 8*i, Math.min(8, length - 8*i));
+	}
+	return bytes;
+    }
+
+    public synchronized void setCoils(int index, int length, byte[] buff, int offset) {
+	checkRange(index, length);
+	for (int i=0; 8*i<length; i++) {
+	    setBits(index + 8*i, Math.min(8, length - 8*i), buff[offset+i]);
+	}
+    }
+
+    public synchronized void fillCoils(int index, int length, boolean value) {
+	checkRange(index, length);
+	for (int i=0; i<length; i+=8) {
+	    setBits(index+i, Math.min(8, length - i), value ? 0xFF : 0);
+	}
+    }
+
+    public synchronized int countCoils(int index, int length) {
+	int count = 0;
+
+	checkRange(index, length);
+	for (int i=0; i<length; i+=8) {
+	    count += Integer.bitCount(getBits(index+i, Math.min(8, length - i)));
+	}
+	return count;
+    }
+
+    // Get up to 8 coils as the low bits of an int
+    private int getBits(int index, int n) {
+	MappedByteBuffer buffer = mapping();
+	int pos = index >>> 3;
+	int shift = index & 7;
+	int bits = (buffer.get(pos) & 0xFF) >>> shift;
+
+	if (shift + n > 8) {
+	    bits |= (buffer.get(pos+1) & 0xFF) << (8 - shift);
+	}
+	return bits & ((1 << n) - 1);
+    }
+
+    // Set up to 8 coils from the low bits of an int
+    private void setBits(int index, int n, int bits) {
+	MappedByteBuffer buffer = mapping();
+	int pos = index >>> 3;
+	int shift = index & 7;
+	int mask = (1 << n) - 1;
+
+	bits &= mask;
+	buffer.put(pos, (byte) ((buffer.get(pos) & ~(mask << shift)) | (bits << shift)));
+
+	if (shift + n > 8) {
+	    buffer.put(pos+1, (byte) ((buffer.get(pos+1) & ~(mask >>> (8 - shift))) | (bits >>> (8 - shift))));
+	}
+    }
+
+    // Get the mapping, which is gone once the bank is closed
+    private MappedByteBuffer mapping() {
+	if (buffer == null) {
+	    throw new IllegalStateException("ModbusMappedCoilBank: closed");
+	}
+	return buffer;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * ModbusMappedRegisterBank.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Class to represent the registers of a Modbus device kept in a file
+ * that is mapped into memory.  The registers survive a restart of the
+ * slave without having to be saved and loaded, and other processes on
+ * the same machine can read and write them through their own mapping of
+ * the file.
+ * <P>
+ * The file holds the registers in the Modbus wire format, 2 bytes per
+ * register with the high byte first, so register n is the unsigned 16
+ * bit big endian value at byte 2n.  A new file, or one that is too short,
+ * is extended with registers of zero.  A file that is longer keeps its
+ * length, and only the registers at its start are mapped, so the size
+ * of the file is not a check that it was written for a bank of the
+ * same size.
+ * <P>
+ * Blocks of registers are read and written atomically with respect to
+ * other users of the same object, but not to other processes, which
+ * should arrange their own locking if they need it.
+ * <P>
+ * Once closed the bank can not be used, and the file may be mapped again
+ * by a new bank.  The mapping itself is only released when the garbage
+ * collector reclaims it, so until then the file can not be deleted on
+ * platforms such as Windows that lock mapped files.
+ */
+public class ModbusMappedRegisterBank extends ModbusRegisterBank implements Closeable {
+
+    // The number of registers in this bank
+    private int register_size;
+
+    // The mapping of the file, only ever used with absolute
+    // positions or while synchronized, or null once closed
+    private volatile MappedByteBuffer buffer;
+
+    /**
+     * Class constructor that maps the registers from a file, creating
+     * the file if it does not exist.
+     *
+     * @param file The file to keep the registers in.
+     * @param register_size The number of registers in this bank.
+     * @throws IOException If the file can not be opened or mapped.
+     */
+    public ModbusMappedRegisterBank(File file, int register_size) throws IOException {
+	this.register_size = limitSize(register_size);
+
+	// The mapping stays valid once the file is closed
+	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	try {
+	    buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 2L * this.register_size);
+	}
+	finally {
+	    raf.close();
+	}
+    }
+
+    /**
+     * Function to write any changes to the registers out to the file,
+     * so they are not lost if the machine goes down.  The operating
+     * system writes them out in its own time otherwise.
+     */
+    public synchronized void force() {
+	mapping().force();
+    }
+
+    /**
+     * Function to write any changes to the registers out to the file
+     * and drop the mapping.  The bank can not be used afterwards.
+     */
+    public synchronized void close() {
+	if (buffer != null) {
+	    buffer.force();
+	    buffer = null;
+	}
+    }
+
+    public int getNumberRegisters() {
+	return register_size;
+    }
+
+    public int getRegister(int index) {
+	checkRange(index, 1);
+	return mapping().getChar(2*index);
+    }
+
+    public synchronized void setRegister(int index, int value) {
+	checkRange(index, 1);
+	mapping().putChar(2*index, (char) value);
+    }
+
+    public synchronized void getRegisters(int index, int length, int[] regs, int offset) {
+	MappedByteBuffer buffer = mapping();
+
+	checkRange(index, length);
+	for (int i=0; i<length; i++) {
+	    regs[offset+i] = buffer.getChar(2*(index+i));
+	}
+    }
+
+    public synchronized int getRegisters(int index, int length, byte[] buff, int offset) {
+	MappedByteBuffer buffer = mapping();
+
+	checkRange(index, length);
+	buffer.position(2*index);
+	buffer.get(buff, offset, 2*length);
+	return 2*length;
+    }
+
+    public synchronized void setRegister(int index, int[] regs) {
+	MappedByteBuffer buffer = mapping();
+
+	checkRange(index, regs.length);
+	for (int i=0; i<regs.length; i++) {
+	    buffer.putChar(2*(index+i), (char) regs[i]);
+	}
+    }
+
+    public synchronized void setRegisters(int index, int length, byte[] buff, int offset) {
+	MappedByteBuffer buffer = mapping();
+
+	checkRange(index, length);
+	buffer.position(2*index);
+	buffer.put(buff, offset, 2*length);
+    }
+
+    // Get the mapping, which is gone once the bank is closed
+    private MappedByteBuffer mapping() {
+	MappedByteBuffer buffer = this.buffer;
+
+	if (buffer == null) {
+	    throw new IllegalStateException("ModbusMappedRegisterBank: closed");
+	}
+	return buffer;
+    }
+}
@@ -58,7 +58,19 @@ public class ModbusMaster extends Modbus {
     private ModbusMessage request;	
     private ModbusMessage response;	
 	private static final Logger log = LoggerFactory.getLogger(ModbusTCPTransport.class.getName());
-    
+
+    /**
+     * Value returned by checkResponse when the response is a valid
+     * (non exception) response to the query that was sent.
+     */
+    static final int RESPONSE_VALID = 0;
+
+    /**
+     * Value returned by checkResponse when the response is malformed
+     * or does not belong to the query that was sent.
+     */
+    static final int RESPONSE_INVALID = -1;
+
     /**
      * Class constructor.  Accepts a ModbusTransport object that
      * is passed to the master. 
@@ -133,149 +145,7 @@ public class ModbusMaster extends Modbus {
 	    log.debug("ModbusMaster: Preparing READ_MULTIPLE_REGISTERS command");
 	}
 
-	// The first thing we want to do is perform bounds
-	// checking on the input variables.
-	if (unitID > UINT8_MAX) {
-	    throw new IllegalArgumentException("Unit ID is out of range of 8 bit UINT");
-	}
-	
-	if (unitID < UINT8_MIN) {
-	    throw new IllegalArgumentException("Unit ID is out of range of 8 bit UINT");
-	}
-	
-	if (reference > UINT16_MAX) {
-	    throw new IllegalArgumentException("Reference number is out of range of 16 bit UINT");
-	}
-	
-	if (reference < UINT16_MIN) {
-	    throw new IllegalArgumentException("Reference number is out of range of 16 bit UINT");
-	}
-	
-	if (length > UINT16_MAX) {
-	    throw new IllegalArgumentException("Length is out of range of 16 bit UINT");
-	}
-	
-	if (length < (UINT16_MIN+1)) {
-	    throw new IllegalArgumentException("Length is out of range of 16 bit UINT or is zero");
-	}
-	
-	if (transID > UINT16_MAX) {
-	    throw new IllegalArgumentException("Transaction ID is out of range of 16 bit UINT");
-	}
-	
-	if (transID < (UINT16_MIN)) {
-	    throw new IllegalArgumentException("Transaction ID is out of range of 16 bit UINT or is zero");
-	}
-	
-	// Now that we know that the values are in range we must
-	// craft the query, which will hvae the following format
-	// byte 0 = unit identifier
-	// byte 1 = function code
-	// byte 2 = high byte of reference number
-	// byte 3 = low byte of reference number
-	// byte 4 = high byte of word count
-	// byte 5 = low byte of word count	
-	request.buff[0] = (byte) ((unitID >> 0) & 0xFF);
-	request.buff[1] = READ_MULTIPLE_REGISTERS;
-	request.buff[2] = (byte) ((reference >> 8) & 0xFF);
-	request.buff[3] = (byte) ((reference >> 0) & 0xFF);
-	request.buff[4] = (byte) ((length >> 8) & 0xFF);
-	request.buff[5] = (byte) ((length >> 0) & 0xFF);
-	
-	// Set the snegth of the request to 6
-	request.length = 6;
-
-	// Se the transaction ID
-	request.transID = transID;
-	
-	// We must now send the request
-	if (!sendFrame(request)) {
-	    if (debug >= 2) {
-		log.debug("ModbusMaster: sendFrame failed!");
-	    }			
-	    return false;
-	}
-	
-	// First we must get the request....
-	if (!receiveFrame(response)) {
-	    if (debug >= 2) {
-		log.debug("ModbusMaster: receiveFrame failed!");
-	    }			
-	    return false;
-	}
-	
-	// We must now start to parse the response
-	
-	// The response must be at least 3 bytes long 
-	// (in the case of an exception, so make sure it is)
-	if (response.length < 3) {
-	    if (debug >= 2) {
-		log.debug("ModbusMaster: Invalid response length");
-	    }			
-	    return false;
-	}
-	
-	// Check that the request actually
-	// has the correct transaction ID
-	if (response.transID != transID) {
-	    if (debug >= 2) {
-		log.debug("ModbusMaster: Incorrect response transaction ID");
-	    }			
-	    return false;
-	}
-	
-	// Check that the request actually
-	// has the correct unit identifier
-	if (response.buff[0] != ((byte)((unitID >> 0) & 0xFF))) {
-	    if (debug >= 2) {
-		log.debug("ModbusMaster: Incorrect unit ID");
-	    }			
-	    return false;
-	}
-	
-	// For an exception
-	if (response.buff[1] == (READ_MULTIPLE_REGISTERS & EXCEPTION_MODIFIER)) {
-	    if (debug >= 2) {
-		log.debug("ModbusMaster: Modbus Exception");
-	    }			
-	    return false;
-	}
-	
-	// Check that the request actually
-	// has the correct function code
-	if (response.buff[1] != READ_MULTIPLE_REGISTERS) {
-	    if (debug >= 3) {
-		log.debug("ModbusMaster: Incorrect return function code");
-	    }			
-	    return false;
-	}
-	
-	// Now check the expected length, based on the
-	// number of registers we requested and the
-	// byte count to follow value
-	if (response.length != (3+response.buff[2])) {
-	    if (debug >= 3) {
-		log.debug("ModbusMaster: Invalid length - bytes to follow");
-	    }			
-	    return false;
-	}
-	if (response.length != (3+2*length)) {
-	    if (debug >= 3) {
-		log.debug("ModbusMaster: Invalid length - requested registers");
-	    }			
-	    return false;
-	}
-
-	// At this stage we now know that we havea  valid response and all
-	// we are required to do is parse the register values.
-	for (int i=0; i<length; i++) {
-	    results[i] = ( ( (response.buff[3+2*i] << 8) & 0xff00) | ( (response.buff[4+2*i] << 0)  & 0x00ff) ) & 0xFFFF;
-	} 
-
-	// Assuming this worked and did not thow an 
-	// array index out o fbounds exception then we
-	// will return true.
-	return true;
+	return readRegisters(READ_MULTIPLE_REGISTERS, unitID, reference, length, transID, results);
     }
    
  
@@ -335,149 +205,7 @@ public class ModbusMaster extends Modbus {
 	    log.debug("ModbusMaster: Preparing READ_INPUT_REGISTERS command");
 	}
 
-	// The first thing we want to do is perform bounds
-	// checking on the input variables.
-	if (unitID > UINT8_MAX) {
-	    throw new IllegalArgumentException("Unit ID is out of range of 8 bit UINT");
-	}
-	
-	if (unitID < UINT8_MIN) {
-	    throw new IllegalArgumentException("Unit ID is out of range of 8 bit UINT");
-	}
-	
-	if (reference > UINT16_MAX) {
-	    throw new IllegalArgumentException("Reference number is out of range of 16 bit UINT");
-	}
-	
-	if (reference < UINT16_MIN) {
-	    throw new IllegalArgumentException("Reference number is out of range of 16 bit UINT");
-	}
-	
-	if (length > UINT16_MAX) {
-	    throw new IllegalArgumentException("Length is out of range of 16 bit UINT");
-	}
-	
-	if (length < (UINT16_MIN+1)) {
-	    throw new IllegalArgumentException("Length is out of range of 16 bit UINT or is zero");
-	}
-	
-	if (transID > UINT16_MAX) {
-	    throw new IllegalArgumentException("Transaction ID is out of range of 16 bit UINT");
-	}
-	
-	if (transID < (UINT16_MIN)) {
-	    throw new IllegalArgumentException("Transaction ID is out of range of 16 bit UINT or is zero");
-	}
-	
-	// Now that we know that the values are in range we must
-	// craft the query, which will hvae the following format
-	// byte 0 = unit identifier
-	// byte 1 = function code
-	// byte 2 = high byte of reference number
-	// byte 3 = low byte of reference number
-	// byte 4 = high byte of word count
-	// byte 5 = low byte of word count	
-	request.buff[0] = (byte) ((unitID >> 0) & 0xFF);
-	request.buff[1] = READ_INPUT_REGISTERS;
-	request.buff[2] = (byte) ((reference >> 8) & 0xFF);
-	request.buff[3] = (byte) ((reference >> 0) & 0xFF);
-	request.buff[4] = (byte) ((length >> 8) & 0xFF);
-	request.buff[5] = (byte) ((length >> 0) & 0xFF);
-	
-	// Set the snegth of the request to 6
-	request.length = 6;
-
-	// Se the transaction ID
-	request.transID = transID;
-	
-	// We must now send the request
-	if (!sendFrame(request)) {
-	    if (debug >= 2) {
-		log.debug("ModbusMaster: sendFrame failed!");
-	    }			
-	    return false;
-	}
-	
-	// First we must get the request....
-	if (!receiveFrame(response)) {
-	    if (debug >= 2) {
-		log.debug("ModbusMaster: receiveFrame failed!");
-	    }			
-	    return false;
-	}
-	
-	// We must now start to parse the response
-	
-	// The response must be at least 3 bytes long 
-	// (in the case of an exception, so make sure it is)
-	if (response.length < 3) {
-	    if (debug >= 2) {
-		log.debug("ModbusMaster: Invalid response length");
-	    }			
-	    return false;
-	}
-	
-	// Check that the request actually
-	// has the correct transaction ID
-	if (response.transID != transID) {
-	    if (debug >= 2) {
-		log.debug("ModbusMaster: Incorrect response transaction ID");
-	    }			
-	    return false;
-	}
-	
-	// Check that the request actually
-	// has the correct unit identifier
-	if (response.buff[0] != ((byte)((unitID >> 0) & 0xFF))) {
-	    if (debug >= 2) {
-		log.debug("ModbusMaster: Incorrect unit ID");
-	    }			
-	    return false;
-	}
-	
-	// For an exception
-	if (response.buff[1] == (READ_INPUT_REGISTERS & EXCEPTION_MODIFIER)) {
-	    if (debug >= 2) {
-		log.debug("ModbusMaster: Modbus Exception");
-	    }			
-	    return false;
-	}
-	
-	// Check that the request actually
-	// has the correct function code
-	if (response.buff[1] != READ_INPUT_REGISTERS) {
-	    if (debug >= 3) {
-		log.debug("ModbusMaster: Incorrect return function code");
-	    }			
-	    return false;
-	}
-	
-	// Now check the expected length, based on the
-	// number of registers we requested and the
-	// byte count to follow value
-	if (response.length != (3+response.buff[2])) {
-	    if (debug >= 3) {
-		log.debug("ModbusMaster: Invalid length - bytes to follow");
-	    }			
-	    return false;
-	}
-	if (response.length != (3+2*length)) {
-	    if (debug >= 3) {
-		log.debug("ModbusMaster: Invalid length - requested registers");
-	    }			
-	    return false;
-	}
-
-	// At this stage we now know that we havea  valid response and all
-	// we are required to do is parse the register values.
-	for (int i=0; i<length; i++) {
-	    results[i] = ( ( (response.buff[3+2*i] << 8) & 0xff00) | ( (response.buff[4+2*i] << 0)  & 0x00ff) ) & 0xFFFF;
-	} 
-
-	// Assuming this worked and did not thow an 
-	// array index out o fbounds exception then we
-	// will return true.
-	return true;
+	return readRegisters(READ_INPUT_REGISTERS, unitID, reference, length, transID, results);
     }    
 
 
@@ -538,40 +266,531 @@ public class ModbusMaster extends Modbus {
 	    log.debug("ModbusMaster: Preparing WRITE_MULTIPLE_REGISTERS command");
 	}
 
+	prepareWriteMultipleRegisters(request, unitID, reference, length, transID, values);
+
+	if (!transact()) {
+	    return false;
+	}
+
+	if (checkResponse(response, WRITE_MULTIPLE_REGISTERS, unitID, transID) != RESPONSE_VALID) {
+	    return false;
+	}
+
+	return parseWriteMultiple(response, reference, length);
+    }    
+
+
+    /**
+     * Function to write a single register of the slave device.  This
+     * sends a shorter frame than writing one register with
+     * writeMultipleRegisters, and is the only write some devices
+     * accept.  A boolean is returned indicating if the function
+     * returned sucessfully.
+     *
+     * @param reference The refernece number of the register to write.
+     * @param value The value to be written.
+     * @throws IOException
+     */
+    public boolean writeSingleRegister(int reference,
+				       int value)
+	throws IllegalArgumentException, IOException {
+	return writeSingleRegister(0,reference,value,0);
+    }
+
+
+    /**
+     * Function to write a single register of the slave device.  This
+     * sends a shorter frame than writing one register with
+     * writeMultipleRegisters, and is the only write some devices
+     * accept.  A boolean is returned indicating if the function
+     * returned sucessfully.
+     *
+     * @param unitID The unit ID of the device to talk
+     *               to (set to zero is unknown).
+     * @param reference The refernece number of the register to write.
+     * @param value The value to be written.
+     * @param transID The transaction ID to use for this
+     *                transaction.
+     * @throws IOException
+     */
+    public boolean writeSingleRegister(int unitID,
+				       int reference,
+				       int value,
+				       int transID)
+	throws IllegalArgumentException, IOException {
+
+	if (debug >= 2) {
+	    log.debug("ModbusMaster: Preparing WRITE_SINGLE_REGISTER command");
+	}
+
+	prepareWriteSingleRegister(request, unitID, reference, value, transID);
+
+	if (!transact()) {
+	    return false;
+	}
+
+	if (checkResponse(response, WRITE_SINGLE_REGISTER, unitID, transID) != RESPONSE_VALID) {
+	    return false;
+	}
+
+	return parseWriteSingle(response, reference, value);
+    }
+
+
+    /**
+     * Function to read coils from the slave device.  The function is
+     * passed a reference to a boolean array, the reference of the first
+     * coil and the number of coils to read.  A boolean is returned
+     * indicating if the function returned sucessfully.
+     *
+     * @param reference The refernece number of the first
+     *                 coil to read.
+     * @param length The number of coils to be read.
+     * @param results Refernce to the boolean array to which
+     *                results should be written.
+     * @throws IOException
+     */
+    public boolean readCoils(int reference,
+			     int length,
+			     boolean[] results)
+	throws IllegalArgumentException, IOException {
+	return readCoils(0,reference,length,0,results);
+    }
+
+
+    /**
+     * Function to read coils from the slave device.  The function is
+     * passed a reference to a boolean array, the reference of the first
+     * coil and the number of coils to read.  A boolean is returned
+     * indicating if the function returned sucessfully.
+     *
+     * @param unitID The unit ID of the device to talk
+     *               to (set to zero is unknown).
+     * @param reference The refernece number of the first
+     *                 coil to read.
+     * @param length The number of coils to be read.
+     * @param transID The transaction ID to use for this
+     *                transaction.
+     * @param results Refernce to the boolean array to which
+     *                results should be written.
+     * @throws IOException
+     */
+    public boolean readCoils(int unitID,
+			     int reference,
+			     int length,
+			     int transID,
+			     boolean[] results)
+	throws IllegalArgumentException, IOException {
+
+	if (debug >= 2) {
+	    log.debug("ModbusMaster: Preparing READ_COILS command");
+	}
+
+	return readBits(READ_COILS, unitID, reference, length, transID, results);
+    }
+
+
+    /**
+     * Function to read input discretes from the slave device.  The
+     * function is passed a reference to a boolean array, the reference
+     * of the first input and the number of inputs to read.  A boolean
+     * is returned indicating if the function returned sucessfully.
+     *
+     * @param reference The refernece number of the first
+     *                 input to read.
+     * @param length The number of inputs to be read.
+     * @param results Refernce to the boolean array to which
+     *                results should be written.
+     * @throws IOException
+     */
+    public boolean readInputDiscretes(int reference,
+				      int length,
+				      boolean[] results)
+	throws IllegalArgumentException, IOException {
+	return readInputDiscretes(0,reference,length,0,results);
+    }
+
+
+    /**
+     * Function to read input discretes from the slave device.  The
+     * function is passed a reference to a boolean array, the reference
+     * of the first input and the number of inputs to read.  A boolean
+     * is returned indicating if the function returned sucessfully.
+     *
+     * @param unitID The unit ID of the device to talk
+     *               to (set to zero is unknown).
+     * @param reference The refernece number of the first
+     *                 input to read.
+     * @param length The number of inputs to be read.
+     * @param transID The transaction ID to use for this
+     *                transaction.
+     * @param results Refernce to the boolean array to which
+     *                results should be written.
+     * @throws IOException
+     */
+    public boolean readInputDiscretes(int unitID,
+				      int reference,
+				      int length,
+				      int transID,
+				      boolean[] results)
+	throws IllegalArgumentException, IOException {
+
+	if (debug >= 2) {
+	    log.debug("ModbusMaster: Preparing READ_INPUT_DISCRETES command");
+	}
+
+	return readBits(READ_INPUT_DISCRETES, unitID, reference, length, transID, results);
+    }
+
+
+    /**
+     * Function to turn a single coil of the slave device on or off.
+     * A boolean is returned indicating if the function returned
+     * sucessfully.
+     *
+     * @param reference The refernece number of the coil to write.
+     * @param value The value to set the coil to.
+     * @throws IOException
+     */
+    public boolean writeCoil(int reference,
+			     boolean value)
+	throws IllegalArgumentException, IOException {
+	return writeCoil(0,reference,value,0);
+    }
+
+
+    /**
+     * Function to turn a single coil of the slave device on or off.
+     * A boolean is returned indicating if the function returned
+     * sucessfully.
+     *
+     * @param unitID The unit ID of the device to talk
+     *               to (set to zero is unknown).
+     * @param reference The refernece number of the coil to write.
+     * @param value The value to set the coil to.
+     * @param transID The transaction ID to use for this
+     *                transaction.
+     * @throws IOException
+     */
+    public boolean writeCoil(int unitID,
+			     int reference,
+			     boolean value,
+			     int transID)
+	throws IllegalArgumentException, IOException {
+
+	if (debug >= 2) {
+	    log.debug("ModbusMaster: Preparing WRITE_COIL command");
+	}
+
+	prepareWriteCoil(request, unitID, reference, value, transID);
+
+	if (!transact()) {
+	    return false;
+	}
+
+	if (checkResponse(response, WRITE_COIL, unitID, transID) != RESPONSE_VALID) {
+	    return false;
+	}
+
+	return parseWriteCoil(response, reference, value);
+    }
+
+
+    /**
+     * Function to write multiple coils to the slave device.  The
+     * function is passed a reference to a boolean array, the reference
+     * of the first coil and the number of coils to write.  A boolean
+     * is returned indicating if the function returned sucessfully.
+     *
+     * @param reference The refernece number of the first
+     *                 coil to write.
+     * @param length The number of coils to be written.
+     * @param values Refernce to the boolean array holding
+     *               the values to be written.
+     * @throws IOException
+     */
+    public boolean writeMultipleCoils(int reference,
+				      int length,
+				      boolean[] values)
+	throws IllegalArgumentException, IOException {
+	return writeMultipleCoils(0,reference,length,0,values);
+    }
+
+
+    /**
+     * Function to write multiple coils to the slave device.  The
+     * function is passed a reference to a boolean array, the reference
+     * of the first coil and the number of coils to write.  A boolean
+     * is returned indicating if the function returned sucessfully.
+     *
+     * @param unitID The unit ID of the device to talk
+     *               to (set to zero is unknown).
+     * @param reference The refernece number of the first
+     *                 coil to write.
+     * @param length The number of coils to be written.
+     * @param transID The transaction ID to use for this
+     *                transaction.
+     * @param values Refernce to the boolean array holding
+     *               the values to be written.
+     * @throws IOException
+     */
+    public boolean writeMultipleCoils(int unitID,
+				      int reference,
+				      int length,
+				      int transID,
+				      boolean[] values)
+	throws IllegalArgumentException, IOException {
+
+	if (debug >= 2) {
+	    log.debug("ModbusMaster: Preparing WRITE_MULTIPLE_COILS command");
+	}
+
+	prepareWriteMultipleCoils(request, unitID, reference, length, transID);
+	packCoils(values, length, request.buff, 7);
+
+	if (!transact()) {
+	    return false;
+	}
+
+	if (checkResponse(response, WRITE_MULTIPLE_COILS, unitID, transID) != RESPONSE_VALID) {
+	    return false;
+	}
+
+	return parseWriteMultiple(response, reference, length);
+    }
+
+
+    /**
+     * Function to execute a single transaction against the slave
+     * device.  The transaction is given the next transaction ID of
+     * this master, if the transport carries one, the request is sent and the response is parsed
+     * back into the transaction.  A boolean is returned indicating
+     * if the transaction completed sucessfully, the state of the
+     * transaction can be examined for the reason if it did not.
+     *
+     * @param transaction The transaction to be executed.
+     * @return True if the transaction completed without error.
+     * @throws IOException
+     */
+    public boolean execute(ModbusTransaction transaction) throws IOException {
+
+	transaction.prepare(request, nextTransactionID());
+
+	if (!transact()) {
+	    transaction.fail();
+	    return false;
+	}
+
+	return transaction.complete(response);
+    }
+
+
+    /**
+     * Function to execute a group of transactions against the slave
+     * device.  This implementation executes them one after the other,
+     * transports that can have several requests outstanding at once
+     * override this to pipeline the requests.  A boolean is returned
+     * indicating if every transaction completed sucessfully.
+     *
+     * @param transactions The transactions to be executed.
+     * @return True if all of the transactions completed without error.
+     * @throws IOException
+     */
+    public boolean execute(ModbusTransaction[] transactions) throws IOException {
+	boolean retval = true;
+
+	for (int i=0; i<transactions.length; i++) {
+	    if (!execute(transactions[i])) {
+		retval = false;
+	    }
+	}
+
+	return retval;
+    }
+
+
+    /**
+     * Function to hand out the transaction ID for the next transaction
+     * executed by this master.  Serial transports carry no transaction
+     * ID, their responses always having an ID of 0, so this returns 0.
+     * Masters whose transport does carry the ID override this to hand
+     * out a different one for each transaction.
+     *
+     * @return The transaction ID to use.
+     */
+    protected int nextTransactionID() {
+	return 0;
+    }
+
+
+    // Send the request that has been prepared and wait for the response
+    private boolean transact() throws IOException {
+
+	// We must now send the request
+	if (!sendFrame(request)) {
+	    if (debug >= 2) {
+		log.debug("ModbusMaster: sendFrame failed!");
+	    }
+	    return false;
+	}
+
+	// First we must get the request....
+	if (!receiveFrame(response)) {
+	    if (debug >= 2) {
+		log.debug("ModbusMaster: receiveFrame failed!");
+	    }
+	    return false;
+	}
+
+	return true;
+    }
+
+
+    // Perform a READ_MULTIPLE_REGISTERS or READ_INPUT_REGISTERS
+    // transaction
+    private boolean readRegisters(byte function,
+				  int unitID,
+				  int reference,
+				  int length,
+				  int transID,
+				  int[] results)
+	throws IllegalArgumentException, IOException {
+
+	prepareReadRegisters(request, function, unitID, reference, length, transID);
+
+	if (!transact()) {
+	    return false;
+	}
+
+	if (checkResponse(response, function, unitID, transID) != RESPONSE_VALID) {
+	    return false;
+	}
+
+	return parseReadRegisters(response, length, results);
+    }
+
+
+    // Perform a READ_COILS or READ_INPUT_DISCRETES transaction
+    private boolean readBits(byte function,
+			     int unitID,
+			     int reference,
+			     int length,
+			     int transID,
+			     boolean[] results)
+	throws IllegalArgumentException, IOException {
+
+	prepareReadCoils(request, function, unitID, reference, length, transID);
+
+	if (!transact()) {
+	    return false;
+	}
+
+	if (checkResponse(response, function, unitID, transID) != RESPONSE_VALID) {
+	    return false;
+	}
+
+	if (!checkReadCoils(response, length)) {
+	    return false;
+	}
+
+	unpackCoils(response.buff, 3, length, results);
+	return true;
+    }
+
+
+    // Check that the values used to build a query are in range
+    static void checkArguments(int unitID,
+			       int reference,
+			       int length,
+			       int transID)
+	throws IllegalArgumentException {
+
 	// The first thing we want to do is perform bounds
 	// checking on the input variables.
 	if (unitID > UINT8_MAX) {
 	    throw new IllegalArgumentException("Unit ID is out of range of 8 bit UINT");
 	}
-	
+
 	if (unitID < UINT8_MIN) {
 	    throw new IllegalArgumentException("Unit ID is out of range of 8 bit UINT");
 	}
-	
+
 	if (reference > UINT16_MAX) {
 	    throw new IllegalArgumentException("Reference number is out of range of 16 bit UINT");
 	}
-	
+
 	if (reference < UINT16_MIN) {
 	    throw new IllegalArgumentException("Reference number is out of range of 16 bit UINT");
 	}
-	
+
 	if (length > UINT16_MAX) {
 	    throw new IllegalArgumentException("Length is out of range of 16 bit UINT");
 	}
-	
+
 	if (length < (UINT16_MIN+1)) {
 	    throw new IllegalArgumentException("Length is out of range of 16 bit UINT or is zero");
 	}
-	
+
 	if (transID > UINT16_MAX) {
 	    throw new IllegalArgumentException("Transaction ID is out of range of 16 bit UINT");
 	}
-	
+
 	if (transID < (UINT16_MIN)) {
 	    throw new IllegalArgumentException("Transaction ID is out of range of 16 bit UINT or is zero");
 	}
-	
+    }
+
+
+    // Craft a READ_MULTIPLE_REGISTERS or READ_INPUT_REGISTERS query
+    // into the request message
+    static void prepareReadRegisters(ModbusMessage request,
+				     byte function,
+				     int unitID,
+				     int reference,
+				     int length,
+				     int transID)
+	throws IllegalArgumentException {
+
+	checkArguments(unitID, reference, length, transID);
+
+	// Now that we know that the values are in range we must
+	// craft the query, which will hvae the following format
+	// byte 0 = unit identifier
+	// byte 1 = function code
+	// byte 2 = high byte of reference number
+	// byte 3 = low byte of reference number
+	// byte 4 = high byte of word count
+	// byte 5 = low byte of word count
+	request.buff[0] = (byte) ((unitID >> 0) & 0xFF);
+	request.buff[1] = function;
+	request.buff[2] = (byte) ((reference >> 8) & 0xFF);
+	request.buff[3] = (byte) ((reference >> 0) & 0xFF);
+	request.buff[4] = (byte) ((length >> 8) & 0xFF);
+	request.buff[5] = (byte) ((length >> 0) & 0xFF);
+
+	// Set the snegth of the request to 6
+	request.length = 6;
+
+	// Se the transaction ID
+	request.transID = transID;
+    }
+
+
+    // Craft a WRITE_MULTIPLE_REGISTERS query into the request message
+    static void prepareWriteMultipleRegisters(ModbusMessage request,
+					      int unitID,
+					      int reference,
+					      int length,
+					      int transID,
+					      int[] values)
+	throws IllegalArgumentException {
+
+	checkArguments(unitID, reference, length, transID);
+
+	if (length > MAX_WRITE_REGISTERS) {
+	    throw new IllegalArgumentException("Length is too long for a single message");
+	}
+
 	// Now that we know that the values are in range we must
 	// craft the query, which will have the following format
 	// byte 0 = unit identifier
@@ -579,7 +798,7 @@ public class ModbusMaster extends Modbus {
 	// byte 2 = high byte of reference number
 	// byte 3 = low byte of reference number
 	// byte 4 = high byte of word count
-	// byte 5 = low byte of word count	
+	// byte 5 = low byte of word count
 	// byte 6 = bytes to follow
 	// byte 7+2n = high byte of word n
 	// byte 8+2n = low byte of word n
@@ -595,118 +814,400 @@ public class ModbusMaster extends Modbus {
 	for (int i=0; i<length; i++) {
 	    request.buff[7+(2*i)] = (byte) ((values[i] >> 8) & 0xFF);
 	    request.buff[8+(2*i)] = (byte) ((values[i] >> 0) & 0xFF);
-	} 
-	
-	// Set the length of the request to 6
+	}
+
+	// Set the length of the request
 	request.length = 7 + 2*length;
 
 	// Se the transaction ID
 	request.transID = transID;
-	
-	// We must now send the request
-	if (!sendFrame(request)) {
-	    if (debug >= 2) {
-		log.debug("ModbusMaster: sendFrame failed!");
-	    }			
-	    return false;
-	}
-	
-	// First we must get the request....
-	if (!receiveFrame(response)) {
-	    if (debug >= 2) {
-		log.debug("ModbusMaster: receiveFrame failed!");
-	    }			
-	    return false;
-	}
-	
-	// We must now start to parse the response
-	
-	// The response must be at least 3 bytes long 
+    }
+
+
+    // Check the common part of a response against the query that was
+    // sent.  Returns RESPONSE_VALID if the response can be parsed,
+    // RESPONSE_INVALID if it is malformed or not ours, otherwise the
+    // Modbus exception code the slave replied with.
+    static int checkResponse(ModbusMessage response,
+			     byte function,
+			     int unitID,
+			     int transID) {
+
+	// The response must be at least 3 bytes long
 	// (in the case of an exception, so make sure it is)
 	if (response.length < 3) {
 	    if (debug >= 2) {
 		log.debug("ModbusMaster: Invalid response length");
-	    }			
-	    return false;
+	    }
+	    return RESPONSE_INVALID;
 	}
-	
+
 	// Check that the request actually
 	// has the correct transaction ID
 	if (response.transID != transID) {
 	    if (debug >= 2) {
 		log.debug("ModbusMaster: Incorrect response transaction ID");
-	    }			
-	    return false;
+	    }
+	    return RESPONSE_INVALID;
 	}
-	
+
 	// Check that the request actually
 	// has the correct unit identifier
 	if (response.buff[0] != ((byte)((unitID >> 0) & 0xFF))) {
 	    if (debug >= 2) {
 		log.debug("ModbusMaster: Incorrect unit ID");
-	    }			
-	    return false;
+	    }
+	    return RESPONSE_INVALID;
 	}
-	
+
 	// For an exception
-	if (response.buff[1] == (WRITE_MULTIPLE_REGISTERS & EXCEPTION_MODIFIER)) {
+	if (response.buff[1] == (byte) (function | EXCEPTION_MODIFIER)) {
 	    if (debug >= 2) {
-		log.debug("ModbusMaster: Modbus Exception");
-	    }			
-	    return false;
+		log.debug("ModbusMaster: Modbus Exception " + ByteUtils.toHex(response.buff[2]));
+	    }
+	    if (response.buff[2] == 0) {
+		return RESPONSE_INVALID;
+	    }
+	    return response.buff[2] & 0xFF;
 	}
-	
+
 	// Check that the request actually
 	// has the correct function code
-	if (response.buff[1] != WRITE_MULTIPLE_REGISTERS) {
+	if (response.buff[1] != function) {
 	    if (debug >= 3) {
 		log.debug("ModbusMaster: Incorrect return function code");
-	    }			
+	    }
+	    return RESPONSE_INVALID;
+	}
+
+	return RESPONSE_VALID;
+    }
+
+
+    // Parse the register values out of a READ_MULTIPLE_REGISTERS
+    // or READ_INPUT_REGISTERS response
+    static boolean parseReadRegisters(ModbusMessage response,
+				      int length,
+				      int[] results) {
+
+	// Now check the expected length, based on the
+	// number of registers we requested and the
+	// byte count to follow value
+	if (response.length != (3+(response.buff[2] & 0xFF))) {
+	    if (debug >= 3) {
+		log.debug("ModbusMaster: Invalid length - bytes to follow");
+	    }
 	    return false;
 	}
-	
+	if (response.length != (3+2*length)) {
+	    if (debug >= 3) {
+		log.debug("ModbusMaster: Invalid length - requested registers");
+	    }
+	    return false;
+	}
+
+	// At this stage we now know that we havea  valid response and all
+	// we are required to do is parse the register values.
+	for (int i=0; i<length; i++) {
+	    results[i] = ( ( (response.buff[3+2*i] << 8) & 0xff00) | ( (response.buff[4+2*i] << 0)  & 0x00ff) ) & 0xFFFF;
+	}
+
+	// Assuming this worked and did not thow an
+	// array index out o fbounds exception then we
+	// will return true.
+	return true;
+    }
+
+
+    // Check the body of a WRITE_MULTIPLE_REGISTERS or
+    // WRITE_MULTIPLE_COILS response
+    static boolean parseWriteMultiple(ModbusMessage response,
+				      int reference,
+				      int length) {
+
 	// We expect the response to be
 	// byte 0 = unit ID
 	// byte 1 = function
 	// byte 2 = high byte of reference
 	// byte 3 = low byte of reference
-	// byte 4 = high byte of word count
-	// byte 5 = low byte of word count
+	// byte 4 = high byte of count
+	// byte 5 = low byte of count
 	//
 	// Now check the expected length, which we
 	// expect to be 6
 	if (response.length != 6) {
 	    if (debug >= 3) {
-		log.debug("ModbusMaster: Invalid length - requested registers");
-	    }			
+		log.debug("ModbusMaster: Invalid length - write response");
+	    }
 	    return false;
 	}
 
 	// Check that the reference number
-	if (reference != ((response.buff[2] << 8) + (response.buff[3] << 0) & 0xFFFF)) {
+	if (reference != (((response.buff[2] & 0xFF) << 8) | (response.buff[3] & 0xFF))) {
 	    if (debug >= 3) {
 		log.debug("ModbusMaster: Incorrect return reference number");
-	    }			
+	    }
 	    return false;
 	}
 
-	// Check that the word count
-	if (length != ((response.buff[4] << 8) + (response.buff[5] << 0) & 0xFFFF )) {
+	// Check that the count
+	if (length != (((response.buff[4] & 0xFF) << 8) | (response.buff[5] & 0xFF))) {
 	    if (debug >= 3) {
-		log.debug("ModbusMaster: Incorrect return word count");
-	    }			
+		log.debug("ModbusMaster: Incorrect return count");
+	    }
 	    return false;
 	}
 
-	// Assuming this worked and did not thow an 
+	// Assuming this worked and did not thow an
 	// array index out of  bounds exception then we
 	// will return true.
 	return true;
-    }    
+    }
 
 
-}
+    // Craft a READ_COILS or READ_INPUT_DISCRETES query into the
+    // request message
+    static void prepareReadCoils(ModbusMessage request,
+				 byte function,
+				 int unitID,
+				 int reference,
+				 int length,
+				 int transID)
+	throws IllegalArgumentException {
+
+	if (length > MAX_READ_COILS) {
+	    throw new IllegalArgumentException("Length is too long for a single message");
+	}
+
+	// The query has the same format as a read of registers
+	prepareReadRegisters(request, function, unitID, reference, length, transID);
+    }
+
+
+    // Craft a WRITE_COIL query into the request message
+    static void prepareWriteCoil(ModbusMessage request,
+				 int unitID,
+				 int reference,
+				 boolean value,
+				 int transID)
+	throws IllegalArgumentException {
+
+	// The value is COIL_ON or COIL_OFF followed by 0
+	prepareWriteSingle(request, WRITE_COIL, unitID, reference, value ? (COIL_ON & 0xFF) << 8 : 0, transID);
+    }
+
+
+    // Craft a WRITE_SINGLE_REGISTER query into the request message
+    static void prepareWriteSingleRegister(ModbusMessage request,
+					   int unitID,
+					   int reference,
+					   int value,
+					   int transID)
+	throws IllegalArgumentException {
+
+	prepareWriteSingle(request, WRITE_SINGLE_REGISTER, unitID, reference, value, transID);
+    }
+
+
+    // Craft a WRITE_COIL or WRITE_SINGLE_REGISTER query into the
+    // request message, both have the same fixed size
+    private static void prepareWriteSingle(ModbusMessage request,
+					   byte function,
+					   int unitID,
+					   int reference,
+					   int value,
+					   int transID)
+	throws IllegalArgumentException {
+
+	checkArguments(unitID, reference, 1, transID);
+
+	// The query has the following format
+	// byte 0 = unit identifier
+	// byte 1 = function code
+	// byte 2 = high byte of reference number
+	// byte 3 = low byte of reference number
+	// byte 4 = high byte of value
+	// byte 5 = low byte of value
+	request.buff[0] = (byte) ((unitID >> 0) & 0xFF);
+	request.buff[1] = function;
+	request.buff[2] = (byte) ((reference >> 8) & 0xFF);
+	request.buff[3] = (byte) ((reference >> 0) & 0xFF);
+	request.buff[4] = (byte) ((value >> 8) & 0xFF);
+	request.buff[5] = (byte) ((value >> 0) & 0xFF);
+
+	request.length = 6;
+	request.transID = transID;
+    }
+
+
+    // Craft the header of a WRITE_MULTIPLE_COILS query into the
+    // request message, the packed coils must then be put in from
+    // byte 7 on
+    static void prepareWriteMultipleCoils(ModbusMessage request,
+					  int unitID,
+					  int reference,
+					  int length,
+					  int transID)
+	throws IllegalArgumentException {
+
+	int bytes = (length + 7) >>> 3;
+
+	checkArguments(unitID, reference, length, transID);
+
+	if (length > MAX_WRITE_COILS) {
+	    throw new IllegalArgumentException("Length is too long for a single message");
+	}
+
+	// The query has the following format
+	// byte 0 = unit identifier
+	// byte 1 = function code
+	// byte 2 = high byte of reference number
+	// byte 3 = low byte of reference number
+	// byte 4 = high byte of coil count
+	// byte 5 = low byte of coil count
+	// byte 6 = bytes to follow
+	// byte 7+n = coils 8n to 8n+7, the first in the lowest bit
+	request.buff[0] = (byte) ((unitID >> 0) & 0xFF);
+	request.buff[1] = WRITE_MULTIPLE_COILS;
+	request.buff[2] = (byte) ((reference >> 8) & 0xFF);
+	request.buff[3] = (byte) ((reference >> 0) & 0xFF);
+	request.buff[4] = (byte) ((length >> 8) & 0xFF);
+	request.buff[5] = (byte) ((length >> 0) & 0xFF);
+	request.buff[6] = (byte) (bytes & 0xFF);
+
+	request.length = 7 + bytes;
+	request.transID = transID;
+    }
+
+
+    // Check the length of a READ_COILS or READ_INPUT_DISCRETES
+    // response, the packed coils then start at byte 3
+    static boolean checkReadCoils(ModbusMessage response, int length) {
 
+	if (response.length != (3+(response.buff[2] & 0xFF))) {
+	    if (debug >= 3) {
+		log.debug("ModbusMaster: Invalid length - bytes to follow");
+	    }
+	    return false;
+	}
+	if (response.length != (3+((length+7) >>> 3))) {
+	    if (debug >= 3) {
+		log.debug("ModbusMaster: Invalid length - requested coils");
+	    }
+	    return false;
+	}
+	return true;
+    }
+
+
+    // Check the body of a WRITE_COIL response, which echoes the query
+    static boolean parseWriteCoil(ModbusMessage response,
+				  int reference,
+				  boolean value) {
+	return parseWriteSingle(response, reference, value ? (COIL_ON & 0xFF) << 8 : 0);
+    }
+
+
+    // Check the body of a WRITE_COIL or WRITE_SINGLE_REGISTER
+    // response, which echoes the query
+    static boolean parseWriteSingle(ModbusMessage response,
+				    int reference,
+				    int value) {
+
+	if (response.length != 6) {
+	    if (debug >= 3) {
+		log.debug("ModbusMaster: Invalid length - write response");
+	    }
+	    return false;
+	}
+
+	if (reference != (((response.buff[2] & 0xFF) << 8) | (response.buff[3] & 0xFF))) {
+	    if (debug >= 3) {
+		log.debug("ModbusMaster: Incorrect return reference number");
+	    }
+	    return false;
+	}
+
+	if ((value & 0xFFFF) != (((response.buff[4] & 0xFF) << 8) | (response.buff[5] & 0xFF))) {
+	    if (debug >= 3) {
+		log.debug("ModbusMaster: Incorrect return value");
+	    }
+	    return false;
+	}
+
+	return true;
+    }
+
+
+    // Pack coils into bytes, 8 to a byte with the first coil in the
+    // lowest bit.  Returns the number of bytes written
+    static int packCoils(boolean[] values, int length, byte[] buff, int offset) {
+	int bytes = (length + 7) >>> 3;
+	int bits;
+	int n;
+
+	for (int i=0; i<bytes; i++) {
+	    bits = 0;
+	    n = Math.min(8, length - 8*i);
+	    for (int j=0; j<n; j++) {
+		if (values[8*i+j]) {
+		    bits |= 1 << j;
+		}
+	    }
+	    buff[offset+i] = (byte) bits;
+	}
+	return bytes;
+    }
+
+
+    // Pack coils held as ints, any value other than zero being on
+    static int packCoils(int[] values, int length, byte[] buff, int offset) {
+	int bytes = (length + 7) >>> 3;
+	int bits;
+	int n;
+
+	for (int i=0; i<bytes; i++) {
+	    bits = 0;
+	    n = Math.min(8, length - 8*i);
+	    for (int j=0; j<n; j++) {
+		if (values[8*i+j] != 0) {
+		    bits |= 1 << j;
+		}
+	    }
+	    buff[offset+i] = (byte) bits;
+	}
+	return bytes;
+    }
+
+
+    // Unpack coils from bytes, 8 to a byte with the first coil in
+    // the lowest bit
+    static void unpackCoils(byte[] buff, int offset, int length, boolean[] values) {
+	int bits = 0;
+
+	for (int i=0; i<length; i++) {
+	    if ((i & 7) == 0) {
+		bits = buff[offset + (i >>> 3)];
+	    }
+	    values[i] = (bits & (1 << (i & 7))) != 0;
+	}
+    }
+
+
+    // Unpack coils into ints, 1 for on and 0 for off
+    static void unpackCoils(byte[] buff, int offset, int length, int[] values) {
+	int bits = 0;
+
+	for (int i=0; i<length; i++) {
+	    if ((i & 7) == 0) {
+		bits = buff[offset + (i >>> 3)];
+	    }
+	    values[i] = (bits >>> (i & 7)) & 1;
+	}
+    }
+
+
+}
 
 
 
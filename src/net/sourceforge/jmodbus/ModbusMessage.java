@@ -69,6 +69,11 @@ public class ModbusMessage {
      * the TCP implementations.
      */
     public int transID;
+
+    // The pool this message belongs to, if any, and the number of
+    // references to it held by users of the pool
+    ModbusMessagePool pool;
+    int references;
     
     /**
      * Class constructor that will allocate memory for the byte buffer
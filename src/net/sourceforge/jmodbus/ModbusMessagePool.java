@@ -0,0 +1,155 @@
+/*
+ * ModbusMessagePool.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+/**
+ * Class to keep a pool of ModbusMessage objects for reuse, so that code
+ * passing messages between threads does not have to allocate a new one
+ * for each transaction.  A message is taken from the pool with acquire
+ * and handed back with release once it is no longer needed.  A message
+ * that is to be handed on to more than one user can be retained, each
+ * user then releasing it.
+ * <P>
+ * The pool holds at most the given number of idle messages.  When it is
+ * empty acquire allocates a new message, and when it is full a released
+ * message is left to the garbage collector, so the pool never blocks.
+ * <P>
+ * When assertions are enabled the reference counts are checked, so a
+ * message released more times than it was acquired, or used after it
+ * was handed back, is found straight away rather than corrupting a
+ * later transaction.
+ */
+public class ModbusMessagePool {
+
+    // The idle messages, a stack so the most recently used
+    // message is handed out again
+    private ModbusMessage[] idle;
+    private int count = 0;
+
+    // Statistics
+    private long allocated = 0;
+
+    /**
+     * Class constructor.
+     *
+     * @param size The largest number of idle messages to keep.
+     */
+    public ModbusMessagePool(int size) {
+	if (size < 1) {
+	    throw new IllegalArgumentException("Pool must hold at least 1 message");
+	}
+	idle = new ModbusMessage[size];
+    }
+
+    /**
+     * Function to take a message from the pool.  The message holds
+     * whatever was left in it by its last user.
+     *
+     * @return The message.
+     */
+    public synchronized ModbusMessage acquire() {
+	ModbusMessage msg;
+
+	if (count > 0) {
+	    msg = idle[--count];
+	    idle[count] = null;
+	    assert msg.references == 0 : "Idle message is still referenced";
+	}
+	else {
+	    msg = new ModbusMessage();
+	    msg.pool = this;
+	    allocated++;
+	}
+
+	msg.references = 1;
+	return msg;
+    }
+
+    /**
+     * Function to add a reference to a message taken from the pool, so
+     * that it is only handed back when it has been released once more.
+     *
+     * @param msg The message.
+     */
+    public synchronized void retain(ModbusMessage msg) {
+	assert msg.pool == this : "Message does not belong to this pool";
+	assert msg.references > 0 : "Message has already been released";
+
+	msg.references++;
+    }
+
+    /**
+     * Function to release a reference to a message taken from the pool.
+     * When the last reference is released the message goes back to the
+     * pool and must no longer be used.
+     *
+     * @param msg The message.
+     */
+    public synchronized void release(ModbusMessage msg) {
+	assert msg.pool == this : "Message does not belong to this pool";
+	assert msg.references > 0 : "Message has already been released";
+
+	if (--msg.references > 0) {
+	    return;
+	}
+
+	if (count < idle.length) {
+	    idle[count++] = msg;
+	}
+    }
+
+    /**
+     * Get the number of idle messages in the pool.
+     *
+     * @return The number of idle messages.
+     */
+    public synchronized int getIdle() {
+	return count;
+    }
+
+    /**
+     * Get the number of messages the pool has had to allocate.  Once
+     * the pool has warmed up this should stop growing.
+     *
+     * @return The number of messages allocated.
+     */
+    public synchronized long getAllocated() {
+	return allocated;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * ModbusPagedRegisterBank.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.util.Arrays;
+
+/**
+ * Class to represent the registers of a Modbus device that uses only a
+ * few scattered parts of a large address space.  The registers are kept
+ * in fixed size pages that are only allocated when a register in them is
+ * first written, so a bank covering the full address space costs little
+ * more than the registers actually used.
+ * <P>
+ * Registers in pages that have not been allocated read as the default
+ * value, which is zero unless set otherwise.  Alternatively the bank
+ * can be made strict, so that the slave answers requests touching such
+ * pages with ILLEGAL_DATA_ADDRESS, as a real device with gaps in its
+ * register map would.  The pages of a strict bank are allocated by the
+ * application, with populate or by setting registers, and are never
+ * allocated by a Modbus request.
+ * <P>
+ * All the methods are synchronized, so a bank may be shared between
+ * threads and blocks of registers are read and written atomically.
+ */
+public class ModbusPagedRegisterBank extends ModbusRegisterBank {
+
+    /**
+     * The number of registers in a page.
+     */
+    public static final int PAGE_SIZE = 128;
+
+    // Shift and mask to split an address into page and index
+    private static final int PAGE_SHIFT = 7;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // The number of registers in this bank
+    private int register_size;
+
+    // The pages, null until they are allocated
+    private int[][] pages;
+    private int allocated = 0;
+
+    // What unallocated registers read as, and if requests to
+    // them are to be refused
+    private int defaultValue = 0;
+    private boolean strict = false;
+
+    /**
+     * Class constructor.  No pages are allocated until registers in
+     * them are written.
+     *
+     * @param register_size The number of registers in this bank.
+     */
+    public ModbusPagedRegisterBank(int register_size) {
+	this.register_size = limitSize(register_size);
+	pages = new int[(this.register_size + PAGE_MASK) >>> PAGE_SHIFT][];
+    }
+
+    /**
+     * Set the value that registers in unallocated pages read as.  New
+     * pages are also filled with this value.
+     *
+     * @param defaultValue The default register value.
+     */
+    public synchronized void setDefaultValue(int defaultValue) {
+	this.defaultValue = defaultValue;
+    }
+
+    /**
+     * Set whether Modbus requests touching unallocated pages are to be
+     * answered with ILLEGAL_DATA_ADDRESS.
+     *
+     * @param strict True to refuse requests to unallocated pages.
+     */
+    public synchronized void setStrict(boolean strict) {
+	this.strict = strict;
+    }
+
+    /**
+     * Function to allocate the pages holding a block of registers, so
+     * that they exist in a strict bank.  The registers keep their values
+     * if their pages are already allocated.
+     *
+     * @param index The address of the desired starting register (note
+     *              that this is a zero based index)
+     * @param length The number of registers.
+     */
+    public synchronized void populate(int index, int length) {
+	checkRange(index, length);
+	for (int i=index >>> PAGE_SHIFT; length > 0 && i<=(index+length-1) >>> PAGE_SHIFT; i++) {
+	    page(i);
+	}
+    }
+
+    /**
+     * Get the number of pages that have been allocated.
+     *
+     * @return The number of allocated pages.
+     */
+    public synchronized int getAllocatedPages() {
+	return allocated;
+    }
+
+    public int getNumberRegisters() {
+	return register_size;
+    }
+
+    public synchronized boolean hasRegisters(int index, int length) {
+	if (!super.hasRegisters(index, length)) {
+	    return false;
+	}
+	if (strict) {
+	    for (int i=index >>> PAGE_SHIFT; length > 0 && i<=(index+length-1) >>> PAGE_SHIFT; i++) {
+		if (pages[i] == null) {
+		    return false;
+		}
+	    }
+	}
+	return true;
+    }
+
+    public synchronized int getRegister(int index) {
+	checkRange(index, 1);
+	int[] page = pages[index >>> PAGE_SHIFT];
+	return page == null ? defaultValue : page[index & PAGE_MASK];
+    }
+
+    public synchronized void setRegister(int index, int value) {
+	checkRange(index, 1);
+	page(index >>> PAGE_SHIFT)[index & PAGE_MASK] = value;
+    }
+
+    public synchronized void getRegisters(int index, int length, int[] regs, int offset) {
+	int[] page;
+	int n;
+
+	checkRange(index, length);
+
+	// Copy a page at a time
+	while (length > 0) {
+	    n = Math.min(length, PAGE_SIZE - (index & PAGE_MASK));
+	    page = pages[index >>> PAGE_SHIFT];
+	    if (page == null) {
+		for (int i=0; i<n; i++) {
+		    regs[offset+i] = defaultValue;
+		}
+	    }
+	    else {
+		System.arraycopy(page, index & PAGE_MASK, regs, offset, n);
+	    }
+	    index += n;
+	    offset += n;
+	    length -= n;
+	}
+    }
+
+    public synchronized int getRegisters(int index, int length, byte[] buff, int offset) {
+	int[] page;
+	int value;
+
+	checkRange(index, length);
+
+	for (int i=0; i<length; i++) {
+	    page = pages[(index+i) >>> PAGE_SHIFT];
+	    value = page == null ? defaultValue : page[(index+i) & PAGE_MASK];
+	    buff[offset+2*i] = (byte) ((value >>> 8) & 0xFF);
+	    buff[offset+2*i+1] = (byte) (value & 0xFF);
+	}
+	return 2*length;
+    }
+
+    public synchronized void setRegister(int index, int[] regs) {
+	int done = 0;
+	int n;
+
+	checkRange(index, regs.length);
+
+	// Copy a page at a time
+	while (done < regs.length) {
+	    n = Math.min(regs.length - done, PAGE_SIZE - (index & PAGE_MASK));
+	    System.arraycopy(regs, done, page(index >>> PAGE_SHIFT), index & PAGE_MASK, n);
+	    index += n;
+	    done += n;
+	}
+    }
+
+    public synchronized void setRegisters(int index, int length, byte[] buff, int offset) {
+	checkRange(index, length);
+
+	for (int i=0; i<length; i++) {
+	    page((index+i) >>> PAGE_SHIFT)[(index+i) & PAGE_MASK] =
+		((buff[offset+2*i] & 0xFF) << 8) | (buff[offset+2*i+1] & 0xFF);
+	}
+    }
+
+    // Get a page, allocating it if it has not been
+    private int[] page(int i) {
+	if (pages[i] == null) {
+	    pages[i] = new int[PAGE_SIZE];
+	    if (defaultValue != 0) {
+		Arrays.fill(pages[i], defaultValue);
+	    }
+	    allocated++;
+	}
+	return pages[i];
+    }
+}
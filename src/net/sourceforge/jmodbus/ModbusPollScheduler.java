@@ -0,0 +1,380 @@
+/*
+ * ModbusPollScheduler.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class to poll groups of registers at fixed scan rates.  Each poll group
+ * reads the ranges of a ModbusReadPlanner with a ModbusMaster, at its own
+ * scan rate, on a small pool of threads shared by all the groups.
+ * <P>
+ * The polls of a group are scheduled against a fixed timeline, so the
+ * scan rate does not drift however long each poll takes.  A poll that
+ * takes longer than the scan rate causes the polls that should have
+ * started meanwhile to be skipped, rather than run back to back, and
+ * these are counted as overruns.  Each group keeps statistics of its
+ * cycle time, overruns and jitter, the lateness of each poll against the
+ * timeline, so pollers can be sized against the real load.
+ * <P>
+ * Masters are not safe to be used by more than one thread at a time, so
+ * each poll holds the lock of its master.  Several groups can share a
+ * master, and other threads can use it as well, as long as they also
+ * synchronize on it.
+ */
+public class ModbusPollScheduler {
+
+	private static final Logger log = LoggerFactory.getLogger(ModbusPollScheduler.class.getName());
+
+    // The threads the polls are run on
+    private ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Class constructor that starts the given number of threads.
+     *
+     * @param threads The number of threads to share the polls between.
+     */
+    public ModbusPollScheduler(int threads) {
+	if (threads < 1) {
+	    throw new IllegalArgumentException("Number of threads must be at least 1");
+	}
+
+	executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+		private AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable task) {
+		    Thread thread = new Thread(task, "ModbusPollScheduler-" + count.getAndIncrement());
+
+		    thread.setDaemon(true);
+		    return thread;
+		}
+	    });
+	executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Function to add a poll group and start polling it.  The first poll
+     * is made straight away.
+     *
+     * @param name The name of the group, used when logging.
+     * @param master The master to poll with.
+     * @param planner The planner holding the ranges to poll.
+     * @param period The scan rate of the group in milliseconds.
+     * @param listener The listener to tell after each poll, or null.
+     * @return The poll group.
+     */
+    public PollGroup addGroup(String name,
+			      ModbusMaster master,
+			      ModbusReadPlanner planner,
+			      long period,
+			      ModbusPollListener listener) {
+	if (period < 1) {
+	    throw new IllegalArgumentException("Period must be at least 1 ms");
+	}
+
+	PollGroup group = new PollGroup(name, master, planner, period, listener);
+
+	// The timeline starts before the executor's, so no poll
+	// ever looks early against it
+	group.origin = System.nanoTime();
+	group.future = executor.scheduleAtFixedRate(group, 0, period, TimeUnit.MILLISECONDS);
+	return group;
+    }
+
+    /**
+     * Function to stop polling a group.  A poll of the group that is
+     * under way is allowed to finish.
+     *
+     * @param group The group to stop polling.
+     */
+    public void removeGroup(PollGroup group) {
+	group.future.cancel(false);
+    }
+
+    /**
+     * Function to stop polling all the groups and stop the threads.
+     */
+    public void shutdown() {
+	executor.shutdown();
+    }
+
+    /**
+     * A group of registers polled at a fixed scan rate, and the
+     * statistics of its polling.  All times are in nanoseconds.
+     */
+    public static class PollGroup implements Runnable {
+
+	private String name;
+	private ModbusMaster master;
+	private ModbusReadPlanner planner;
+	private long period;
+	private ModbusPollListener listener;
+	private ScheduledFuture<?> future;
+
+	// The timeline the polls are scheduled against, and the
+	// index on it of the next poll
+	private long origin;
+	private long cycle = 0;
+
+	// Statistics
+	private long cycles;
+	private long failures;
+	private long overruns;
+	private long lastCycleTime;
+	private long maxCycleTime;
+	private long totalCycleTime;
+	private long lastJitter;
+	private long maxJitter;
+	private long totalJitter;
+
+	PollGroup(String name,
+		  ModbusMaster master,
+		  ModbusReadPlanner planner,
+		  long period,
+		  ModbusPollListener listener) {
+	    this.name = name;
+	    this.master = master;
+	    this.planner = planner;
+	    this.period = TimeUnit.MILLISECONDS.toNanos(period);
+	    this.listener = listener;
+	}
+
+	/**
+	 * The run method called by the scheduler for each poll.
+	 */
+	public void run() {
+	    boolean success = false;
+	    long start = System.nanoTime();
+	    long slot;
+
+	    // Work out where on the timeline we are.  If we are running
+	    // after the next poll was due then the polls in between
+	    // have overrun, and a late run catching up on a poll that
+	    // was skipped is not needed at all
+	    slot = (start - origin) / period;
+	    if (slot < cycle) {
+		return;
+	    }
+
+	    try {
+		synchronized (master) {
+		    success = planner.execute(master);
+		}
+	    }
+	    catch (IOException ex) {
+		log.warn("ModbusPollScheduler: " + name + ": " + ex.getMessage());
+	    }
+	    catch (RuntimeException ex) {
+		// Must not escape, or the executor would stop polling us
+		log.error("ModbusPollScheduler: " + name + ": " + ex.getMessage(), ex);
+	    }
+
+	    record(slot, start, System.nanoTime() - start, success);
+
+	    if (listener != null) {
+		try {
+		    listener.polled(this, success);
+		}
+		catch (RuntimeException ex) {
+		    log.error("ModbusPollScheduler: " + name + ": " + ex.getMessage(), ex);
+		}
+	    }
+	}
+
+	// Record the statistics of a poll
+	private synchronized void record(long slot, long start, long time, boolean success) {
+	    overruns += slot - cycle;
+	    cycle = slot + 1;
+
+	    cycles++;
+	    if (!success) {
+		failures++;
+	    }
+
+	    lastCycleTime = time;
+	    maxCycleTime = Math.max(maxCycleTime, time);
+	    totalCycleTime += time;
+
+	    lastJitter = start - origin - slot * period;
+	    maxJitter = Math.max(maxJitter, lastJitter);
+	    totalJitter += lastJitter;
+
+	    if (Modbus.debug >= 3) {
+		log.debug("ModbusPollScheduler: " + name + " polled in " + time + " ns, jitter " + lastJitter + " ns");
+	    }
+	}
+
+	/**
+	 * Get the name of the group.
+	 *
+	 * @return The name.
+	 */
+	public String getName() {
+	    return name;
+	}
+
+	/**
+	 * Get the planner holding the ranges polled.
+	 *
+	 * @return The planner.
+	 */
+	public ModbusReadPlanner getPlanner() {
+	    return planner;
+	}
+
+	/**
+	 * Get the scan rate of the group.
+	 *
+	 * @return The period between polls in nanoseconds.
+	 */
+	public long getPeriod() {
+	    return period;
+	}
+
+	/**
+	 * Get the number of polls made.
+	 *
+	 * @return The number of polls.
+	 */
+	public synchronized long getCycles() {
+	    return cycles;
+	}
+
+	/**
+	 * Get the number of polls that did not read all the ranges.
+	 *
+	 * @return The number of failed polls.
+	 */
+	public synchronized long getFailures() {
+	    return failures;
+	}
+
+	/**
+	 * Get the number of polls skipped because an earlier poll was
+	 * still running when they were due.
+	 *
+	 * @return The number of overruns.
+	 */
+	public synchronized long getOverruns() {
+	    return overruns;
+	}
+
+	/**
+	 * Get the time the last poll took.
+	 *
+	 * @return The cycle time in nanoseconds.
+	 */
+	public synchronized long getLastCycleTime() {
+	    return lastCycleTime;
+	}
+
+	/**
+	 * Get the longest time a poll has taken.
+	 *
+	 * @return The cycle time in nanoseconds.
+	 */
+	public synchronized long getMaxCycleTime() {
+	    return maxCycleTime;
+	}
+
+	/**
+	 * Get the average time a poll has taken.
+	 *
+	 * @return The cycle time in nanoseconds.
+	 */
+	public synchronized long getMeanCycleTime() {
+	    return cycles == 0 ? 0 : totalCycleTime / cycles;
+	}
+
+	/**
+	 * Get how late the last poll started against its timeline.
+	 *
+	 * @return The jitter in nanoseconds.
+	 */
+	public synchronized long getLastJitter() {
+	    return lastJitter;
+	}
+
+	/**
+	 * Get the latest any poll has started against its timeline.
+	 *
+	 * @return The jitter in nanoseconds.
+	 */
+	public synchronized long getMaxJitter() {
+	    return maxJitter;
+	}
+
+	/**
+	 * Get how late polls have started on average against their
+	 * timeline.
+	 *
+	 * @return The jitter in nanoseconds.
+	 */
+	public synchronized long getMeanJitter() {
+	    return cycles == 0 ? 0 : totalJitter / cycles;
+	}
+
+	/**
+	 * Function to reset the statistics of the group.
+	 */
+	public synchronized void resetStatistics() {
+	    cycles = 0;
+	    failures = 0;
+	    overruns = 0;
+	    lastCycleTime = 0;
+	    maxCycleTime = 0;
+	    totalCycleTime = 0;
+	    lastJitter = 0;
+	    maxJitter = 0;
+	    totalJitter = 0;
+	}
+
+	public String toString() {
+	    return name;
+	}
+    }
+}
@@ -38,6 +38,8 @@
 
 package net.sourceforge.jmodbus;
 
+import javax.comm.SerialPort;
+
 /**
  * Class to implement a Modbus RTU Master device.  This class only 
  * defines what type of transport if to be used, all the work in 
@@ -61,4 +63,17 @@ public class ModbusRTUMaster extends ModbusMaster {
    public ModbusRTUMaster() {
 	super(rtuTransport);
     }
+
+    /**
+     * Constructor that uses the RTU transport over the supplied
+     * serial port, which must already be opened and set up.  The
+     * length of each response is worked out as it arrives, so the
+     * end of the frame is not waited for.
+     *
+     * @param port The serial port to communicate over.
+     */
+    public ModbusRTUMaster(SerialPort port) {
+	super(new ModbusRTUTransport(port));
+	((ModbusRTUTransport) transport).setReceiveMode(ModbusRTUTransport.RECEIVE_RESPONSES);
+    }
 }
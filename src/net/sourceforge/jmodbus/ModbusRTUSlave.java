@@ -38,6 +38,8 @@
 
 package net.sourceforge.jmodbus;
 
+import javax.comm.SerialPort;
+
 /**
  * Class to implement a Modbus RTU Slave device.  This class can run 
  * as a standalone thread (for it implements the Runnable interface) or 
@@ -69,4 +71,19 @@ public class ModbusRTUSlave extends ModbusSlave {
     public ModbusRTUSlave(int slaveAddress) {
 	super(rtuTransport, slaveAddress);
     }
+
+    /**
+     * Constructor that uses the RTU transport over the supplied
+     * serial port, which must already be opened and set up.  The
+     * length of each request is worked out as it arrives, so the end
+     * of the frame is not waited for.  The slave address of this
+     * device is also passed to it.
+     *
+     * @param slaveAddress The slave address of this device.
+     * @param port The serial port to communicate over.
+     */
+    public ModbusRTUSlave(int slaveAddress, SerialPort port) {
+	super(new ModbusRTUTransport(port), slaveAddress);
+	((ModbusRTUTransport) transport).setReceiveMode(ModbusRTUTransport.RECEIVE_REQUESTS);
+    }
 }
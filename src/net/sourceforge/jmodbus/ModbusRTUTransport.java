@@ -59,10 +59,36 @@ public class ModbusRTUTransport implements ModbusTransport {
     
     /**
      * The maximum length of a Modbus RTU message which is
-     * the maximum Modbus message length plus one byte for
+     * the maximum Modbus message length plus two bytes for
      * the CRC16.
      */
-    public static int MAX_RTU_MESSAGE_LENGTH = Modbus.MAX_MESSAGE_LENGTH + 1 ;
+    public static int MAX_RTU_MESSAGE_LENGTH = Modbus.MAX_MESSAGE_LENGTH + 2 ;
+
+    /**
+     * The minimum length of a Modbus RTU message, the slave
+     * address, function code and CRC16.
+     */
+    public static final int MIN_RTU_MESSAGE_LENGTH = 4;
+
+    /**
+     * Receive mode where the end of every frame is found by the line
+     * going quiet for the frame break time.
+     */
+    public static final int RECEIVE_SILENCE   = 0;
+
+    /**
+     * Receive mode for a slave, where the length of each request is
+     * worked out from its function code (and byte count) so the frame
+     * is finished as soon as its last byte arrives and the CRC checks.
+     */
+    public static final int RECEIVE_REQUESTS  = 1;
+
+    /**
+     * Receive mode for a master, where the length of each response is
+     * worked out from its function code (and byte count) so the frame
+     * is finished as soon as its last byte arrives and the CRC checks.
+     */
+    public static final int RECEIVE_RESPONSES = 2;
     
     /**
      * Interger for the value that represents the number of milli
@@ -95,6 +121,43 @@ public class ModbusRTUTransport implements ModbusTransport {
      */
     private InputStream in;
 
+    /**
+     * The buffers that frames are built in to be sent and
+     * received into.
+     */
+    private byte[] output_buffer = new byte[MAX_RTU_MESSAGE_LENGTH];
+    private byte[] input_buffer = new byte[MAX_RTU_MESSAGE_LENGTH];
+
+    /**
+     * Buffer that the rest of a frame too long to be received
+     * is read into, to find where it ends.
+     */
+    private byte[] discard_buffer = new byte[MAX_RTU_MESSAGE_LENGTH];
+
+    /**
+     * The time (from System.nanoTime) that the line last
+     * went quiet, so the frame seperator can be kept before
+     * the next frame is sent.
+     */
+    private long lastFrameEnd;
+
+    /**
+     * The number of milliseconds to wait for the start of a
+     * frame, 0 to wait forever.
+     */
+    private int timeout = 0;
+
+    /**
+     * How the end of a received frame is found.
+     */
+    private int receiveMode = RECEIVE_SILENCE;
+
+    /**
+     * The number of bytes at the start of the input buffer
+     * that arrived after the end of the last frame.
+     */
+    private int pending = 0;
+
     /**
      * Default constructor that will create it's own serial port
      * connection with the default port settings.
@@ -181,9 +244,11 @@ public class ModbusRTUTransport implements ModbusTransport {
                                           characterLength *
 					  1000 / port.getBaudRate() );
 
-	// Try and get the InputStream
+	// Try and get the InputStream.  Reads time out after the
+	// frame break time, which is how the end of a frame is found
 	try {
 	    port.setInputBufferSize(MAX_RTU_MESSAGE_LENGTH);
+	    port.enableReceiveTimeout(Math.max(frameBreakTime, 1));
 	    in = port.getInputStream();
 	}
 	catch (Exception ex) {
@@ -208,6 +273,74 @@ public class ModbusRTUTransport implements ModbusTransport {
 
     }
 
+    /**
+     * Constructor that uses a pair of streams instead of a serial port,
+     * for serial lines reached by other means, such as Modbus RTU carried
+     * over a TCP socket.  Reads from the input stream must return, or
+     * throw an InterruptedIOException, once the line has been quiet for
+     * the frame break time, as with a socket timeout.
+     *
+     * @param in The stream frames are received from.
+     * @param out The stream frames are sent to.
+     * @param frameBreakTime The number of milliseconds of silence that
+     *                       marks the end of a frame.
+     */
+    public ModbusRTUTransport(InputStream in, OutputStream out, int frameBreakTime) {
+	this.in = in;
+	this.out = out;
+	this.frameBreakTime = frameBreakTime;
+    }
+
+    /**
+     * Set the time to wait for the start of a frame when receiving.
+     * If it expires receiveFrame returns false.
+     *
+     * @param timeout The timeout in milliseconds, or 0 to wait forever.
+     */
+    public void setTimeout(int timeout) {
+	if (timeout < 0) {
+	    throw new IllegalArgumentException("Timeout must not be negative");
+	}
+	this.timeout = timeout;
+    }
+
+    /**
+     * Set how the end of a received frame is found.  In the
+     * RECEIVE_REQUESTS and RECEIVE_RESPONSES modes the length of the
+     * frame is worked out from the function code, so the frame is
+     * finished without waiting for the line to go quiet.  For function
+     * codes whose length is not known, or if the CRC does not check at
+     * the expected length, the silence is still waited for.
+     *
+     * @param receiveMode One of RECEIVE_SILENCE, RECEIVE_REQUESTS
+     *                    or RECEIVE_RESPONSES.
+     */
+    public void setReceiveMode(int receiveMode) {
+	if (receiveMode < RECEIVE_SILENCE || receiveMode > RECEIVE_RESPONSES) {
+	    throw new IllegalArgumentException("Unknown receive mode");
+	}
+	this.receiveMode = receiveMode;
+    }
+
+    /**
+     * Get how the end of a received frame is found.
+     *
+     * @return The receive mode.
+     */
+    public int getReceiveMode() {
+	return receiveMode;
+    }
+
+    /**
+     * Get the number of milliseconds of silence that marks the end of
+     * a frame.
+     *
+     * @return The frame break time.
+     */
+    public int getFrameBreakTime() {
+	return frameBreakTime;
+    }
+
     /**
      * Method to send a Modbus frame via the transport media.  The return 
      * status of the function indicates if the transmission sucedded.
@@ -218,51 +351,277 @@ public class ModbusRTUTransport implements ModbusTransport {
      * @return    Transmission sucess flag, to indicate if the transmission
      *            was sucessful.
      */
-    public boolean sendFrame(ModbusMessage msg) {
-	return false;
+    public boolean sendFrame(ModbusMessage msg) throws IOException {
+	int crc;
+	long wait;
+
+	// Print Message if in debug mode
+	if (Modbus.debug >= 3) {
+	    System.out.println("ModbusRTUTransport: Sending Frame.....");
+	}
+
+	// Copy the message and append the CRC, low byte first
+	System.arraycopy(msg.buff, 0, output_buffer, 0, msg.length);
+	crc = ModbusCRC16.calculate(msg.buff, 0, msg.length);
+	output_buffer[msg.length] = (byte) (crc & 0xFF);
+	output_buffer[msg.length+1] = (byte) ((crc >>> 8) & 0xFF);
+
+	// The line must be quiet for the frame break time
+	// before a new frame is started
+	wait = lastFrameEnd + frameBreakTime * 1000000L - System.nanoTime();
+	if (wait > 0) {
+	    try {
+		Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+	    }
+	    catch (InterruptedException ex) {
+		Thread.currentThread().interrupt();
+		return false;
+	    }
+	}
+
+	out.write(output_buffer, 0, msg.length+2);
+	out.flush();
+
+	// Print Message if in debug mode
+	if (Modbus.debug >= 4) {
+	    System.out.println(ByteUtils.toHex(output_buffer,msg.length+2));
+	}
+
+	return true;
     }
     
     /**
      * Method to receive a Modbus frame via the transport media.  The return 
      * value indicates the length of the frame.  This method will block until
      * the comminication path is terminated or a frame is sucessfully received.
+     * <P>
+     * The end of a frame is found from its expected length, or by the
+     * line going quiet for the frame break time, depending on the receive
+     * mode.  The CRC is updated as each byte arrives and frames that fail
+     * the check, or are too long or too short, are dropped and the next
+     * frame is waited for, as the Modbus RTU spec requires.
      *
      * @author Kelvin Proctor
      *
      * @param msg The Modbus Message object for received data to be written into
      * @return    Receive sucess flag, to indicate if the receive was sucessful.
      */
-    public boolean receiveFrame(ModbusMessage msg) {
-	return false;
+    public boolean receiveFrame(ModbusMessage msg) throws IOException {
+	long deadline = System.nanoTime() + timeout * 1000000L;
+	int count;
+	int checked;
+	int expected;
+	int recv;
+	int crc;
+	boolean predict;
+
+	// Print Message if in debug mode
+	if (Modbus.debug >= 3) {
+	    System.out.println("ModbusRTUTransport: Receiveing Frame.....");
+	}
+
+	while (true) {
+	    // Start with anything that arrived after the last frame
+	    count = pending;
+	    pending = 0;
+	    checked = 0;
+	    expected = 0;
+	    crc = ModbusCRC16.INITIAL;
+	    predict = receiveMode != RECEIVE_SILENCE;
+
+	    while (true) {
+		// Work out how long the frame will be as soon as
+		// enough of it has arrived
+		if (predict && expected == 0 && count > 0) {
+		    expected = frameLength(input_buffer, count, receiveMode == RECEIVE_REQUESTS);
+		    if (expected < 0) {
+			predict = false;
+		    }
+		}
+
+		// Bring the CRC up to date, but not past the end of
+		// the frame we are expecting
+		recv = Math.min(count, predict && expected > 0 ? expected : MAX_RTU_MESSAGE_LENGTH);
+		crc = ModbusCRC16.update(crc, input_buffer, checked, recv - checked);
+		checked = recv;
+
+		if (predict && expected > 0 && count >= expected) {
+		    if (crc == 0) {
+			pending = count - expected;
+			count = expected;
+			break;
+		    }
+
+		    // Not what we expected, so wait for the silence
+		    // and check the frame as a whole
+		    predict = false;
+		    continue;
+		}
+
+		// Read untill the line goes quiet after some bytes.  Once
+		// the buffer is full anything more is only read to find the
+		// end of the frame, which is then too long
+		if (count < MAX_RTU_MESSAGE_LENGTH) {
+		    recv = read(input_buffer, count, MAX_RTU_MESSAGE_LENGTH - count);
+		}
+		else {
+		    recv = read(discard_buffer, 0, MAX_RTU_MESSAGE_LENGTH);
+		}
+
+		if (recv == -1) {
+		    // Print Message if in debug mode
+		    if (Modbus.debug >= 2) {
+			System.out.println("ModbusRTUTransport: Stream Closed, receive returning false");
+		    }
+		    return false;
+		}
+
+		if (recv == 0) {
+		    if (count > 0) {
+			break;
+		    }
+		    if (timeout > 0 && System.nanoTime() - deadline >= 0) {
+			if (Modbus.debug >= 2) {
+			    System.out.println("ModbusRTUTransport: Receive timed out");
+			}
+			return false;
+		    }
+		    continue;
+		}
+
+		count += recv;
+	    }
+	    lastFrameEnd = System.nanoTime();
+
+	    // Print Message if in debug mode
+	    if (Modbus.debug >= 4) {
+		System.out.println(ByteUtils.toHex(input_buffer,Math.min(count, MAX_RTU_MESSAGE_LENGTH)));
+	    }
+
+	    if (count > MAX_RTU_MESSAGE_LENGTH) {
+		if (Modbus.debug >= 2) {
+		    System.out.println("ModbusRTUTransport: Frame too long, dropped");
+		}
+		continue;
+	    }
+	    if (count < MIN_RTU_MESSAGE_LENGTH) {
+		if (Modbus.debug >= 2) {
+		    System.out.println("ModbusRTUTransport: Frame too short, dropped");
+		}
+		continue;
+	    }
+
+	    // Running the CRC over the CRC bytes as well leaves zero
+	    if (crc != 0) {
+		if (Modbus.debug >= 2) {
+		    System.out.println("ModbusRTUTransport: CRC check failed, frame dropped");
+		}
+		continue;
+	    }
+
+	    System.arraycopy(input_buffer, 0, msg.buff, 0, count-2);
+	    msg.length = count-2;
+	    msg.transID = 0;
+
+	    // Keep the start of the next frame for next time
+	    if (pending > 0) {
+		System.arraycopy(input_buffer, count, input_buffer, 0, pending);
+	    }
+	    return true;
+	}
     }
-    
+
     /**
-     * Method to calculate the Cyclic Redundancy Check (CRC) on a byte
-     * array, up to a specified number of bytes.
-     * 
-     * @author Kelvin Proctor
-     * 
-     * @param buff The byte array to calculate the CRC on.
-     * @param length The number of bytes of the byte array to be used
-     *               in the CRC claculation.
-     * @return The CRC value calculated from the byte array. 
+     * Function to work out the length of a frame, including the CRC,
+     * from the start of it.  The length of requests and responses of
+     * the same function differ, so which is expected must be given.
+     *
+     * @param buff The start of the frame.
+     * @param count The number of bytes of the frame received so far.
+     * @param request True if the frame is a request, false if it is
+     *                a response.
+     * @return The length of the frame, 0 if more of the frame is needed
+     *         to tell, or -1 if the function code is not known.
      */
-    private static byte CRC(byte[] buff, int length) {
-	
-	// FIXME:  I know this is really a LRC at the
-	// moment but I'll fix that later.
+    public static int frameLength(byte[] buff, int count, boolean request) {
+	if (count < 2) {
+	    return 0;
+	}
 
-	int acc = 0;
-	int fflsacc = 0;
-	
-	for (int i=0; i<length; i++) {
-	    acc += buff[i];
-	    acc &= 0xFF;
+	if (request) {
+	    switch (buff[1]) {
+	    case Modbus.READ_EXCEPTION_STATUS:
+	    case 0x0B: // Get comm event counter
+	    case 0x0C: // Get comm event log
+	    case 0x11: // Report slave ID
+		return 4;
+	    case Modbus.READ_COILS:
+	    case Modbus.READ_INPUT_DISCRETES:
+	    case Modbus.READ_MULTIPLE_REGISTERS:
+	    case Modbus.READ_INPUT_REGISTERS:
+	    case Modbus.WRITE_COIL:
+	    case Modbus.WRITE_SINGLE_REGISTER:
+	    case 0x08: // Diagnostics
+		return 8;
+	    case 0x16: // Mask write register
+		return 10;
+	    case Modbus.WRITE_MULTIPLE_COILS:
+	    case Modbus.WRITE_MULTIPLE_REGISTERS:
+		return count < 7 ? 0 : 9 + (buff[6] & 0xFF);
+	    case 0x17: // Read/write multiple registers
+		return count < 11 ? 0 : 13 + (buff[10] & 0xFF);
+	    default:
+		return -1;
+	    }
 	}
-	
-	fflsacc = (0xFF - acc) & 0xFF;
-	
-	return ((byte)(fflsacc+1));	
+
+	// All exception responses are the same length
+	if ((buff[1] & Modbus.EXCEPTION_MODIFIER) != 0) {
+	    return 5;
+	}
+
+	switch (buff[1]) {
+	case Modbus.READ_EXCEPTION_STATUS:
+	    return 5;
+	case Modbus.WRITE_COIL:
+	case Modbus.WRITE_SINGLE_REGISTER:
+	case 0x08: // Diagnostics
+	case 0x0B: // Get comm event counter
+	case Modbus.WRITE_MULTIPLE_COILS:
+	case Modbus.WRITE_MULTIPLE_REGISTERS:
+	    return 8;
+	case 0x16: // Mask write register
+	    return 10;
+	case Modbus.READ_COILS:
+	case Modbus.READ_INPUT_DISCRETES:
+	case Modbus.READ_MULTIPLE_REGISTERS:
+	case Modbus.READ_INPUT_REGISTERS:
+	case 0x0C: // Get comm event log
+	case 0x11: // Report slave ID
+	case 0x17: // Read/write multiple registers
+	    return count < 3 ? 0 : 5 + (buff[2] & 0xFF);
+	default:
+	    return -1;
+	}
+    }
+
+    // Read what is available, returning 0 if the line was quiet for
+    // the frame break time and -1 if the stream was closed
+    private int read(byte[] buff, int offset, int length) throws IOException {
+	int recv;
+
+	try {
+	    recv = in.read(buff, offset, length);
+	}
+	catch (InterruptedIOException ex) {
+	    return 0;
+	}
+
+	// A serial port returns -1 when the receive timeout expires
+	if (recv < 0 && port != null) {
+	    return 0;
+	}
+	return recv;
     }
 
     public void disconnect() {}
@@ -0,0 +1,455 @@
+/*
+ * ModbusReadPlanner.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Class to plan the reads needed to poll a set of registers.  The
+ * registers wanted are added as ranges, each for a unit ID and a read
+ * function (READ_MULTIPLE_REGISTERS or READ_INPUT_REGISTERS).  The
+ * planner merges the ranges into as few requests as it can, each no
+ * longer than MAX_READ_REGISTERS, executes them with a ModbusMaster and
+ * scatters the results back into the ranges.
+ * <P>
+ * Two ranges are merged into one request if the gap between them is no
+ * more than the gap fill, so the registers in the gap are read and
+ * thrown away.  This saves a request for each gap, but the slave device
+ * must accept reads of the registers in the gaps, so the gap fill should
+ * be zero for a device with holes in its register map.
+ * <P>
+ * A planner is not safe to be used by more than one thread at a time.
+ */
+public class ModbusReadPlanner {
+
+    // Orders ranges by unit ID, function and then reference
+    private static final Comparator<Range> ORDER = new Comparator<Range>() {
+	    public int compare(Range a, Range b) {
+		if (a.unitID != b.unitID) {
+		    return a.unitID - b.unitID;
+		}
+		if (a.function != b.function) {
+		    return (a.function & 0xFF) - (b.function & 0xFF);
+		}
+		return a.reference - b.reference;
+	    }
+	};
+
+    // How many unwanted registers may be read to join two ranges,
+    // and the longest request to make
+    private int gapFill;
+    private int maxLength = Modbus.MAX_READ_REGISTERS;
+
+    // The ranges wanted
+    private List<Range> ranges = new ArrayList<Range>();
+
+    // The current plan, the requests to make and where each part
+    // of each range is found in them, or null if the plan needs
+    // to be made again
+    private ModbusTransaction[] transactions;
+    private Segment[] segments;
+
+    /**
+     * A range of registers wanted from a slave device.  After each
+     * execution of the plan the range holds the values read.
+     */
+    public static class Range {
+
+	private int unitID;
+	private byte function;
+	private int reference;
+	private int length;
+	private int[] values;
+	private boolean valid = false;
+
+	Range(int unitID, byte function, int reference, int length) {
+	    this.unitID = unitID;
+	    this.function = function;
+	    this.reference = reference;
+	    this.length = length;
+	    values = new int[length];
+	}
+
+	/**
+	 * Get the unit ID of the device the range is read from.
+	 *
+	 * @return The unit ID.
+	 */
+	public int getUnitID() {
+	    return unitID;
+	}
+
+	/**
+	 * Get the function code used to read the range.
+	 *
+	 * @return The function code.
+	 */
+	public byte getFunction() {
+	    return function;
+	}
+
+	/**
+	 * Get the reference number of the first register in the range.
+	 *
+	 * @return The reference number.
+	 */
+	public int getReference() {
+	    return reference;
+	}
+
+	/**
+	 * Get the number of registers in the range.
+	 *
+	 * @return The number of registers.
+	 */
+	public int getLength() {
+	    return length;
+	}
+
+	/**
+	 * Get the values read for the range.  These are only valid if
+	 * isValid returns true.
+	 *
+	 * @return The array of register values.
+	 */
+	public int[] getValues() {
+	    return values;
+	}
+
+	/**
+	 * Check if all of the range was read by the last execution of
+	 * the plan.
+	 *
+	 * @return True if the values are valid.
+	 */
+	public boolean isValid() {
+	    return valid;
+	}
+    }
+
+    // A part of a range that is read by a single request
+    private static class Segment {
+	Range range;
+	int rangeOffset;
+	int transaction;
+	int transactionOffset;
+	int length;
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param gapFill The largest number of unwanted registers that may
+     *                be read to join two ranges into one request.
+     */
+    public ModbusReadPlanner(int gapFill) {
+	setGapFill(gapFill);
+    }
+
+    /**
+     * Set the largest number of unwanted registers that may be read to
+     * join two ranges into one request.
+     *
+     * @param gapFill The gap fill, zero to only join adjacent or
+     *                overlapping ranges.
+     */
+    public void setGapFill(int gapFill) {
+	if (gapFill < 0 || gapFill > Modbus.MAX_READ_REGISTERS) {
+	    throw new IllegalArgumentException("Gap fill is out of range");
+	}
+	this.gapFill = gapFill;
+	transactions = null;
+    }
+
+    /**
+     * Get the largest number of unwanted registers that may be read to
+     * join two ranges into one request.
+     *
+     * @return The gap fill.
+     */
+    public int getGapFill() {
+	return gapFill;
+    }
+
+    /**
+     * Set the largest number of registers to read with one request.
+     * This can be used for slave devices that do not accept requests
+     * as long as MAX_READ_REGISTERS.
+     *
+     * @param maxLength The largest number of registers in one request.
+     */
+    public void setMaxLength(int maxLength) {
+	if (maxLength < 1 || maxLength > Modbus.MAX_READ_REGISTERS) {
+	    throw new IllegalArgumentException("Maximum length is out of range");
+	}
+	this.maxLength = maxLength;
+	transactions = null;
+    }
+
+    /**
+     * Get the largest number of registers to read with one request.
+     *
+     * @return The largest number of registers in one request.
+     */
+    public int getMaxLength() {
+	return maxLength;
+    }
+
+    /**
+     * Function to add a range of registers to be read.
+     *
+     * @param unitID The unit ID of the device to read from.
+     * @param function The function code to read with, either
+     *                 READ_MULTIPLE_REGISTERS or READ_INPUT_REGISTERS.
+     * @param reference The reference number of the first register.
+     * @param length The number of registers.
+     * @return The range, which will hold the values read.
+     */
+    public Range add(int unitID, byte function, int reference, int length)
+	throws IllegalArgumentException {
+
+	ModbusMaster.checkArguments(unitID, reference, length, 0);
+
+	if (function != Modbus.READ_MULTIPLE_REGISTERS && function != Modbus.READ_INPUT_REGISTERS) {
+	    throw new IllegalArgumentException("Unsupported function code " + ByteUtils.toHex(function));
+	}
+
+	if (reference + length - 1 > Modbus.ADDRESS_MAX) {
+	    throw new IllegalArgumentException("Range extends past the highest address");
+	}
+
+	Range range = new Range(unitID, function, reference, length);
+	ranges.add(range);
+	transactions = null;
+	return range;
+    }
+
+    /**
+     * Function to add a single register to be read.
+     *
+     * @param unitID The unit ID of the device to read from.
+     * @param function The function code to read with, either
+     *                 READ_MULTIPLE_REGISTERS or READ_INPUT_REGISTERS.
+     * @param reference The reference number of the register.
+     * @return The range, which will hold the value read.
+     */
+    public Range add(int unitID, byte function, int reference)
+	throws IllegalArgumentException {
+	return add(unitID, function, reference, 1);
+    }
+
+    /**
+     * Function to remove a range so it is no longer read.
+     *
+     * @param range The range to be removed.
+     * @return True if the range was one of this planner's ranges.
+     */
+    public boolean remove(Range range) {
+	if (ranges.remove(range)) {
+	    transactions = null;
+	    return true;
+	}
+	return false;
+    }
+
+    /**
+     * Get the requests that the ranges are read with.  The plan is made
+     * again when the ranges or settings have changed.
+     *
+     * @return The transactions that will be executed.
+     */
+    public ModbusTransaction[] getTransactions() {
+	if (transactions == null) {
+	    plan();
+	}
+	return transactions;
+    }
+
+    /**
+     * Function to read all the ranges.  The requests are executed as a
+     * group, so a master able to pipeline them will do so, and the
+     * results are then scattered into the ranges.  A range read by a
+     * request that failed is marked as not valid.
+     *
+     * @param master The master to read with.
+     * @return True if all of the ranges were read.
+     * @throws IOException
+     */
+    public boolean execute(ModbusMaster master) throws IOException {
+	ModbusTransaction[] transactions = getTransactions();
+
+	master.execute(transactions);
+	return scatter();
+    }
+
+    // Merge the ranges into requests
+    private void plan() {
+	List<Range> sorted = new ArrayList<Range>(ranges);
+	List<ModbusTransaction> planned = new ArrayList<ModbusTransaction>();
+	List<Segment> parts = new ArrayList<Segment>();
+	Collections.sort(sorted, ORDER);
+
+	// Plan each unit ID and function on its own
+	for (int i=0, j; i<sorted.size(); i=j) {
+	    for (j=i+1; j<sorted.size() && sorted.get(j).unitID == sorted.get(i).unitID
+		     && sorted.get(j).function == sorted.get(i).function; j++) {
+	    }
+	    plan(sorted.subList(i, j), planned, parts);
+	}
+
+	transactions = planned.toArray(new ModbusTransaction[planned.size()]);
+	segments = parts.toArray(new Segment[parts.size()]);
+    }
+
+    // Plan the requests for a group of ranges with the same unit ID
+    // and function, which are in order of reference
+    private void plan(List<Range> group, List<ModbusTransaction> planned, List<Segment> parts) {
+	Range range = group.get(0);
+	ModbusTransaction transaction;
+	Segment segment;
+	int first = planned.size();
+	int start = -1;
+	int end = -1;
+	int spanStart = range.reference;
+	int spanEnd = range.reference + range.length;
+	int next;
+	int stop;
+
+	// Take the registers wanted as spans of overlapping or adjacent
+	// ranges, and cover them from the start with requests that are
+	// as long as they can be, joining spans closer than the gap fill
+	for (int i=1; i<=group.size(); i++) {
+	    if (i < group.size()) {
+		range = group.get(i);
+		if (range.reference <= spanEnd) {
+		    spanEnd = Math.max(spanEnd, range.reference + range.length);
+		    continue;
+		}
+	    }
+
+	    next = spanStart;
+	    while (next < spanEnd) {
+		if (start < 0 || next > end + gapFill || next >= start + maxLength) {
+		    if (start >= 0) {
+			planned.add(newTransaction(range, start, end));
+		    }
+		    start = next;
+		}
+		end = Math.min(spanEnd, start + maxLength);
+		next = end;
+	    }
+
+	    if (i < group.size()) {
+		spanStart = range.reference;
+		spanEnd = range.reference + range.length;
+	    }
+	}
+	planned.add(newTransaction(range, start, end));
+
+	// Now find the parts of each range in the requests, the ranges
+	// and the requests are both in order of reference so the request
+	// holding the start of each range is never before the last one
+	for (int i=0, k; i<group.size(); i++) {
+	    range = group.get(i);
+	    next = range.reference;
+	    stop = range.reference + range.length;
+
+	    while (!covers(planned.get(first), next)) {
+		first++;
+	    }
+
+	    for (k=first; next < stop; k++) {
+		transaction = planned.get(k);
+
+		segment = new Segment();
+		segment.range = range;
+		segment.rangeOffset = next - range.reference;
+		segment.transaction = k;
+		segment.transactionOffset = next - transaction.getReference();
+		segment.length = Math.min(stop, transaction.getReference() + transaction.getLength()) - next;
+		parts.add(segment);
+
+		next += segment.length;
+	    }
+	}
+    }
+
+    // Check if a request reads a register
+    private static boolean covers(ModbusTransaction transaction, int reference) {
+	return reference >= transaction.getReference()
+	    && reference < transaction.getReference() + transaction.getLength();
+    }
+
+    // Create the request reading from start up to end
+    private static ModbusTransaction newTransaction(Range range, int start, int end) {
+	return new ModbusTransaction(range.function, range.unitID, start, end - start, new int[end - start]);
+    }
+
+    // Copy the results of the requests back into the ranges
+    private boolean scatter() {
+	boolean retval = true;
+	ModbusTransaction transaction;
+	Segment segment;
+
+	for (int i=0; i<ranges.size(); i++) {
+	    ranges.get(i).valid = true;
+	}
+
+	for (int i=0; i<segments.length; i++) {
+	    segment = segments[i];
+	    transaction = transactions[segment.transaction];
+
+	    if (transaction.isComplete()) {
+		System.arraycopy(transaction.getValues(), segment.transactionOffset,
+				 segment.range.values, segment.rangeOffset,
+				 segment.length);
+	    }
+	    else {
+		segment.range.valid = false;
+		retval = false;
+	    }
+	}
+
+	return retval;
+    }
+}
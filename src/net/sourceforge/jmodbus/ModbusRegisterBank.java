@@ -38,11 +38,20 @@
 
 package net.sourceforge.jmodbus;
 
+import java.util.concurrent.locks.StampedLock;
+
 /**
  * Class to represent the registers (16 bit data items) in a Modbus device.  
  * The classes uses int varibales internally to represent registers
  * as the minimum block allocation of memory for a JVM is 4 bytes 
- * so using a short etc.. does not make any difference.   *
+ * so using a short etc.. does not make any difference.
+ * <P>
+ * A block of registers is written atomically, so a value spread over
+ * several registers, such as a 32 bit float, is never read half
+ * updated.  Reads do not take a lock, they copy the registers and then
+ * check that no write happened meanwhile, only locking out writers if
+ * one did.  Writes are serialized against each other.
+ *
  * @author Kelvin Proctor
  */
 public class ModbusRegisterBank {
@@ -56,6 +65,13 @@ public class ModbusRegisterBank {
      * The int array that represents this bank of registers.
      */
     private int[] registers;
+
+    /**
+     * The lock whose stamp tells readers if a write happened while
+     * they were reading.  Subclasses that keep the registers in some
+     * other form guard them with it in the same way.
+     */
+    protected final StampedLock lock = new StampedLock();
     
     /**
      * Class constructor that, given the size of the register bank
@@ -69,20 +85,46 @@ public class ModbusRegisterBank {
      */    
     public ModbusRegisterBank(int register_size) {
 	
-	if (register_size < 1) {
-	    this.register_size = 1;
-	}
-	else if (register_size > Modbus.ADDRESS_MAX) {
-	    this.register_size = Modbus.ADDRESS_MAX;
-	}
-	else {
-	    this.register_size = register_size;
-	}
+	this.register_size = limitSize(register_size);
 	
 	registers = new int[this.register_size];
-	
-	for (int i = 0; i < this.register_size; i++) {
-	    registers[i] = 0;
+    }
+    
+    /**
+     * Constructor for subclasses that keep the registers in some other
+     * form.  No memory is allocated for the registers, so the subclass
+     * must override getNumberRegisters and all the methods that get or set
+     * registers.
+     */
+    protected ModbusRegisterBank() {
+    }
+
+    // Keep the size of a bank within the Modbus address range
+    static int limitSize(int size) {
+	if (size < 1) {
+	    return 1;
+	}
+	else if (size > Modbus.ADDRESS_MAX) {
+	    return Modbus.ADDRESS_MAX;
+	}
+	return size;
+    }
+
+    /**
+     * Throw an ArrayIndexOutOfBoundsException if a block of registers
+     * is not within this bank, naming the first register outside it.
+     * Used before a block is read or written, so that none of it is
+     * done, and by subclasses whose storage would not catch it.
+     *
+     * @param index The address of the desired starting register (note 
+     *              that this is a zero based index)
+     * @param length The number of registers.
+     */
+    protected void checkRange(int index, int length) {
+	int size = getNumberRegisters();
+
+	if (index < 0 || length < 0 || index + length > size) {
+	    throw new ArrayIndexOutOfBoundsException(index < 0 || index >= size ? index : index + length - 1);
 	}
     }
     
@@ -96,6 +138,20 @@ public class ModbusRegisterBank {
     public int getNumberRegisters() {
 	return register_size;
     }
+
+    /**
+     * Check if a block of registers exists in this bank, so it may be
+     * read or written by a Modbus request.  By default every register
+     * within the size of the bank exists.
+     *
+     * @param index The address of the desired starting register (note 
+     *              that this is a zero based index)
+     * @param length The number of registers.
+     * @return True if all the registers of the block exist.
+     */
+    public boolean hasRegisters(int index, int length) {
+	return index >= 0 && length >= 0 && index + length <= getNumberRegisters();
+    }
     
     /**
      * Gets the value of a particular register.
@@ -111,7 +167,19 @@ public class ModbusRegisterBank {
      * @return The value of the requested register.
      */
     public int getRegister(int index) {
-	return registers[index];
+	long stamp = lock.tryOptimisticRead();
+	int value = registers[index];
+
+	if (!lock.validate(stamp)) {
+	    stamp = lock.readLock();
+	    try {
+		value = registers[index];
+	    }
+	    finally {
+		lock.unlockRead(stamp);
+	    }
+	}
+	return value;
     }
     
     /**
@@ -128,7 +196,13 @@ public class ModbusRegisterBank {
      * @param value The value of the register to be set.
      */
     public void setRegister(int index, int value) {
-	registers[index] = value;
+	long stamp = lock.writeLock();
+	try {
+	    registers[index] = value;
+	}
+	finally {
+	    lock.unlockWrite(stamp);
+	}
     }
     
     /**
@@ -147,11 +221,76 @@ public class ModbusRegisterBank {
      */	
     public int[] getRegisters(int index, int length) {
 	int[] regs = new int[length];
-	for (int i=0; i<length; i++) {
-	    regs[i] = registers[i+index];
-	}
+	getRegisters(index, length, regs, 0);
 	return regs;
     }
+
+    /**
+     * Gets the value of a particular block of registers into an
+     * existing array.  The values are a consistent snapshot, no write
+     * to the bank is seen half done.
+     * <P>
+     * <B>NOTE:</B> Attempting to get a register outside the range
+     * of this register bank will result in a 
+     * ArrayIndexOutOfBoundsException being thrown
+     *
+     * @param index The address of the desired starting register (note 
+     *              that this is a zero based index)
+     * @param length The number of registers to be retrieved
+     * @param regs The array the values are to be written into.
+     * @param offset The index in regs of the first value.
+     */
+    public void getRegisters(int index, int length, int[] regs, int offset) {
+	long stamp = lock.tryOptimisticRead();
+
+	System.arraycopy(registers, index, regs, offset, length);
+
+	if (!lock.validate(stamp)) {
+	    stamp = lock.readLock();
+	    try {
+		System.arraycopy(registers, index, regs, offset, length);
+	    }
+	    finally {
+		lock.unlockRead(stamp);
+	    }
+	}
+    }
+
+    /**
+     * Gets the value of a particular block of registers in the Modbus
+     * wire format, 2 bytes per register with the high byte first.  This
+     * is the format of the data of a READ_MULTIPLE_REGISTERS or
+     * READ_INPUT_REGISTERS response.  The values are a consistent
+     * snapshot, no write to the bank is seen half done.
+     * <P>
+     * <B>NOTE:</B> Attempting to get a register outside the range
+     * of this register bank will result in a 
+     * ArrayIndexOutOfBoundsException being thrown
+     *
+     * @param index The address of the desired starting register (note 
+     *              that this is a zero based index)
+     * @param length The number of registers to be retrieved
+     * @param buff The byte array the values are to be written into,
+     *             which must have room for 2*length bytes.
+     * @param offset The index in buff of the first byte.
+     * @return The number of bytes written.
+     */
+    public int getRegisters(int index, int length, byte[] buff, int offset) {
+	long stamp = lock.tryOptimisticRead();
+
+	encode(index, length, buff, offset);
+
+	if (!lock.validate(stamp)) {
+	    stamp = lock.readLock();
+	    try {
+		encode(index, length, buff, offset);
+	    }
+	    finally {
+		lock.unlockRead(stamp);
+	    }
+	}
+	return 2*length;
+    }
     
     /**
      * Sets the value of a particular block of registers.
@@ -168,8 +307,53 @@ public class ModbusRegisterBank {
      *                 of the registers to be set.
      */
     public void setRegister(int index, int[] regs) {
-	for (int i=0; i<regs.length; i++) {
-	    registers[index+i] = regs[i];
+	long stamp = lock.writeLock();
+	try {
+	    System.arraycopy(regs, 0, registers, index, regs.length);
+	}
+	finally {
+	    lock.unlockWrite(stamp);
+	}
+    }
+
+    /**
+     * Sets the value of a particular block of registers from the Modbus
+     * wire format, 2 bytes per register with the high byte first.  This
+     * is the format of the data of a WRITE_MULTIPLE_REGISTERS request.
+     * The block is written atomically.
+     * <P>
+     * <B>NOTE:</B> Attempting to set a register outside the range
+     * of this register bank will result in a 
+     * ArrayIndexOutOfBoundsException being thrown
+     *
+     * @param index The address of the desired starting register (note 
+     *              that this is a zero based index)
+     * @param length The number of registers to be set.
+     * @param buff The byte array holding the values.
+     * @param offset The index in buff of the first byte.
+     */
+    public void setRegisters(int index, int length, byte[] buff, int offset) {
+	checkRange(index, length);
+
+	long stamp = lock.writeLock();
+	try {
+	    for (int i=0; i<length; i++) {
+		registers[index+i] = ((buff[offset+2*i] & 0xFF) << 8) | (buff[offset+2*i+1] & 0xFF);
+	    }
+	}
+	finally {
+	    lock.unlockWrite(stamp);
+	}
+    }
+
+    // Encode a block of registers into the wire format
+    private void encode(int index, int length, byte[] buff, int offset) {
+	int value;
+
+	for (int i=0; i<length; i++) {
+	    value = registers[index+i];
+	    buff[offset+2*i] = (byte) ((value >>> 8) & 0xFF);
+	    buff[offset+2*i+1] = (byte) (value & 0xFF);
 	}
     }
     
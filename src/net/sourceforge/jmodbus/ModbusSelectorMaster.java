@@ -0,0 +1,727 @@
+/*
+ * ModbusSelectorMaster.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class to implement a Modbus TCP master engine that can talk to a large
+ * number of slave devices from a small number of threads.  Each thread
+ * runs a java.nio Selector over the non-blocking connections it has been
+ * given, so no thread ever blocks waiting for a particular slave.
+ * <P>
+ * Connections are opened with connect, which returns a ModbusAsyncMaster
+ * for the slave device.  Transactions submitted to it are pipelined over
+ * the connection up to the window size, using the same MBAP framing as
+ * ModbusTCPTransport, and their futures are completed on the selector
+ * thread as the responses arrive.  Anything chained onto those futures
+ * must therefore not block.
+ */
+public class ModbusSelectorMaster {
+
+	private static final Logger log = LoggerFactory.getLogger(ModbusSelectorMaster.class.getName());
+
+    /**
+     * The size (in bytes) of the read and write buffers of each
+     * connection.  This allows several frames to be moved with each
+     * channel operation.
+     */
+    public static final int BUFFER_SIZE = 16 * ModbusTCPTransport.MAX_TRANSACTION_LENGTH;
+
+    // Interval (in milliseconds) at which the selector threads check
+    // for transactions that have timed out
+    private static final long TIMEOUT_CHECK_INTERVAL = 100;
+
+    // The selector threads and which one gets the next connection
+    private Reactor[] reactors;
+    private AtomicInteger nextReactor = new AtomicInteger();
+
+    // Messages the transactions are framed in, only held while a
+    // connection is being serviced so idle connections hold none
+    private ModbusMessagePool pool;
+
+    // Settings given to new connections
+    private volatile int windowSize = 1;
+    private volatile int timeout = 0;
+
+    /**
+     * Class constructor that starts the given number of selector threads.
+     *
+     * @param threads The number of selector threads to share the
+     *                connections between.
+     * @throws IOException
+     */
+    public ModbusSelectorMaster(int threads) throws IOException {
+	if (threads < 1) {
+	    throw new IllegalArgumentException("Number of threads must be at least 1");
+	}
+
+	reactors = new Reactor[threads];
+	pool = new ModbusMessagePool(2*threads);
+	for (int i=0; i<threads; i++) {
+	    reactors[i] = new Reactor(i);
+	}
+    }
+
+    /**
+     * Set the number of transactions that may be outstanding at once
+     * on each connection opened after this call.
+     *
+     * @param windowSize The maximum number of outstanding transactions.
+     */
+    public void setWindowSize(int windowSize) throws IllegalArgumentException {
+	if (windowSize < 1 || windowSize > Modbus.UINT16_MAX) {
+	    throw new IllegalArgumentException("Window size is out of range");
+	}
+	this.windowSize = windowSize;
+    }
+
+    /**
+     * Get the number of transactions that may be outstanding at once
+     * on each new connection.
+     *
+     * @return The window size.
+     */
+    public int getWindowSize() {
+	return windowSize;
+    }
+
+    /**
+     * Set the time to wait for the response to a transaction.  A
+     * transaction that is not answered in time completes exceptionally
+     * with a SocketTimeoutException and any late response to it is
+     * discarded.  The time counts from when the transaction is sent, or
+     * from when it is submitted while it waits for room in the window.
+     * A connection that is not established within the time is closed,
+     * failing everything submitted to it.
+     *
+     * @param timeout The timeout in milliseconds, or 0 to wait forever.
+     */
+    public void setTimeout(int timeout) {
+	if (timeout < 0) {
+	    throw new IllegalArgumentException("Timeout must not be negative");
+	}
+	this.timeout = timeout;
+    }
+
+    /**
+     * Get the time to wait for the response to a transaction.
+     *
+     * @return The timeout in milliseconds, or 0 if there is none.
+     */
+    public int getTimeout() {
+	return timeout;
+    }
+
+    /**
+     * Function to open a connection to a slave device.  The connection
+     * is made in the background, transactions may be submitted to it
+     * straight away and will be sent once it is established.
+     *
+     * @param host The string name of the host to connect to.
+     * @param port The port number to connect to on the specified host.
+     * @return The master used to submit transactions to the slave.
+     * @throws IOException
+     */
+    public ModbusAsyncMaster connect(String host, int port) throws IOException {
+	Reactor reactor = nextReactor();
+	SocketChannel channel;
+
+	if (reactor == null) {
+	    throw new IOException("ModbusSelectorMaster: shut down");
+	}
+	channel = SocketChannel.open();
+
+	try {
+	    channel.configureBlocking(false);
+	    channel.connect(new InetSocketAddress(host, port));
+	}
+	catch (IOException ex) {
+	    channel.close();
+	    throw ex;
+	}
+
+	Connection connection = new Connection(reactor, channel, host + ":" + port);
+	connection.wake();
+	return connection;
+    }
+
+    // Pick the next selector thread in turn to take a connection,
+    // passing over any that have stopped.  Returns null if they all have
+    private Reactor nextReactor() {
+	int first = nextReactor.getAndIncrement() & Integer.MAX_VALUE;
+	Reactor reactor;
+
+	for (int i=0; i<reactors.length; i++) {
+	    reactor = reactors[(first + i) % reactors.length];
+	    if (reactor.running) {
+		return reactor;
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Function to stop the selector threads.  All connections are closed
+     * and any transactions that have not been answered complete
+     * exceptionally.
+     */
+    public void shutdown() {
+	for (int i=0; i<reactors.length; i++) {
+	    reactors[i].running = false;
+	    reactors[i].selector.wakeup();
+	}
+    }
+
+    // A selector thread and the connections it looks after
+    private class Reactor implements Runnable {
+
+	private Selector selector;
+	private Thread thread;
+	private volatile boolean running = true;
+
+	// Set under the reactor's lock once the selector thread has
+	// closed everything down, after which nothing more is queued
+	private boolean stopped = false;
+
+	// Connections that have work to be done on the selector
+	// thread, queued from other threads
+	private Queue<Connection> ready = new ConcurrentLinkedQueue<Connection>();
+
+	// The connections registered with this selector, only
+	// used on the selector thread
+	private List<Connection> connections = new ArrayList<Connection>();
+
+	Reactor(int index) throws IOException {
+	    selector = Selector.open();
+	    thread = new Thread(this, "ModbusSelectorMaster-" + index);
+	    thread.setDaemon(true);
+	    thread.start();
+	}
+
+	// Queue a connection to be serviced by the selector thread.  If
+	// the thread has already stopped nobody would service it, so it
+	// is closed here instead
+	void schedule(Connection connection) {
+	    synchronized (this) {
+		if (!stopped) {
+		    ready.add(connection);
+		    selector.wakeup();
+		    return;
+		}
+	    }
+	    connection.close(new IOException("ModbusSelectorMaster: shut down"));
+	}
+
+	public void run() {
+	    Connection connection;
+	    Iterator<SelectionKey> keys;
+	    SelectionKey key;
+	    long nextCheck = System.currentTimeMillis() + TIMEOUT_CHECK_INTERVAL;
+	    long now;
+	    long limit;
+
+	    while (running) {
+		try {
+		    selector.select(TIMEOUT_CHECK_INTERVAL);
+		}
+		catch (IOException ex) {
+		    log.error(ex.getMessage(), ex);
+		    break;
+		}
+
+		while ((connection = ready.poll()) != null) {
+		    try {
+			connection.service();
+		    }
+		    catch (RuntimeException ex) {
+			connection.fault(ex);
+		    }
+		}
+
+		// A key may have been cancelled by a connection being
+		// closed since it was selected, and a fault on one
+		// connection must not stop the others being served
+		keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+		    key = keys.next();
+		    keys.remove();
+		    connection = (Connection) key.attachment();
+		    if (!key.isValid()) {
+			continue;
+		    }
+		    try {
+			connection.handle(key);
+		    }
+		    catch (RuntimeException ex) {
+			connection.fault(ex);
+		    }
+		}
+
+		now = System.currentTimeMillis();
+		if (now >= nextCheck) {
+		    nextCheck = now + TIMEOUT_CHECK_INTERVAL;
+
+		    // The timeout may be changed by another thread, so it
+		    // is read once for all the connections
+		    limit = timeout * 1000000L;
+		    if (limit > 0) {
+			for (int i=connections.size()-1; i>=0; i--) {
+			    connection = connections.get(i);
+			    try {
+				connection.checkTimeouts(System.nanoTime(), limit);
+			    }
+			    catch (RuntimeException ex) {
+				connection.fault(ex);
+			    }
+			}
+		    }
+		}
+	    }
+
+	    // The loop may have ended on a selector failure rather than a
+	    // shutdown, so stop new connections being given to us
+	    running = false;
+
+	    // Close down everything we were looking after
+	    IOException cause = new IOException("ModbusSelectorMaster: shut down");
+	    while (!connections.isEmpty()) {
+		connections.get(connections.size()-1).close(cause);
+	    }
+	    synchronized (this) {
+		stopped = true;
+	    }
+	    while ((connection = ready.poll()) != null) {
+		connection.close(cause);
+	    }
+	    try {
+		selector.close();
+	    }
+	    catch (IOException ex) {
+		log.warn(ex.getMessage());
+	    }
+	}
+    }
+
+    // A connection to a single slave device, with the state
+    // machines that frame the queries and responses
+    private class Connection extends ModbusAsyncMaster {
+
+	private Reactor reactor;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private String name;
+
+	// Transactions submitted but not yet sent, and when the
+	// connection was opened, for the timeouts
+	private Queue<Queued> queue = new ConcurrentLinkedQueue<Queued>();
+	private long opened = System.nanoTime();
+
+	// Flags shared with the submitting threads
+	private AtomicBoolean scheduled = new AtomicBoolean();
+	private volatile boolean closeRequested = false;
+	private volatile boolean closed = false;
+
+	// Transactions sent but not yet answered, and when they were
+	// sent, packed into the first outstanding entries
+	private ModbusTransaction[] inflight;
+	private long[] sent;
+	private int outstanding = 0;
+	private int nextTransID = 0;
+
+	// Buffers used to frame the transactions
+	private byte[] header = new byte[ModbusTCPTransport.HEADER_LENGTH];
+	private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+	private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+	// Receive state, the length of the body we are waiting for
+	// or -1 if we are waiting for a header
+	private int bodyLength = -1;
+	private int transID;
+
+	Connection(Reactor reactor, SocketChannel channel, String name) {
+	    this.reactor = reactor;
+	    this.channel = channel;
+	    this.name = name;
+	    inflight = new ModbusTransaction[windowSize];
+	    sent = new long[inflight.length];
+	}
+
+	public CompletableFuture<ModbusTransaction> submit(ModbusTransaction transaction) {
+	    CompletableFuture<ModbusTransaction> future = attach(transaction);
+
+	    queue.add(new Queued(transaction));
+	    if (closed) {
+		failQueued(new IOException("ModbusSelectorMaster: connection closed"));
+	    }
+	    else {
+		wake();
+	    }
+	    return future;
+	}
+
+	public void disconnect() {
+	    closeRequested = true;
+	    wake();
+	}
+
+	public String toString() {
+	    return name;
+	}
+
+	// Ask the selector thread to service this connection
+	void wake() {
+	    if (scheduled.compareAndSet(false, true)) {
+		reactor.schedule(this);
+	    }
+	}
+
+	// Called on the selector thread when woken
+	void service() {
+	    scheduled.set(false);
+
+	    if (closed) {
+		return;
+	    }
+	    if (closeRequested) {
+		close(new IOException("ModbusSelectorMaster: disconnected"));
+		return;
+	    }
+
+	    try {
+		if (key == null) {
+		    key = channel.register(reactor.selector,
+					   channel.isConnected() ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT,
+					   this);
+		    reactor.connections.add(this);
+		}
+		if (channel.isConnected()) {
+		    flush();
+		}
+	    }
+	    catch (IOException ex) {
+		close(ex);
+	    }
+	}
+
+	// Called on the selector thread when servicing the connection
+	// failed unexpectedly, so it is closed rather than the thread
+	// being stopped
+	void fault(RuntimeException ex) {
+	    log.error("ModbusSelectorMaster: failure on " + name, ex);
+	    close(new IOException(ex.getMessage(), ex));
+	}
+
+	// Called on the selector thread when the channel is ready
+	void handle(SelectionKey key) {
+	    try {
+		if (key.isConnectable()) {
+		    if (!channel.finishConnect()) {
+			return;
+		    }
+		    if (Modbus.debug >= 2) {
+			log.debug("ModbusSelectorMaster: connected to " + name);
+		    }
+		    key.interestOps(SelectionKey.OP_READ);
+		    flush();
+		}
+		if (key.isValid() && key.isReadable()) {
+		    read();
+		}
+		if (key.isValid() && key.isWritable()) {
+		    flush();
+		}
+	    }
+	    catch (IOException ex) {
+		close(ex);
+	    }
+	}
+
+	// Frame as many queued transactions as the window and the
+	// buffer allow, then write as much as the channel will take
+	private void flush() throws IOException {
+	    ModbusMessage request = pool.acquire();
+
+	    try {
+		flush(request);
+	    }
+	    finally {
+		pool.release(request);
+	    }
+	}
+
+	// Frame the transactions using the given message
+	private void flush(ModbusMessage request) throws IOException {
+	    ModbusTransaction transaction;
+	    Queued queued;
+	    int transID;
+
+	    while (outstanding < inflight.length
+		   && out.remaining() >= ModbusTCPTransport.MAX_TRANSACTION_LENGTH
+		   && (queued = queue.poll()) != null) {
+		transaction = queued.transaction;
+
+		// Hand out the next transaction ID that is not outstanding
+		do {
+		    transID = nextTransID;
+		    nextTransID = (nextTransID + 1) & Modbus.UINT16_MAX;
+		} while (findOutstanding(transID) >= 0);
+
+		try {
+		    transaction.prepare(request, transID);
+		}
+		catch (RuntimeException ex) {
+		    fail(transaction, new IOException(ex.getMessage(), ex));
+		    continue;
+		}
+
+		ModbusTCPTransport.encodeHeader(header, 0, request.transID, request.length);
+		out.put(header);
+		out.put(request.buff, 0, request.length);
+
+		sent[outstanding] = System.nanoTime();
+		inflight[outstanding++] = transaction;
+	    }
+
+	    out.flip();
+	    channel.write(out);
+	    out.compact();
+
+	    // Only ask to be told about writability while there is
+	    // something left to write
+	    key.interestOps(out.position() > 0
+			    ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+			    : SelectionKey.OP_READ);
+	}
+
+	// Read what is available and pull out all the complete frames
+	private void read() throws IOException {
+	    ModbusMessage response = pool.acquire();
+
+	    try {
+		read(response);
+	    }
+	    finally {
+		pool.release(response);
+	    }
+	}
+
+	// Pull out the frames using the given message
+	private void read(ModbusMessage response) throws IOException {
+	    int index;
+	    ModbusTransaction transaction;
+
+	    if (channel.read(in) < 0) {
+		close(new IOException("ModbusSelectorMaster: stream closed by " + name));
+		return;
+	    }
+	    in.flip();
+
+	    while (true) {
+		// Waiting for a header
+		if (bodyLength < 0) {
+		    if (in.remaining() < ModbusTCPTransport.HEADER_LENGTH) {
+			break;
+		    }
+		    in.get(header);
+		    transID = ModbusTCPTransport.decodeTransID(header, 0);
+		    bodyLength = ModbusTCPTransport.decodeHeader(header, 0);
+
+		    // As per the Modbus TCP spec we close the connection
+		    // if we do not understand the header
+		    if (bodyLength < 0) {
+			close(new IOException("ModbusSelectorMaster: header check failed for " + name));
+			return;
+		    }
+		}
+
+		// Waiting for the body
+		if (in.remaining() < bodyLength) {
+		    break;
+		}
+		in.get(response.buff, 0, bodyLength);
+		response.length = bodyLength;
+		response.transID = transID;
+		bodyLength = -1;
+
+		index = findOutstanding(response.transID);
+		if (index < 0) {
+		    if (Modbus.debug >= 2) {
+			log.debug("ModbusSelectorMaster: response to unknown transaction ID " + response.transID);
+		    }
+		    continue;
+		}
+
+		transaction = remove(index);
+		transaction.complete(response);
+		finish(transaction);
+	    }
+
+	    in.compact();
+
+	    // Space has opened up in the window
+	    if (!queue.isEmpty()) {
+		flush();
+	    }
+	}
+
+	// Fail the connection if it has taken longer than the limit (in
+	// nanoseconds) to open, and the transactions that have waited
+	// longer, whether they were sent or are still queued
+	void checkTimeouts(long now, long limit) {
+	    Queued queued;
+
+	    if (!channel.isConnected()) {
+		if (now - opened > limit) {
+		    close(new SocketTimeoutException("ModbusSelectorMaster: connect to " + name + " timed out"));
+		}
+		return;
+	    }
+
+	    // The queue is in the order the transactions were submitted,
+	    // and another thread may be failing them if we are closed
+	    while ((queued = queue.peek()) != null && now - queued.submitted > limit) {
+		if (queue.remove(queued)) {
+		    fail(queued.transaction, new SocketTimeoutException("ModbusSelectorMaster: transaction timed out"));
+		}
+	    }
+
+	    for (int i=outstanding-1; i>=0; i--) {
+		if (now - sent[i] > limit) {
+		    fail(remove(i), new SocketTimeoutException("ModbusSelectorMaster: transaction timed out"));
+		}
+	    }
+
+	    if (!queue.isEmpty() && key != null) {
+		try {
+		    flush();
+		}
+		catch (IOException ex) {
+		    close(ex);
+		}
+	    }
+	}
+
+	// Close the connection and fail everything on it
+	void close(IOException cause) {
+	    if (closed) {
+		return;
+	    }
+	    closed = true;
+
+	    if (Modbus.debug >= 2) {
+		log.debug("ModbusSelectorMaster: closing " + name + ": " + cause.getMessage());
+	    }
+
+	    if (key != null) {
+		key.cancel();
+		reactor.connections.remove(this);
+	    }
+	    try {
+		channel.close();
+	    }
+	    catch (IOException ex) {
+		log.warn(ex.getMessage());
+	    }
+
+	    while (outstanding > 0) {
+		fail(remove(outstanding-1), cause);
+	    }
+	    failQueued(cause);
+	}
+
+	// Fail all the transactions that are still queued
+	private void failQueued(IOException cause) {
+	    Queued queued;
+
+	    while ((queued = queue.poll()) != null) {
+		fail(queued.transaction, cause);
+	    }
+	}
+
+	// Remove an entry from the window, keeping it packed
+	private ModbusTransaction remove(int index) {
+	    ModbusTransaction transaction = inflight[index];
+
+	    outstanding--;
+	    inflight[index] = inflight[outstanding];
+	    sent[index] = sent[outstanding];
+	    inflight[outstanding] = null;
+	    return transaction;
+	}
+
+	// Find the window index of an outstanding transaction ID
+	private int findOutstanding(int transID) {
+	    for (int i=0; i<outstanding; i++) {
+		if (inflight[i].getTransID() == transID) {
+		    return i;
+		}
+	    }
+	    return -1;
+	}
+    }
+
+    // A transaction waiting to be sent and when it was submitted
+    private static class Queued {
+
+	private ModbusTransaction transaction;
+	private long submitted = System.nanoTime();
+
+	Queued(ModbusTransaction transaction) {
+	    this.transaction = transaction;
+	}
+    }
+}
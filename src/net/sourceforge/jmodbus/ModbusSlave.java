@@ -55,32 +55,41 @@ import org.slf4j.LoggerFactory;
 public class ModbusSlave extends Modbus implements Runnable {
     
 	private static final Logger log = LoggerFactory.getLogger(ModbusTCPTransport.class.getName());
-    // Registers and coils to read from and write to
-    private ModbusRegisterBank input_registers;
-    private ModbusRegisterBank output_registers;
-    private ModbusCoilBank input_coils;
-    private ModbusCoilBank output_coils;
-    
-    // Flag to indicate what type of operations
-    // this slave device accepts
-    private boolean input_coils_enabled = false;
-    private boolean output_coils_enabled = false;
-    private boolean input_registers_enabled = false;
-    private boolean output_registers_enabled = false;		
+    /**
+     * The number of entries in the unit table, one for each possible
+     * unit identifier.
+     */
+    public static final int MAX_UNITS = 256;
+
+    // The registers and coils of the unit at our own slave address
+    private ModbusUnit unit;
+
+    // The unit served for each unit identifier, and the unit served
+    // for any identifier without one of its own
+    private ModbusUnit[] units = new ModbusUnit[MAX_UNITS];
+    private ModbusUnit defaultUnit;
     
     // Modbus messages for message to be received into and	
     // sent from	
     private ModbusMessage request;	
     private ModbusMessage response;	
     
-    // The slave address (or unit identifier) of this device	
-    private byte slaveAddress;
-    
-    // Information about the query
-    private int number;
-    private int offset;
-    private int length;
-    private int value;
+    // The handler of each function code, null if it is not supported
+    private ModbusFunctionHandler[] handlers = new ModbusFunctionHandler[256];
+
+    // The handlers of the function codes supported by every slave
+    private static final ModbusFunctionHandler[] STANDARD_HANDLERS = new ModbusFunctionHandler[256];
+
+    static {
+	STANDARD_HANDLERS[READ_COILS] = ModbusSlave::processReadCoils;
+	STANDARD_HANDLERS[READ_INPUT_DISCRETES] = ModbusSlave::processReadInputDiscretes;
+	STANDARD_HANDLERS[READ_MULTIPLE_REGISTERS] = ModbusSlave::processReadMultipleRegisters;
+	STANDARD_HANDLERS[READ_INPUT_REGISTERS] = ModbusSlave::processReadInputRegisters;
+	STANDARD_HANDLERS[WRITE_COIL] = ModbusSlave::processWriteCoil;
+	STANDARD_HANDLERS[WRITE_SINGLE_REGISTER] = ModbusSlave::processWriteSingleRegister;
+	STANDARD_HANDLERS[WRITE_MULTIPLE_COILS] = ModbusSlave::processWriteMultipleCoils;
+	STANDARD_HANDLERS[WRITE_MULTIPLE_REGISTERS] = ModbusSlave::processWriteMultipleRegisters;
+    }
 
     /**
      * Class constructor.  Accepts a ModbusTransport object that
@@ -97,7 +106,9 @@ public class ModbusSlave extends Modbus implements Runnable {
         super(transport);				
 	request = new ModbusMessage();		
 	response = new ModbusMessage();				
-	this.slaveAddress = (byte) (slaveAddress & 0xFF);
+	unit = new ModbusUnit();
+	units[slaveAddress & 0xFF] = unit;
+	System.arraycopy(STANDARD_HANDLERS, 0, handlers, 0, handlers.length);
     } 
     
     /** 
@@ -111,8 +122,7 @@ public class ModbusSlave extends Modbus implements Runnable {
      *             the input registers.
      */
     public void setInputRegisters(ModbusRegisterBank regs) {
-	input_registers = regs;
-	input_registers_enabled = true;
+	unit.setInputRegisters(regs);
 
 	if (debug >= 3) {
 	    log.debug("ModbusSlave: Input Registers Enabled");
@@ -130,8 +140,7 @@ public class ModbusSlave extends Modbus implements Runnable {
      *             the output registers.
      */
     public void setOutputRegisters(ModbusRegisterBank regs) {
-	output_registers = regs;
-	output_registers_enabled = true;
+	unit.setOutputRegisters(regs);
 
 	if (debug >= 3) {
 	    log.debug("ModbusSlave: Output Registers Enabled");
@@ -149,8 +158,7 @@ public class ModbusSlave extends Modbus implements Runnable {
      *             the input coils.
      */
     public void setInputCoils(ModbusCoilBank coils) {
-	input_coils = coils;
-	input_coils_enabled = true;
+	unit.setInputCoils(coils);
 
 	if (debug >= 3) {
 	    log.debug("ModbusSlave: Input Coils Enabled");
@@ -168,14 +176,104 @@ public class ModbusSlave extends Modbus implements Runnable {
      *             the output coils.
      */
     public void setOutputCoils(ModbusCoilBank coils) {
-	output_coils = coils;
-	output_coils_enabled = true;
+	unit.setOutputCoils(coils);
 
 	if (debug >= 3) {
 	    log.debug("ModbusSlave: Output Coils Enabled");
 	}
     }
 
+    /**
+     * Set the unit served for a unit identifier, so that one slave can
+     * answer for many devices, as a gateway does.  Requests are looked
+     * up in a table indexed by unit identifier, so serving many units
+     * costs no more per request than serving one.  The unit at the
+     * slave address given to the constructor is the one whose banks are
+     * set by setInputRegisters and the like, until it is replaced here.
+     *
+     * @param unitID The unit identifier, from 0 to 255.
+     * @param unit The unit to serve, or null to stop serving the
+     *             identifier.
+     * @throws IllegalArgumentException If the unit identifier is out of
+     *                                  range.
+     */
+    public void setUnit(int unitID, ModbusUnit unit) throws IllegalArgumentException {
+	if (unitID < 0 || unitID >= MAX_UNITS) {
+	    throw new IllegalArgumentException("Unit identifier is out of range");
+	}
+	units[unitID] = unit;
+    }
+
+    /**
+     * Get the unit served for a unit identifier.
+     *
+     * @param unitID The unit identifier, from 0 to 255.
+     * @return The unit, or null if the identifier has none of its own.
+     * @throws IllegalArgumentException If the unit identifier is out of
+     *                                  range.
+     */
+    public ModbusUnit getUnit(int unitID) throws IllegalArgumentException {
+	if (unitID < 0 || unitID >= MAX_UNITS) {
+	    throw new IllegalArgumentException("Unit identifier is out of range");
+	}
+	return units[unitID];
+    }
+
+    /**
+     * Set the unit served for requests to any unit identifier that has
+     * no unit of its own.  By default there is none and such requests
+     * are ignored, as they are addressed to some other device.
+     *
+     * @param unit The default unit, or null for none.
+     */
+    public void setDefaultUnit(ModbusUnit unit) {
+	defaultUnit = unit;
+    }
+
+    /**
+     * Set the handler of a function code, to add a function code that
+     * is not supported as standard, such as a vendor specific one, or to
+     * replace the standard handling of one.  Requests for function codes
+     * without a handler are answered with ILLEGAL_FUNCTION.
+     *
+     * @param function The function code, from 0 to 255.
+     * @param handler The handler, or null to stop supporting the
+     *                function code.
+     * @throws IllegalArgumentException If the function code is out of
+     *                                  range.
+     */
+    public void setFunctionHandler(int function, ModbusFunctionHandler handler) throws IllegalArgumentException {
+	if (function < 0 || function >= handlers.length) {
+	    throw new IllegalArgumentException("Function code is out of range");
+	}
+	handlers[function] = handler;
+    }
+
+    /**
+     * Get the handler of a function code.
+     *
+     * @param function The function code, from 0 to 255.
+     * @return The handler, or null if the function code is not supported.
+     * @throws IllegalArgumentException If the function code is out of
+     *                                  range.
+     */
+    public ModbusFunctionHandler getFunctionHandler(int function) throws IllegalArgumentException {
+	if (function < 0 || function >= handlers.length) {
+	    throw new IllegalArgumentException("Function code is out of range");
+	}
+	return handlers[function];
+    }
+
+    // Take on the units and function handlers of another slave, so a
+    // server can give each of its connections a slave of its own that
+    // serves the same devices
+    void copyConfiguration(ModbusSlave other) {
+	unit = other.unit;
+	defaultUnit = other.defaultUnit;
+	System.arraycopy(other.units, 0, units, 0, units.length);
+	System.arraycopy(other.handlers, 0, handlers, 0, handlers.length);
+    }
+
     /**
      * The run method for the slave object.  This will cause
      * the object to continually scan for input requests and
@@ -224,9 +322,58 @@ public class ModbusSlave extends Modbus implements Runnable {
 	    return false;
 	}
 	
+	// Process the request, if it was not for us then we have
+	// sucessfully processed it (by doing nothing)
+	if (!processMessage(request, response)) {
+	    return true;
+	}
+	
+	if (sendFrame(response)) {
+
+	    if (debug >= 2) {
+		log.debug("ModbusSlave: Response sent correctly");
+	    }
+
+	    return true;
+	}
+	else {
+
+	    if (debug >= 2) {
+		log.debug("ModbusSlave: Response send failed!");
+	    }
+
+	    return false;
+	}	
+    }		
+    
+    /**
+     * Function to process a single request that has already been
+     * received, preparing the response to be sent back.  This allows
+     * the slave to serve requests that arrive by some other means than
+     * its own transport, such as a server handling many connections.
+     * If the request was not addressed to one of its units false is
+     * returned and no response should be sent.
+     * <P>
+     * The slave keeps no state about the request being processed, so
+     * one slave object may process requests from several threads at
+     * once, provided its function handlers allow it, as the standard
+     * ones do.
+     *
+     * @param request The request message that was received.
+     * @param response The message the response is to be written into.
+     * @return True if the response should be sent.
+     */
+    public boolean processMessage(ModbusMessage request, ModbusMessage response) {
+	
+	ModbusUnit unit;
+
 	// We must now check that the request was actually
-	// addressed to us
-	if (request.buff[0] != slaveAddress) {
+	// addressed to one of our units
+	unit = units[request.buff[0] & 0xFF];
+	if (unit == null) {
+	    unit = defaultUnit;
+	}
+	if (unit == null) {
 	    
 	    // We will return true for we have sucessfully processed 
 	    // the request (by doing nothing as it wsn't for us)
@@ -234,69 +381,41 @@ public class ModbusSlave extends Modbus implements Runnable {
 		log.debug("ModbusSlave: message not addressed to us, address:" + request.buff[0]);
 	    }			
 	    
-	    return true; 
+	    return false; 
 	}
 	
-	// We must now switch on the function code and decide what 
-	// to do based on the different operations
-	switch (request.buff[1]) {
-	    
-	case READ_MULTIPLE_REGISTERS:
-	    // Print Message if in debug mode
-	    if (debug >= 2) {
-		log.debug("ModbusSlave: process READ_MULTIPLE_REGISTERS comand");
-	    }
-	    processReadMultipleRegisters();
-	    break;
-	    
-	case READ_INPUT_REGISTERS:
-	    // Print Message if in debug mode
-	    if (debug >= 2) {
-		log.debug("ModbusSlave: process READ_INPUT_REGISTERS comand");
-	    }
-	    processReadInputRegisters();
-	    break;
-	    
-	case WRITE_MULTIPLE_REGISTERS:
-	    // Print Message if in debug mode
-	    if (debug >= 2) {
-		log.debug("ModbusSlave: process WRITE_MULTIPLE_REGISTERS comand");
-	    }
-	    processWriteMultipleRegisters();
-	    break;
-	    
-	default:
+	// We must now look up the handler of the function code
+	// and let it process the request
+	ModbusFunctionHandler handler = handlers[request.buff[1] & 0xFF];
+	byte exception_code;
+
+	if (handler == null) {
 	    // The function code is unknown
 	    // Print Message if in debug mode
 	    if (debug >= 2) {
 		log.debug("ModbusSlave: process unknown comand :" + request.buff[1]);
 	    }
-	    generateException(ILLEGAL_FUNCTION);
-	    break;
-	}
-	
-	// No set the transaction IT on the return message
-	response.transID = request.transID;		
-	if (sendFrame(response)) {
-
-	    if (debug >= 2) {
-		log.debug("ModbusSlave: Response sent correctly");
-	    }
-
-	    return true;
+	    exception_code = ILLEGAL_FUNCTION;
 	}
 	else {
-
+	    // Print Message if in debug mode
 	    if (debug >= 2) {
-		log.debug("ModbusSlave: Response send failed!");
+		log.debug("ModbusSlave: process comand " + ByteUtils.toHex(request.buff[1]));
 	    }
+	    exception_code = handler.process(unit, request, response);
+	}
 
-	    return false;
-	}	
+	if (exception_code != 0) {
+	    generateException(request, response, exception_code);
+	}
+	
+	// No set the transaction IT on the return message
+	response.transID = request.transID;		
+	return true;
     }		
     
     // Prepare am exception message, given an exception code.
-    private void generateException(byte exception_code) {
+    private static void generateException(ModbusMessage request, ModbusMessage response, byte exception_code) {
 	
 	// Print Message if in debug mode
 	if (debug >= 2) {
@@ -304,7 +423,7 @@ public class ModbusSlave extends Modbus implements Runnable {
 	}
 	
 	// Set the unit identifier
-	response.buff[0] = slaveAddress;
+	response.buff[0] = request.buff[0];
 	
 	// Set function code
 	response.buff[1] = (byte) (request.buff[1] + EXCEPTION_MODIFIER);
@@ -319,8 +438,13 @@ public class ModbusSlave extends Modbus implements Runnable {
     // Process a message where the function code was READ_INPUT_REGISTERS
     // including preparing the message and returning the number of bytes to 
     // be returned
-    private void processReadInputRegisters() {
-	if (input_registers_enabled) {
+    private static byte processReadInputRegisters(ModbusUnit unit, ModbusMessage request, ModbusMessage response) {
+	ModbusRegisterBank registers = unit.getInputRegisters();
+	int offset;
+	int number;
+	int length;
+
+	if (registers != null) {
 	    // If this is a valid READ_INPUT_REGISTERS message
 	    // then the body length must be 6.
 	    // body byte 0 = unit identifier
@@ -330,13 +454,12 @@ public class ModbusSlave extends Modbus implements Runnable {
 	    // body byte 4 = high byte of register count
 	    // body byte 5 = low byte of register count
 	    if (request.length != 6) {
-		generateException(ILLEGAL_DATA_VALUE);
-		return;
+		return ILLEGAL_DATA_VALUE;
 	    }
 	    
 	    // Get the reference number and number of registers
-	    offset = ((request.buff[2] << 8) + (request.buff[3] << 0)) & 0xFFFF;
-	    number = ((request.buff[4] << 8) + (request.buff[5] << 0)) & 0xFFFF;
+	    offset = ((request.buff[2] & 0xFF) << 8) | (request.buff[3] & 0xFF);
+	    number = ((request.buff[4] & 0xFF) << 8) | (request.buff[5] & 0xFF);
 	    // Print Message if in debug mode
 	    if (debug >= 3) {
 		log.debug("Offset: "+offset);
@@ -345,9 +468,8 @@ public class ModbusSlave extends Modbus implements Runnable {
 	    
 	    // We now need to check that this is within bounds of our
 	    // input registers
-	    if (offset+number > input_registers.getNumberRegisters()) {
-		generateException(ILLEGAL_DATA_ADDRESS);
-		return;
+	    if (!registers.hasRegisters(offset, number)) {
+		return ILLEGAL_DATA_ADDRESS;
 	    }
 	    
 	    // Calculate the length of the reply message
@@ -360,14 +482,13 @@ public class ModbusSlave extends Modbus implements Runnable {
 	    // Check that the length is not greater than the maximum
 	    // permissbale length
 	    if (length > MAX_MESSAGE_LENGTH) {
-		generateException(ILLEGAL_RESPONSE_LENGTH);
-		return;
+		return ILLEGAL_RESPONSE_LENGTH;
 	    }
 	    
 	    // If we made is past all of that then start to assemble the message
 	    
 	    // Set the unit identifier
-	    response.buff[0] = slaveAddress;
+	    response.buff[0] = request.buff[0];
 	    
 	    // Set function code
 	    response.buff[1] = READ_INPUT_REGISTERS;
@@ -375,26 +496,29 @@ public class ModbusSlave extends Modbus implements Runnable {
 	    // Set the count of bytes
 	    response.buff[2] = (byte) ((2*number) & 0xFF);
 	    
-	    // Set the register values
-	    for (int i=0; i<number; i++) {
-		value = input_registers.getRegister(i+offset);
-		response.buff[3+(2*i)] = (byte) ((value >>> 8) & 0xFF);
-		response.buff[4+(2*i)] = (byte) ((value >>> 0) & 0xFF);
-	    } 
+	    // Set the register values, as a consistent snapshot
+	    registers.getRegisters(offset, number, response.buff, 3);
 
 	    // Set the message length
 	    response.length = length;
+
+	    return 0;
 	}
 	else {
-	    generateException(ILLEGAL_DATA_ADDRESS);
+	    return ILLEGAL_DATA_ADDRESS;
 	}
     }
     
     // Process a message where the function code was READ_MULTIPLE_REGISTERS
     // including preparing the message and returning the number of bytes to 
     // be returned
-    private void processReadMultipleRegisters() {
-	if (output_registers_enabled) {
+    private static byte processReadMultipleRegisters(ModbusUnit unit, ModbusMessage request, ModbusMessage response) {
+	ModbusRegisterBank registers = unit.getOutputRegisters();
+	int offset;
+	int number;
+	int length;
+
+	if (registers != null) {
 	    // If this is a valid READ_MULTIPLE_REGISTERS message
 	    // then the body length must be 6.
 	    // body byte 0 = unit identifier
@@ -404,13 +528,12 @@ public class ModbusSlave extends Modbus implements Runnable {
 	    // body byte 4 = high byte of register count
 	    // body byte 5 = low byte of register count
 	    if (request.length != 6) {
-		generateException(ILLEGAL_DATA_VALUE);
-		return;
+		return ILLEGAL_DATA_VALUE;
 	    }
 	    
 	    // Get the reference number and number of registers
-	    offset = ((request.buff[2] << 8) + (request.buff[3] << 0)) & 0xFFFF;
-	    number = ((request.buff[4] << 8) + (request.buff[5] << 0)) & 0xFFFF;
+	    offset = ((request.buff[2] & 0xFF) << 8) | (request.buff[3] & 0xFF);
+	    number = ((request.buff[4] & 0xFF) << 8) | (request.buff[5] & 0xFF);
 	    // Print Message if in debug mode
 	    if (debug >= 3) {
 		log.debug("Offset: "+offset);
@@ -419,9 +542,8 @@ public class ModbusSlave extends Modbus implements Runnable {
 	    
 	    // We now need to check that this is within bounds of our
 	    // input registers
-	    if (offset+number >output_registers.getNumberRegisters()) {
-		generateException(ILLEGAL_DATA_ADDRESS);
-		return;
+	    if (!registers.hasRegisters(offset, number)) {
+		return ILLEGAL_DATA_ADDRESS;
 	    }
 	    
 	    // Calculate the length of the reply message
@@ -434,14 +556,13 @@ public class ModbusSlave extends Modbus implements Runnable {
 	    // Check that the length is not greater than the maximum
 	    // permissbale length
 	    if (length > MAX_MESSAGE_LENGTH) {
-		generateException(ILLEGAL_RESPONSE_LENGTH);
-		return;
+		return ILLEGAL_RESPONSE_LENGTH;
 	    }
 	    
 	    // If we made is past all of that then start to assemble the message
 	    
 	    // Set the unit identifier
-	    response.buff[0] = slaveAddress;
+	    response.buff[0] = request.buff[0];
 	    
 	    // Set function code
 	    response.buff[1] = READ_MULTIPLE_REGISTERS;
@@ -449,26 +570,28 @@ public class ModbusSlave extends Modbus implements Runnable {
 	    // Set the count of bytes
 	    response.buff[2] = (byte) ((2*number) & 0xFF);
 	    
-	    // Set the register values
-	    for (int i=0; i<number; i++) {
-		value = output_registers.getRegister(i+offset);
-		response.buff[3+(2*i)] = (byte) ((value >>> 8) & 0xFF);
-		response.buff[4+(2*i)] = (byte) ((value >>> 0) & 0xFF);
-	    } 
+	    // Set the register values, as a consistent snapshot
+	    registers.getRegisters(offset, number, response.buff, 3);
 	    
 	    // Set the message length
 	    response.length = length;
+
+	    return 0;
 	}
 	else {
-	    generateException(ILLEGAL_DATA_ADDRESS);
+	    return ILLEGAL_DATA_ADDRESS;
 	}
     }
     
     // Process a message where the function code was WRITE_MULTIPLE_REGISTERS
     // including preparing the message and returning the number of bytes to 
     // be returned
-    private void processWriteMultipleRegisters() {
-	if (output_registers_enabled) {
+    private static byte processWriteMultipleRegisters(ModbusUnit unit, ModbusMessage request, ModbusMessage response) {
+	ModbusRegisterBank registers = unit.getOutputRegisters();
+	int offset;
+	int number;
+
+	if (registers != null) {
 	    // If this is a valid WRITE_MULTIPLE_REGISTERS message
 	    // then the body length must equate with the number of
 	    // words the message says it will contain.
@@ -483,8 +606,8 @@ public class ModbusSlave extends Modbus implements Runnable {
 	    // body byte 8+2n = low byte of word n
 	    
 	    // Get the reference number and number of registers
-	    offset = ((request.buff[2] << 8) + (request.buff[3] << 0)) & 0xFFFF;
-	    number = ((request.buff[4] << 8) + (request.buff[5] << 0)) & 0xFFFF;
+	    offset = ((request.buff[2] & 0xFF) << 8) | (request.buff[3] & 0xFF);
+	    number = ((request.buff[4] & 0xFF) << 8) | (request.buff[5] & 0xFF);
 	    // Print Message if in debug mode
 	    if (debug >= 3) {
 		log.debug("Offset: "+offset);
@@ -493,35 +616,29 @@ public class ModbusSlave extends Modbus implements Runnable {
 	    
 	    // We now need to check that this is within bounds of our
 	    // input registers
-	    if (offset+number > output_registers.getNumberRegisters()) {
-		generateException(ILLEGAL_DATA_ADDRESS);
-		return;
+	    if (!registers.hasRegisters(offset, number)) {
+		return ILLEGAL_DATA_ADDRESS;
 	    }
 	    
 	    // Now check the expected length
 	    if (request.length != (7+2*number)) {
-		generateException(ILLEGAL_DATA_VALUE);
-		return;
+		return ILLEGAL_DATA_VALUE;
 	    }
 	    
 	    // Now check that the bytes to follow adds up to twice
 	    // the word count
-	    if (((int) request.buff[6]) != (2*number)) {
-		generateException(ILLEGAL_DATA_VALUE);
-		return;
+	    if ((request.buff[6] & 0xFF) != (2*number)) {
+		return ILLEGAL_DATA_VALUE;
 	    }
 	    
-	    // now start reading the values and setting the registers
-	    for (int i=0; i<number; i++) {
-		value = ((request.buff[7+2*i] << 8) + (request.buff[8+2*i] << 0)) & 0xFFFF;
-		output_registers.setRegister(i+offset, value);
-	    } 
+	    // now set the registers, all in one go
+	    registers.setRegisters(offset, number, request.buff, 7);
 	    
 	    // If we made is past all of that then start to assemble 
 	    // the reply message
 	    
 	    // Set the unit identifier
-	    response.buff[0] = slaveAddress;
+	    response.buff[0] = request.buff[0];
 	    
 	    // Set function code
 	    response.buff[1] = WRITE_MULTIPLE_REGISTERS;
@@ -534,9 +651,262 @@ public class ModbusSlave extends Modbus implements Runnable {
 	    
 	    // Set the body length
 	    response.length = 6;
+
+	    return 0;
+	}
+	else {
+	    return ILLEGAL_DATA_ADDRESS;
+	}
+    }
+    
+    // Process a message where the function code was WRITE_SINGLE_REGISTER
+    private static byte processWriteSingleRegister(ModbusUnit unit, ModbusMessage request, ModbusMessage response) {
+	ModbusRegisterBank registers = unit.getOutputRegisters();
+	int offset;
+	int value;
+
+	if (registers != null) {
+	    // If this is a valid WRITE_SINGLE_REGISTER message then the
+	    // body length must be 6.
+	    // body byte 0 = unit identifier
+	    // body byte 1 = function code
+	    // body byte 2 = high byte of reference number
+	    // body byte 3 = low byte of reference number
+	    // body byte 4 = high byte of value
+	    // body byte 5 = low byte of value
+	    if (request.length != 6) {
+		return ILLEGAL_DATA_VALUE;
+	    }
+	    
+	    // Get the reference number
+	    offset = ((request.buff[2] & 0xFF) << 8) | (request.buff[3] & 0xFF);
+	    
+	    // We now need to check that this is within bounds of our
+	    // output registers
+	    if (!registers.hasRegisters(offset, 1)) {
+		return ILLEGAL_DATA_ADDRESS;
+	    }
+	    
+	    value = ((request.buff[4] & 0xFF) << 8) | (request.buff[5] & 0xFF);
+	    registers.setRegister(offset, value);
+	    
+	    // The reply is an echo of the request
+	    response.buff[0] = request.buff[0];
+	    response.buff[1] = WRITE_SINGLE_REGISTER;
+	    response.buff[2] = request.buff[2]; // ref high
+	    response.buff[3] = request.buff[3]; // ref low
+	    response.buff[4] = request.buff[4]; // value high
+	    response.buff[5] = request.buff[5]; // value low
+	    
+	    // Set the body length
+	    response.length = 6;
+
+	    return 0;
+	}
+	else {
+	    return ILLEGAL_DATA_ADDRESS;
+	}
+    }
+    
+    // Process a message where the function code was READ_COILS
+    private static byte processReadCoils(ModbusUnit unit, ModbusMessage request, ModbusMessage response) {
+	if (unit.getOutputCoils() == null) {
+	    return ILLEGAL_DATA_ADDRESS;
+	}
+	return processReadBits(request, response, unit.getOutputCoils());
+    }
+    
+    // Process a message where the function code was READ_INPUT_DISCRETES
+    private static byte processReadInputDiscretes(ModbusUnit unit, ModbusMessage request, ModbusMessage response) {
+	if (unit.getInputCoils() == null) {
+	    return ILLEGAL_DATA_ADDRESS;
+	}
+	return processReadBits(request, response, unit.getInputCoils());
+    }
+    
+    // Process a message where the function code was READ_COILS or
+    // READ_INPUT_DISCRETES, reading from the given bank.  The coils
+    // are packed straight from the bank into the response
+    private static byte processReadBits(ModbusMessage request, ModbusMessage response, ModbusCoilBank coils) {
+	int offset;
+	int number;
+	int length;
+
+	// If this is a valid READ_COILS or READ_INPUT_DISCRETES message
+	// then the body length must be 6.
+	// body byte 0 = unit identifier
+	// body byte 1 = function code
+	// body byte 2 = high byte of reference number
+	// body byte 3 = low byte of reference number
+	// body byte 4 = high byte of coil count
+	// body byte 5 = low byte of coil count
+	if (request.length != 6) {
+	    return ILLEGAL_DATA_VALUE;
+	}
+	
+	// Get the reference number and number of coils
+	offset = ((request.buff[2] & 0xFF) << 8) | (request.buff[3] & 0xFF);
+	number = ((request.buff[4] & 0xFF) << 8) | (request.buff[5] & 0xFF);
+	// Print Message if in debug mode
+	if (debug >= 3) {
+	    log.debug("Offset: "+offset);
+	    log.debug("Number of Coils: "+number);
+	}
+	
+	// The Modbus spec limits the number of coils to be read
+	if (number < 1 || number > MAX_READ_COILS) {
+	    return ILLEGAL_DATA_VALUE;
+	}
+	
+	// We now need to check that this is within bounds of the coils
+	if (offset+number > coils.getNumberCoils()) {
+	    return ILLEGAL_DATA_ADDRESS;
+	}
+	
+	// Set the unit identifier
+	response.buff[0] = request.buff[0];
+	
+	// Set function code
+	response.buff[1] = request.buff[1];
+	
+	// Set the coil values and the count of bytes
+	length = coils.getCoils(offset, number, response.buff, 3);
+	response.buff[2] = (byte) (length & 0xFF);
+	
+	// Set the message length
+	response.length = 3 + length;
+
+	return 0;
+    }
+    
+    // Process a message where the function code was WRITE_COIL
+    private static byte processWriteCoil(ModbusUnit unit, ModbusMessage request, ModbusMessage response) {
+	ModbusCoilBank coils = unit.getOutputCoils();
+	int offset;
+	int value;
+
+	if (coils != null) {
+	    // If this is a valid WRITE_COIL message then the body
+	    // length must be 6.
+	    // body byte 0 = unit identifier
+	    // body byte 1 = function code
+	    // body byte 2 = high byte of reference number
+	    // body byte 3 = low byte of reference number
+	    // body byte 4 = COIL_ON or COIL_OFF
+	    // body byte 5 = 0
+	    if (request.length != 6) {
+		return ILLEGAL_DATA_VALUE;
+	    }
+	    
+	    // Get the reference number and the value
+	    offset = ((request.buff[2] & 0xFF) << 8) | (request.buff[3] & 0xFF);
+	    value = ((request.buff[4] & 0xFF) << 8) | (request.buff[5] & 0xFF);
+	    // Print Message if in debug mode
+	    if (debug >= 3) {
+		log.debug("Offset: "+offset);
+		log.debug("Value: "+ByteUtils.toHex(request.buff[4]));
+	    }
+	    
+	    // The only values allowed are on and off
+	    if (value != ((COIL_ON & 0xFF) << 8) && value != ((COIL_OFF & 0xFF) << 8)) {
+		return ILLEGAL_DATA_VALUE;
+	    }
+	    
+	    // We now need to check that this is within bounds of our
+	    // output coils
+	    if (offset >= coils.getNumberCoils()) {
+		return ILLEGAL_DATA_ADDRESS;
+	    }
+	    
+	    coils.setCoil(offset, request.buff[4] == COIL_ON);
+	    
+	    // The reply is an echo of the request
+	    response.buff[0] = request.buff[0];
+	    response.buff[1] = WRITE_COIL;
+	    response.buff[2] = request.buff[2]; // ref high
+	    response.buff[3] = request.buff[3]; // ref low
+	    response.buff[4] = request.buff[4]; // value high
+	    response.buff[5] = request.buff[5]; // value low
+	    
+	    // Set the body length
+	    response.length = 6;
+
+	    return 0;
+	}
+	else {
+	    return ILLEGAL_DATA_ADDRESS;
+	}
+    }
+    
+    // Process a message where the function code was WRITE_MULTIPLE_COILS.
+    // The coils are unpacked straight from the request into the bank
+    private static byte processWriteMultipleCoils(ModbusUnit unit, ModbusMessage request, ModbusMessage response) {
+	ModbusCoilBank coils = unit.getOutputCoils();
+	int offset;
+	int number;
+	int length;
+
+	if (coils != null) {
+	    // If this is a valid WRITE_MULTIPLE_COILS message
+	    // then the body length must equate with the number of
+	    // coils the message says it will contain.
+	    // body byte 0 = unit identifier
+	    // body byte 1 = function code
+	    // body byte 2 = high byte of reference number
+	    // body byte 3 = low byte of reference number
+	    // body byte 4 = high byte of coil count
+	    // body byte 5 = low byte of coil count
+	    // body byte 6 = bytes to follow
+	    // body byte 7+n = coils 8n to 8n+7, the first in the lowest bit
+	    if (request.length < 7) {
+		return ILLEGAL_DATA_VALUE;
+	    }
+	    
+	    // Get the reference number and number of coils
+	    offset = ((request.buff[2] & 0xFF) << 8) | (request.buff[3] & 0xFF);
+	    number = ((request.buff[4] & 0xFF) << 8) | (request.buff[5] & 0xFF);
+	    length = (number + 7) >>> 3;
+	    // Print Message if in debug mode
+	    if (debug >= 3) {
+		log.debug("Offset: "+offset);
+		log.debug("Number of Coils: "+number);
+	    }
+	    
+	    // The Modbus spec limits the number of coils to be written,
+	    // and the bytes to follow must hold exactly that many coils
+	    if (number < 1 || number > MAX_WRITE_COILS
+		|| (request.buff[6] & 0xFF) != length
+		|| request.length != 7 + length) {
+		return ILLEGAL_DATA_VALUE;
+	    }
+	    
+	    // We now need to check that this is within bounds of our
+	    // output coils
+	    if (offset+number > coils.getNumberCoils()) {
+		return ILLEGAL_DATA_ADDRESS;
+	    }
+	    
+	    coils.setCoils(offset, number, request.buff, 7);
+	    
+	    // Set the unit identifier
+	    response.buff[0] = request.buff[0];
+	    
+	    // Set function code
+	    response.buff[1] = WRITE_MULTIPLE_COILS;
+	    
+	    // Set the reference number and coil counts
+	    response.buff[2] = request.buff[2]; // ref high
+	    response.buff[3] = request.buff[3]; // ref low
+	    response.buff[4] = request.buff[4]; // number high
+	    response.buff[5] = request.buff[5]; // number low
+	    
+	    // Set the body length
+	    response.length = 6;
+
+	    return 0;
 	}
 	else {
-	    generateException(ILLEGAL_DATA_ADDRESS);	
+	    return ILLEGAL_DATA_ADDRESS;
 	}
     }
 }
@@ -0,0 +1,495 @@
+/*
+ * ModbusTCPAsyncMaster.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class to implement an asynchronous Modbus TCP Master device.  All
+ * communication with the slave is done by two threads owned by this
+ * object, callers only queue transactions and are handed back a future.
+ * The I/O thread sends the queued transactions while there is room in
+ * the window, and a receiver thread matches the responses back to them
+ * by transaction ID, so many transactions can be in flight without a
+ * thread for each of them.
+ * <P>
+ * As the sending and receiving are done by separate threads, a slow
+ * response never holds up the transactions queued behind it, and with
+ * a timeout set a response that never arrives only fails its own
+ * transaction.  The futures are completed on the receiver thread, so
+ * anything chained onto them must not block for long.
+ * <P>
+ * The threads are created by ModbusThreads, so on Java 21 or later they
+ * are virtual threads and a poller can keep a connection to each of a
+ * very large number of slave devices.  The threads only ever wait on a
+ * ReentrantLock, never a monitor, so they do not pin their carriers.
+ */
+public class ModbusTCPAsyncMaster extends ModbusAsyncMaster implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(ModbusTCPAsyncMaster.class.getName());
+
+    // The master whose connection carries the transactions
+    private ModbusTCPMaster master;
+
+    // The I/O and receiver threads and a flag to tell them to stop
+    private Thread thread;
+    private Thread receiver;
+    private volatile boolean running = true;
+    private volatile int timeout = 0;
+
+    // The state shared by the threads and the callers is guarded by
+    // the lock, and the I/O thread waits on changed for something to
+    // send, room in the window or the next transaction to time out
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    // Transactions waiting to be sent by the I/O thread
+    private Queue<ModbusTransaction> queue = new ArrayDeque<ModbusTransaction>();
+
+    // Transactions sent but not yet answered, and when they were
+    // sent, packed into the first outstanding entries
+    private ModbusTransaction[] inflight;
+    private long[] sent;
+    private int outstanding = 0;
+    private int nextTransID = 0;
+
+    // Why the connection was closed, once it has been
+    private IOException cause;
+
+    // Messages used by the I/O and receiver threads respectively
+    private ModbusMessage request = new ModbusMessage();
+    private ModbusMessage response = new ModbusMessage();
+
+    /**
+     * Constructor that opens a connection to the specified host and
+     * port and starts the I/O thread.
+     *
+     * @param host The string name of the host to connect to.
+     * @param port The port number to connect to on the specified host.
+     * @param windowSize The maximum number of transactions to have
+     *                   outstanding at once.
+     * @throws IOException
+     */
+    public ModbusTCPAsyncMaster(String host, int port, int windowSize) throws IOException {
+	this(new ModbusTCPMaster(host, port), windowSize);
+    }
+
+    /**
+     * Constructor that takes over an existing master and starts the
+     * I/O thread.  The master must not be used by anything else
+     * afterwards, and should not have a timeout of its own as the
+     * receiver thread waits on the connection even when nothing is
+     * outstanding.
+     *
+     * @param master The master used to carry out the transactions.
+     * @param windowSize The maximum number of transactions to have
+     *                   outstanding at once.
+     */
+    public ModbusTCPAsyncMaster(ModbusTCPMaster master, int windowSize) {
+	if (windowSize < 1 || windowSize > Modbus.UINT16_MAX) {
+	    throw new IllegalArgumentException("Window size is out of range");
+	}
+
+	this.master = master;
+	inflight = new ModbusTransaction[windowSize];
+	sent = new long[windowSize];
+
+	thread = ModbusThreads.newThread(this, "ModbusTCPAsyncMaster " + master.getTransport());
+	receiver = ModbusThreads.newThread(this::receive, "ModbusTCPAsyncMaster receiver " + master.getTransport());
+	thread.start();
+	receiver.start();
+    }
+
+    /**
+     * Set the time to wait for the response to a transaction.  A
+     * transaction that is not answered in time completes exceptionally
+     * with a SocketTimeoutException and any late response to it is
+     * discarded.  The time counts from when the transaction is sent.
+     *
+     * @param timeout The timeout in milliseconds, or 0 to wait forever.
+     */
+    public void setTimeout(int timeout) {
+	if (timeout < 0) {
+	    throw new IllegalArgumentException("Timeout must not be negative");
+	}
+	this.timeout = timeout;
+
+	// Let the I/O thread work out its next deadline again
+	lock.lock();
+	try {
+	    changed.signalAll();
+	}
+	finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Get the time to wait for the response to a transaction.
+     *
+     * @return The timeout in milliseconds, or 0 if there is none.
+     */
+    public int getTimeout() {
+	return timeout;
+    }
+
+    /**
+     * Function to queue a transaction to be executed by the I/O thread.
+     *
+     * @param transaction The transaction to be executed.
+     * @return Future for the completed transaction.
+     */
+    public CompletableFuture<ModbusTransaction> submit(ModbusTransaction transaction) {
+	CompletableFuture<ModbusTransaction> future = attach(transaction);
+	IOException failure;
+
+	lock.lock();
+	try {
+	    if (running) {
+		queue.add(transaction);
+		changed.signalAll();
+		return future;
+	    }
+	    failure = cause;
+	}
+	finally {
+	    lock.unlock();
+	}
+
+	// The I/O thread has stopped so will never send it
+	fail(transaction, failure);
+	return future;
+    }
+
+    /**
+     * Function to close the connection and stop the threads.  Any
+     * transactions that have not been answered complete exceptionally.
+     */
+    public void disconnect() {
+	stop(new IOException("ModbusTCPAsyncMaster: disconnected"));
+    }
+
+    /**
+     * The run method for the I/O thread.  This sends queued transactions
+     * while there is room in the window and fails those that time out,
+     * untill the connection fails or the master is disconnected.
+     */
+    public void run() {
+	ModbusTransaction transaction = null;
+	IOException failure = null;
+	int transID;
+
+	if (Modbus.debug >= 1) {
+	    log.debug("ModbusTCPAsyncMaster: Starting I/O loop......");
+	}
+
+	try {
+	    while (running) {
+		expire();
+
+		// Take the next transaction if there is room in the
+		// window for it, otherwise wait for that to change or
+		// for the next outstanding transaction to time out
+		lock.lock();
+		try {
+		    if (queue.isEmpty() || outstanding >= inflight.length) {
+			awaitChange();
+			continue;
+		    }
+		    transaction = queue.poll();
+
+		    // Hand out the next transaction ID that is not outstanding
+		    do {
+			transID = nextTransID;
+			nextTransID = (nextTransID + 1) & Modbus.UINT16_MAX;
+		    } while (findOutstanding(transID) >= 0);
+		}
+		finally {
+		    lock.unlock();
+		}
+
+		try {
+		    transaction.prepare(request, transID);
+		}
+		catch (RuntimeException ex) {
+		    fail(transaction, new IOException(ex.getMessage(), ex));
+		    transaction = null;
+		    continue;
+		}
+
+		// Only this thread adds to the window, so the room and
+		// the transaction ID are still there
+		lock.lock();
+		try {
+		    if (!running) {
+			break;
+		    }
+		    sent[outstanding] = System.nanoTime();
+		    inflight[outstanding++] = transaction;
+		}
+		finally {
+		    lock.unlock();
+		}
+		transaction = null;
+
+		if (!master.sendFrame(request)) {
+		    failure = new IOException("ModbusTCPAsyncMaster: send failed");
+		    break;
+		}
+	    }
+	}
+	catch (InterruptedException ex) {
+	    // the thread was interrupted from outside
+	}
+	catch (IOException ex) {
+	    if (Modbus.debug >= 2) {
+		log.debug(ex.getMessage());
+	    }
+	    failure = ex;
+	}
+	catch (RuntimeException ex) {
+	    log.error("ModbusTCPAsyncMaster: failure on " + master.getTransport(), ex);
+	    failure = new IOException(ex.getMessage(), ex);
+	}
+
+	failure = stop(failure);
+	if (transaction != null) {
+	    fail(transaction, failure);
+	}
+
+	if (Modbus.debug >= 1) {
+	    log.debug("ModbusTCPAsyncMaster: I/O loop stopped");
+	}
+    }
+
+    // The run method for the receiver thread, which completes the
+    // outstanding transactions as their responses arrive
+    private void receive() {
+	ModbusTransaction transaction;
+	IOException failure = null;
+	int index;
+
+	try {
+	    while (running) {
+		if (!master.receiveFrame(response)) {
+		    failure = new IOException("ModbusTCPAsyncMaster: receive failed");
+		    break;
+		}
+
+		lock.lock();
+		try {
+		    index = findOutstanding(response.transID);
+		    transaction = index < 0 ? null : remove(index);
+		}
+		finally {
+		    lock.unlock();
+		}
+
+		// A transaction that timed out may still be answered
+		if (transaction == null) {
+		    if (Modbus.debug >= 2) {
+			log.debug("ModbusTCPAsyncMaster: response to unknown transaction ID " + response.transID);
+		    }
+		    continue;
+		}
+
+		transaction.complete(response);
+		finish(transaction);
+	    }
+	}
+	catch (IOException ex) {
+	    if (Modbus.debug >= 2) {
+		log.debug(ex.getMessage());
+	    }
+	    failure = ex;
+	}
+	catch (RuntimeException ex) {
+	    log.error("ModbusTCPAsyncMaster: failure on " + master.getTransport(), ex);
+	    failure = new IOException(ex.getMessage(), ex);
+	}
+
+	stop(failure);
+    }
+
+    // Close the connection and fail everything on it, returning
+    // the cause the transactions were failed with.  Whichever of
+    // the threads or disconnect gets here first sets the cause
+    private IOException stop(IOException failure) {
+	lock.lock();
+	try {
+	    if (cause == null) {
+		cause = failure != null ? failure : new IOException("ModbusTCPAsyncMaster: disconnected");
+	    }
+	    failure = cause;
+	    running = false;
+	    changed.signalAll();
+	}
+	finally {
+	    lock.unlock();
+	}
+
+	master.disconnect();
+	failOutstanding(failure);
+	failQueued(failure);
+	return failure;
+    }
+
+    // Wait until the queue or the window changes, or until the oldest
+    // outstanding transaction is due to time out.  Called by the I/O
+    // thread with the lock held
+    private void awaitChange() throws InterruptedException {
+	long limit = timeout * 1000000L;
+	long oldest;
+
+	if (limit == 0 || outstanding == 0) {
+	    changed.await();
+	    return;
+	}
+
+	oldest = sent[0];
+	for (int i=1; i<outstanding; i++) {
+	    if (sent[i] - oldest < 0) {
+		oldest = sent[i];
+	    }
+	}
+	changed.awaitNanos(oldest + limit - System.nanoTime());
+    }
+
+    // Fail the transactions that have waited too long for a response.
+    // They are failed outside the lock, as that completes their futures
+    private void expire() {
+	long limit = timeout * 1000000L;
+	ModbusTransaction transaction;
+
+	if (limit == 0) {
+	    return;
+	}
+	while ((transaction = takeExpired(System.nanoTime(), limit)) != null) {
+	    fail(transaction, new SocketTimeoutException("ModbusTCPAsyncMaster: transaction timed out"));
+	}
+    }
+
+    // Remove an outstanding transaction that has timed out
+    private ModbusTransaction takeExpired(long now, long limit) {
+	lock.lock();
+	try {
+	    for (int i=outstanding-1; i>=0; i--) {
+		if (now - sent[i] >= limit) {
+		    return remove(i);
+		}
+	    }
+	    return null;
+	}
+	finally {
+	    lock.unlock();
+	}
+    }
+
+    // Fail all the transactions that have been sent
+    private void failOutstanding(IOException cause) {
+	ModbusTransaction transaction;
+
+	while (true) {
+	    lock.lock();
+	    try {
+		if (outstanding == 0) {
+		    return;
+		}
+		transaction = remove(outstanding-1);
+	    }
+	    finally {
+		lock.unlock();
+	    }
+	    fail(transaction, cause);
+	}
+    }
+
+    // Fail all the transactions that are still queued
+    private void failQueued(IOException cause) {
+	ModbusTransaction transaction;
+
+	while (true) {
+	    lock.lock();
+	    try {
+		transaction = queue.poll();
+	    }
+	    finally {
+		lock.unlock();
+	    }
+	    if (transaction == null) {
+		return;
+	    }
+	    fail(transaction, cause);
+	}
+    }
+
+    // Remove an entry from the window, keeping it packed and
+    // letting the I/O thread know there is room.  Called with the
+    // lock held
+    private ModbusTransaction remove(int index) {
+	ModbusTransaction transaction = inflight[index];
+
+	outstanding--;
+	inflight[index] = inflight[outstanding];
+	sent[index] = sent[outstanding];
+	inflight[outstanding] = null;
+	changed.signalAll();
+	return transaction;
+    }
+
+    // Find the window index of an outstanding transaction ID.
+    // Called with the lock held
+    private int findOutstanding(int transID) {
+	for (int i=0; i<outstanding; i++) {
+	    if (inflight[i].getTransID() == transID) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * ModbusTCPBlockingServer.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class to implement a Modbus TCP server that serves each client
+ * connection with a ModbusTCPSlave blocking in its own thread, in the
+ * same way as the RandomRegs example used to.  The threads are created
+ * by ModbusThreads, so on Java 21 or later each connection runs on a
+ * virtual thread and the server scales to many thousands of connections
+ * while keeping the simple blocking code path.  On earlier versions each
+ * connection takes a platform thread, for which ModbusTCPServer is the
+ * better choice.
+ * <P>
+ * All the connections are served against the same register and coil
+ * banks, units and function handlers, which are set before the server
+ * is started.
+ */
+public class ModbusTCPBlockingServer implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(ModbusTCPBlockingServer.class.getName());
+
+    // Where to listen and who we are
+    private int port;
+    private int slaveAddress;
+
+    // The slave whose units and function handlers the slave of each
+    // connection is given, holding the registers and coils they share
+    private ModbusSlave slave;
+
+    // The listening socket, the thread accepting on it and the
+    // threads serving the connections
+    private ServerSocket server;
+    private Thread thread;
+    private ExecutorService executor;
+    private volatile boolean running = false;
+
+    // The connections being served, so they can be closed on stop
+    private Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Class constructor.
+     *
+     * @param port The port number to listen on, or 0 for any free port.
+     * @param slaveAddress The slave address (or unit indetifier) of this
+     *                     slave device.
+     */
+    public ModbusTCPBlockingServer(int port, int slaveAddress) {
+	if (port < 0 || port > Modbus.UINT16_MAX) {
+	    throw new IllegalArgumentException("Port is out of range");
+	}
+
+	this.port = port;
+	this.slaveAddress = slaveAddress;
+	slave = new ModbusSlave(null, slaveAddress);
+    }
+
+    /**
+     * Set the Input Register Bank served to all the connections.
+     *
+     * @param regs The ModbusRegisterBank object that represents
+     *             the input registers.
+     */
+    public void setInputRegisters(ModbusRegisterBank regs) {
+	slave.setInputRegisters(regs);
+    }
+
+    /**
+     * Set the Output Register Bank served to all the connections.
+     *
+     * @param regs The ModbusRegisterBank object that represents
+     *             the output registers.
+     */
+    public void setOutputRegisters(ModbusRegisterBank regs) {
+	slave.setOutputRegisters(regs);
+    }
+
+    /**
+     * Set the Input Coil Bank served to all the connections.
+     *
+     * @param coils The ModbusCoilBank object that represents
+     *              the input coils.
+     */
+    public void setInputCoils(ModbusCoilBank coils) {
+	slave.setInputCoils(coils);
+    }
+
+    /**
+     * Set the Output Coil Bank served to all the connections.
+     *
+     * @param coils The ModbusCoilBank object that represents
+     *              the output coils.
+     */
+    public void setOutputCoils(ModbusCoilBank coils) {
+	slave.setOutputCoils(coils);
+    }
+
+    /**
+     * Set the unit served for a unit identifier, so that the server can
+     * answer for all the devices behind a gateway over the same
+     * connections.  A unit set for the slave address of the server
+     * replaces the banks set by setInputRegisters and the like.
+     *
+     * @param unitID The unit identifier, from 0 to 255.
+     * @param unit The unit to serve, or null to stop serving the
+     *             identifier.
+     * @throws IllegalArgumentException If the unit identifier is out of
+     *                                  range.
+     */
+    public void setUnit(int unitID, ModbusUnit unit) throws IllegalArgumentException {
+	slave.setUnit(unitID, unit);
+    }
+
+    /**
+     * Set the unit served for requests to any unit identifier that has
+     * no unit of its own.
+     *
+     * @param unit The default unit, or null for none.
+     */
+    public void setDefaultUnit(ModbusUnit unit) {
+	slave.setDefaultUnit(unit);
+    }
+
+    /**
+     * Set the handler of a function code for all the connections, to
+     * serve a vendor specific function code or replace the standard
+     * handling of one.  The handler is called from the threads of all
+     * the connections, so it must be safe to call concurrently.
+     *
+     * @param function The function code, from 0 to 255.
+     * @param handler The handler, or null to stop supporting the
+     *                function code.
+     * @throws IllegalArgumentException If the function code is out of
+     *                                  range.
+     */
+    public void setFunctionHandler(int function, ModbusFunctionHandler handler) throws IllegalArgumentException {
+	slave.setFunctionHandler(function, handler);
+    }
+
+    /**
+     * Function to open the listening socket and start the thread
+     * accepting connections on it.
+     *
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException {
+	if (running) {
+	    throw new IllegalStateException("ModbusTCPBlockingServer: already started");
+	}
+
+	server = new ServerSocket();
+	try {
+	    server.setReuseAddress(true);
+	    server.bind(new InetSocketAddress(port));
+	}
+	catch (IOException ex) {
+	    server.close();
+	    throw ex;
+	}
+
+	running = true;
+	executor = ModbusThreads.newExecutor("ModbusTCPBlockingServer-" + getLocalPort());
+	thread = new Thread(this, "ModbusTCPBlockingServer " + getLocalPort());
+	thread.start();
+
+	if (Modbus.debug >= 1) {
+	    log.debug("ModbusTCPBlockingServer: listening on port " + getLocalPort()
+		      + (ModbusThreads.isVirtual() ? " using virtual threads" : ""));
+	}
+    }
+
+    /**
+     * Function to stop the server.  The listening socket and all the
+     * client connections are closed.
+     */
+    public synchronized void stop() {
+	if (!running) {
+	    return;
+	}
+	running = false;
+
+	try {
+	    server.close();
+	}
+	catch (IOException ex) {
+	    log.warn(ex.getMessage());
+	}
+	for (Socket socket : connections) {
+	    close(socket);
+	}
+	executor.shutdown();
+    }
+
+    /**
+     * Get the port number the server is listening on.  This is useful
+     * when the server was created to listen on any free port.
+     *
+     * @return The port number, or -1 if the server has not been started.
+     */
+    public int getLocalPort() {
+	return server == null ? -1 : server.getLocalPort();
+    }
+
+    /**
+     * The run method for the accepting thread.  Each connection accepted
+     * is handed to a thread of its own to be served.
+     */
+    public void run() {
+	Socket socket;
+
+	while (running) {
+	    try {
+		socket = server.accept();
+	    }
+	    catch (IOException ex) {
+		if (running) {
+		    log.error(ex.getMessage(), ex);
+		}
+		break;
+	    }
+
+	    if (Modbus.debug >= 2) {
+		log.debug("ModbusTCPBlockingServer: accepted connection from " + socket.getRemoteSocketAddress());
+	    }
+
+	    connections.add(socket);
+	    try {
+		executor.execute(new Connection(socket));
+	    }
+	    catch (RuntimeException ex) {
+		// The executor was shut down by stop
+		close(socket);
+	    }
+	}
+    }
+
+    // Close a client connection
+    private void close(Socket socket) {
+	connections.remove(socket);
+	try {
+	    socket.close();
+	}
+	catch (IOException ex) {
+	    log.warn(ex.getMessage());
+	}
+    }
+
+    // The loop serving a single connection
+    private class Connection implements Runnable {
+
+	private Socket socket;
+
+	Connection(Socket socket) {
+	    this.socket = socket;
+	}
+
+	public void run() {
+	    ModbusTCPSlave connectionSlave;
+
+	    try {
+		socket.setTcpNoDelay(true);
+		connectionSlave = new ModbusTCPSlave(slaveAddress, socket);
+		connectionSlave.copyConfiguration(slave);
+
+		// Unlike ModbusSlave.run we give up on the connection
+		// when it fails, rather than trying it again
+		while (running && connectionSlave.processRequest()) {
+		}
+	    }
+	    catch (IOException ex) {
+		if (running && Modbus.debug >= 2) {
+		    log.debug("ModbusTCPBlockingServer: " + ex.getMessage());
+		}
+	    }
+	    finally {
+		close(socket);
+	    }
+
+	    if (Modbus.debug >= 2) {
+		log.debug("ModbusTCPBlockingServer: closed connection from " + socket.getRemoteSocketAddress());
+	    }
+	}
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * ModbusTCPChannelTransport.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class to implement the Modbus TCP transport over a blocking
+ * SocketChannel, sending and receiving frames held in ByteBuffers.  A
+ * frame is sent with a single write and, when the other end sends one
+ * frame at a time, received with a single read straight into the frame's
+ * buffer.
+ * <P>
+ * As the length of a frame is not known until its header has arrived,
+ * a read may take in the start of the next frame as well.  Those bytes
+ * are kept and put at the start of the next frame received.
+ */
+public class ModbusTCPChannelTransport implements ModbusBufferTransport {
+
+	private static final Logger log = LoggerFactory.getLogger(ModbusTCPChannelTransport.class.getName());
+
+    // The channel the frames are sent and received over
+    private SocketChannel channel;
+
+    // Bytes read past the end of the last frame received
+    private ByteBuffer carry = ByteBuffer.allocate(ModbusFrame.CAPACITY);
+
+    /**
+     * Constructor that uses an existing channel, which is put into
+     * blocking mode with Nagle's algorithm turned off.
+     *
+     * @param channel The connected channel to communicate over.
+     * @throws IOException
+     */
+    public ModbusTCPChannelTransport(SocketChannel channel) throws IOException {
+	this.channel = channel;
+	channel.configureBlocking(true);
+	channel.socket().setTcpNoDelay(true);
+    }
+
+    /**
+     * Constructor that opens a channel to the specified host and port.
+     *
+     * @param host The string name of the host to connect to.
+     * @param port The port number to connect to on the specified host.
+     * @throws IOException
+     */
+    public ModbusTCPChannelTransport(String host, int port) throws IOException {
+	channel = SocketChannel.open();
+	try {
+	    channel.socket().setTcpNoDelay(true);
+	    channel.connect(new InetSocketAddress(host, port));
+	}
+	catch (IOException ex) {
+	    channel.close();
+	    throw ex;
+	}
+
+	if (Modbus.debug >= 1) {
+	    log.debug("ModbusTCPChannelTransport: connected to " + host + ":" + port);
+	}
+    }
+
+    public boolean sendFrame(ModbusFrame frame) throws IOException {
+	ByteBuffer buffer = frame.getBuffer();
+
+	buffer.limit(ModbusTCPTransport.HEADER_LENGTH + frame.getLength());
+	buffer.position(0);
+
+	while (buffer.hasRemaining()) {
+	    channel.write(buffer);
+	}
+	buffer.position(0);
+
+	if (Modbus.debug >= 3) {
+	    log.debug("ModbusTCPChannelTransport: sent frame, transaction ID " + frame.getTransID());
+	}
+	return true;
+    }
+
+    public boolean receiveFrame(ModbusFrame frame) throws IOException {
+	ByteBuffer buffer = frame.getBuffer();
+	int total;
+
+	buffer.clear();
+
+	// Start with what was left over from the last frame
+	if (carry.position() > 0) {
+	    carry.flip();
+	    buffer.put(carry);
+	    carry.clear();
+	}
+
+	if (!fill(buffer, ModbusTCPTransport.HEADER_LENGTH)) {
+	    return false;
+	}
+
+	// As per the Modbus TCP spec we close the connection if we
+	// do not understand the header
+	if (!frame.checkHeader()) {
+	    if (Modbus.debug >= 3) {
+		log.debug("ModbusTCPChannelTransport: Header Check Failed!");
+	    }
+	    disconnect();
+	    return false;
+	}
+
+	total = ModbusTCPTransport.HEADER_LENGTH + frame.getLength();
+	if (!fill(buffer, total)) {
+	    return false;
+	}
+
+	// Keep anything that belongs to the next frame
+	if (buffer.position() > total) {
+	    buffer.limit(buffer.position());
+	    buffer.position(total);
+	    carry.put(buffer);
+	}
+
+	buffer.limit(total);
+	buffer.position(0);
+	return true;
+    }
+
+    // Read until the buffer holds at least the given number of bytes
+    private boolean fill(ByteBuffer buffer, int length) throws IOException {
+	while (buffer.position() < length) {
+	    if (channel.read(buffer) < 0) {
+		if (Modbus.debug >= 2) {
+		    log.debug("ModbusTCPChannelTransport: Stream Closed, receive returning false");
+		}
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    public void disconnect() {
+	try {
+	    channel.close();
+	}
+	catch (IOException ex) {
+	    log.warn(ex.getMessage());
+	}
+    }
+
+    public String toString() {
+	return channel.toString();
+    }
+}
@@ -40,16 +40,43 @@ package net.sourceforge.jmodbus;
 
 import java.io.IOException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * Class to implement a Modbus TCP Master device.  This class only
  * defines what type of transport if to be used, all the work in 
  * generating and sending requests is performed by the methods in the 
  * ModbusMaster class. 
+ * <P>
+ * As Modbus TCP carries a transaction ID with every frame, this master
+ * can also pipeline groups of transactions.  Up to the window size of
+ * transactions are sent before waiting for the responses, which are
+ * matched back to their queries by transaction ID in whatever order
+ * the slave answers them.
  *
  * @author Kelvin Proctor
  */
 public class ModbusTCPMaster extends ModbusMaster {
     
+	private static final Logger log = LoggerFactory.getLogger(ModbusTCPMaster.class.getName());
+
+    // Messages used to send and receive pipelined transactions
+    private ModbusMessage request = new ModbusMessage();
+    private ModbusMessage response = new ModbusMessage();
+
+    // Number of transactions that may be outstanding at once
+    private int windowSize = 1;
+
+    // Transactions that have been sent but not yet answered, packed
+    // into the first outstanding entries of the array
+    private ModbusTransaction[] inflight = new ModbusTransaction[1];
+    private int outstanding = 0;
+
+    // The transaction ID that will be handed out to the next
+    // transaction executed by this master
+    private int nextTransID = 0;
+
     /**
      * Constructor that uses the TCP transport.  A socket
      * will be opened to the specified host, on the specified
@@ -66,7 +93,260 @@ public class ModbusTCPMaster extends ModbusMaster {
 	super(new ModbusTCPTransport(host, port));
     }
     
-    
+    /**
+     * Set the time to wait for a response from the slave device.  If
+     * it expires a SocketTimeoutException is thrown and the master
+     * should be disconnected.
+     *
+     * @param timeout The timeout in milliseconds, or 0 to wait forever.
+     * @throws IOException
+     */
+    public void setTimeout(int timeout) throws IOException {
+	((ModbusTCPTransport) transport).setTimeout(timeout);
+    }
+
+    /**
+     * Check if the connection to the slave device is still open.
+     *
+     * @return True if the connection is open.
+     */
+    public boolean isConnected() {
+	return ((ModbusTCPTransport) transport).isConnected();
+    }
+
+    /**
+     * Set the number of transactions that may be outstanding on the
+     * connection at once when executing a group of transactions.  A
+     * window size of 1 (the default) waits for each response before
+     * sending the next query.
+     *
+     * @param windowSize The maximum number of outstanding transactions.
+     */
+    public void setWindowSize(int windowSize) throws IllegalArgumentException {
+	if (windowSize < 1 || windowSize > UINT16_MAX) {
+	    throw new IllegalArgumentException("Window size is out of range");
+	}
+	if (outstanding > 0) {
+	    throw new IllegalStateException("Window size can not change while transactions are outstanding");
+	}
+	this.windowSize = windowSize;
+	inflight = new ModbusTransaction[windowSize];
+    }
+
+    /**
+     * Get the number of transactions that may be outstanding at once.
+     *
+     * @return The window size.
+     */
+    public int getWindowSize() {
+	return windowSize;
+    }
+
+    /**
+     * Get the number of transactions that have been sent and are
+     * still waiting for a response.
+     *
+     * @return The number of outstanding transactions.
+     */
+    public int getOutstanding() {
+	return outstanding;
+    }
+
+    /**
+     * Function to execute a group of transactions against the slave
+     * device, keeping up to the window size of them outstanding at
+     * once.  Responses are matched to their transactions by transaction
+     * ID, so the slave may answer them in any order.  A boolean is
+     * returned indicating if every transaction completed sucessfully.
+     * If the connection fails, or a transaction can not be sent, any
+     * unanswered transactions are marked as failed and the window is
+     * left empty.
+     *
+     * @param transactions The transactions to be executed.
+     * @return True if all of the transactions completed without error.
+     * @throws IOException
+     */
+    public boolean execute(ModbusTransaction[] transactions) throws IOException {
+	boolean retval = true;
+	int next = 0;
+	ModbusTransaction done;
+
+	try {
+	    while (next < transactions.length || outstanding > 0) {
+
+		// Fill the window up with queries
+		while (next < transactions.length && outstanding < windowSize) {
+		    if (!sendTransaction(transactions[next])) {
+			failTransactions(transactions, next);
+			return false;
+		    }
+		    next++;
+		}
+
+		// Then wait for any one of them to be answered
+		done = receiveTransaction();
+		if (done == null) {
+		    failTransactions(transactions, next);
+		    return false;
+		}
+		if (!done.isComplete()) {
+		    retval = false;
+		}
+	    }
+	}
+	catch (IOException ex) {
+	    failTransactions(transactions, next);
+	    throw ex;
+	}
+	catch (RuntimeException ex) {
+	    // Nothing must be left in the window for the next call
+	    failTransactions(transactions, next);
+	    throw ex;
+	}
+
+	return retval;
+    }
+
+    /**
+     * Function to hand out the transaction ID for the next transaction
+     * executed by this master, which is carried in the MBAP header of
+     * the request and echoed in the response.  The ID wraps around at
+     * the maximum value of a 16 bit UINT.
+     *
+     * @return The transaction ID to use.
+     */
+    protected int nextTransactionID() {
+	int transID = nextTransID;
+	nextTransID = (nextTransID + 1) & UINT16_MAX;
+	return transID;
+    }
+
+    /**
+     * Function to send a transaction without waiting for the response.
+     * The transaction is given a transaction ID that is not in use by
+     * any other outstanding transaction.  The window must not be full.
+     *
+     * @param transaction The transaction to be sent.
+     * @return Transmission sucess flag, to indicate if the transmission
+     *         was sucessful.
+     * @throws IOException
+     */
+    protected boolean sendTransaction(ModbusTransaction transaction) throws IOException {
+	int transID;
+
+	if (outstanding >= windowSize) {
+	    throw new IllegalStateException("Transaction window is full");
+	}
+
+	// Hand out the next transaction ID that is not outstanding
+	do {
+	    transID = nextTransactionID();
+	} while (findOutstanding(transID) >= 0);
+
+	transaction.prepare(request, transID);
+	inflight[outstanding++] = transaction;
+
+	if (!sendFrame(request)) {
+	    if (debug >= 2) {
+		log.debug("ModbusTCPMaster: sendFrame failed!");
+	    }
+	    inflight[--outstanding] = null;
+	    transaction.fail();
+	    return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Function to receive the response to any one of the outstanding
+     * transactions.  This will block until a response arrives.  Responses
+     * with a transaction ID that is not outstanding are discarded.
+     *
+     * @return The transaction that was answered, or null if nothing was
+     *         outstanding or the receive failed.
+     * @throws IOException
+     */
+    protected ModbusTransaction receiveTransaction() throws IOException {
+	int index;
+	ModbusTransaction transaction;
+
+	while (outstanding > 0) {
+	    if (!receiveFrame(response)) {
+		if (debug >= 2) {
+		    log.debug("ModbusTCPMaster: receiveFrame failed!");
+		}
+		return null;
+	    }
+
+	    index = findOutstanding(response.transID);
+	    if (index < 0) {
+		if (debug >= 2) {
+		    log.debug("ModbusTCPMaster: response to unknown transaction ID " + response.transID);
+		}
+		continue;
+	    }
+
+	    // Keep the window packed by moving the last entry into the hole
+	    transaction = inflight[index];
+	    inflight[index] = inflight[--outstanding];
+	    inflight[outstanding] = null;
+
+	    transaction.complete(response);
+	    return transaction;
+	}
+
+	return null;
+    }
+
+    /**
+     * Function to mark all outstanding transactions as failed and clear
+     * the window.  This should be used when the connection has failed
+     * and the responses will never arrive.
+     */
+    protected void failTransactions() {
+	ModbusTransaction transaction;
+
+	while ((transaction = takeOutstanding()) != null) {
+	    transaction.fail();
+	}
+    }
+
+    /**
+     * Function to remove one of the outstanding transactions from the
+     * window without waiting for its response.  Any response that does
+     * arrive for it later will be discarded.
+     *
+     * @return The transaction removed, or null if nothing is outstanding.
+     */
+    protected ModbusTransaction takeOutstanding() {
+	ModbusTransaction transaction;
+
+	if (outstanding == 0) {
+	    return null;
+	}
+	transaction = inflight[--outstanding];
+	inflight[outstanding] = null;
+	return transaction;
+    }
+
+    // Fail everything outstanding and the transactions not yet sent
+    private void failTransactions(ModbusTransaction[] transactions, int next) {
+	failTransactions();
+	for (int i=next; i<transactions.length; i++) {
+	    transactions[i].fail();
+	}
+    }
+
+    // Find the window index of an outstanding transaction ID
+    private int findOutstanding(int transID) {
+	for (int i=0; i<outstanding; i++) {
+	    if (inflight[i].getTransID() == transID) {
+		return i;
+	    }
+	}
+	return -1;
+    }
 }
 
 
@@ -0,0 +1,553 @@
+/*
+ * ModbusTCPMasterPool.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class to keep a pool of connections to a single Modbus TCP slave
+ * device.  A ModbusTCPMaster can only be used by one thread at a time, so
+ * a thread wanting to talk to the slave leases a master from the pool,
+ * uses it and then releases it back to the pool, where it stays connected
+ * for the next thread.  Between the minimum and maximum number of
+ * connections are kept open, further threads waiting for a master to be
+ * released.
+ * <P>
+ * A master that has gone wrong, such as one that threw an IOException,
+ * should be handed back with invalidate rather than release so it is
+ * closed.  Masters that have been idle for longer than the health check
+ * interval are checked with a read before being leased, and masters idle
+ * for longer than the idle timeout are closed, down to the minimum
+ * number of connections.
+ * <P>
+ * The execute functions lease a master, execute transactions with it and
+ * release it again, which is all most users of the pool need.
+ */
+public class ModbusTCPMasterPool {
+
+	private static final Logger log = LoggerFactory.getLogger(ModbusTCPMasterPool.class.getName());
+
+    // Where to connect to and how many connections to have
+    private String host;
+    private int port;
+    private int minConnections;
+    private int maxConnections;
+
+    // Settings
+    private int timeout = 0;
+    private long leaseTimeout = 0;
+    private long idleTimeout = 0;
+    private long checkInterval = 0;
+    private int checkUnitID;
+    private int checkReference;
+
+    // Idle masters, most recently used first, masters leased out
+    // and the number of connections open or being opened
+    private Deque<Pooled> idle = new ArrayDeque<Pooled>();
+    private Map<ModbusTCPMaster, Pooled> leased = new IdentityHashMap<ModbusTCPMaster, Pooled>();
+    private int connections = 0;
+    private boolean closed = false;
+
+    // Thread that closes idle masters and opens the minimum
+    private ScheduledExecutorService maintainer;
+
+    /**
+     * Class constructor.  The minimum number of connections is opened
+     * straight away.
+     *
+     * @param host The string name of the host to connect to.
+     * @param port The port number to connect to on the specified host.
+     * @param minConnections The number of connections to keep open
+     *                       even when they are not being used.
+     * @param maxConnections The largest number of connections to open.
+     * @throws IOException
+     */
+    public ModbusTCPMasterPool(String host,
+			       int port,
+			       int minConnections,
+			       int maxConnections) throws IOException {
+	if (minConnections < 0 || maxConnections < 1 || minConnections > maxConnections) {
+	    throw new IllegalArgumentException("Connection limits are out of range");
+	}
+
+	this.host = host;
+	this.port = port;
+	this.minConnections = minConnections;
+	this.maxConnections = maxConnections;
+
+	try {
+	    for (int i=0; i<minConnections; i++) {
+		idle.add(new Pooled(open()));
+		connections++;
+	    }
+	}
+	catch (IOException ex) {
+	    close();
+	    throw ex;
+	}
+
+	maintainer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		public Thread newThread(Runnable task) {
+		    Thread thread = new Thread(task, "ModbusTCPMasterPool " + ModbusTCPMasterPool.this.host + ":" + ModbusTCPMasterPool.this.port);
+
+		    thread.setDaemon(true);
+		    return thread;
+		}
+	    });
+	maintainer.scheduleWithFixedDelay(new Runnable() {
+		public void run() {
+		    maintain();
+		}
+	    }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Set the time to wait for a response on connections opened after
+     * this call.
+     *
+     * @param timeout The timeout in milliseconds, or 0 to wait forever.
+     */
+    public synchronized void setTimeout(int timeout) {
+	if (timeout < 0) {
+	    throw new IllegalArgumentException("Timeout must not be negative");
+	}
+	this.timeout = timeout;
+    }
+
+    /**
+     * Set the time to wait in lease for a master to be released when
+     * the maximum number of connections are all leased.
+     *
+     * @param leaseTimeout The timeout in milliseconds, or 0 to wait forever.
+     */
+    public synchronized void setLeaseTimeout(long leaseTimeout) {
+	if (leaseTimeout < 0) {
+	    throw new IllegalArgumentException("Lease timeout must not be negative");
+	}
+	this.leaseTimeout = leaseTimeout;
+    }
+
+    /**
+     * Set the time after which idle masters above the minimum number of
+     * connections are closed.
+     *
+     * @param idleTimeout The timeout in milliseconds, or 0 to keep
+     *                    them open.
+     */
+    public synchronized void setIdleTimeout(long idleTimeout) {
+	if (idleTimeout < 0) {
+	    throw new IllegalArgumentException("Idle timeout must not be negative");
+	}
+	this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Set up the health check of idle masters.  A master that has been
+     * idle for longer than the interval reads a single holding register
+     * before it is leased, and is closed if it gets no response.  A
+     * Modbus exception response shows the connection works, so any
+     * register may be used.
+     *
+     * @param unitID The unit ID to read from.
+     * @param reference The reference number of the register to read.
+     * @param interval The idle time in milliseconds after which a master
+     *                 is checked, or 0 to not check.
+     */
+    public synchronized void setHealthCheck(int unitID, int reference, long interval) {
+	ModbusMaster.checkArguments(unitID, reference, 1, 0);
+
+	if (interval < 0) {
+	    throw new IllegalArgumentException("Health check interval must not be negative");
+	}
+	checkUnitID = unitID;
+	checkReference = reference;
+	checkInterval = interval;
+    }
+
+    /**
+     * Function to lease a master from the pool.  The master must be
+     * handed back with release or invalidate once it has been used.
+     *
+     * @return The master.
+     * @throws IOException If the pool is closed, a connection could not
+     *                     be opened or the lease timeout expired.
+     */
+    public ModbusTCPMaster lease() throws IOException {
+	Pooled pooled;
+	ModbusTCPMaster master;
+
+	while (true) {
+	    pooled = take();
+
+	    // A new connection is to be opened
+	    if (pooled == null) {
+		try {
+		    master = open();
+		}
+		catch (IOException ex) {
+		    discard(null);
+		    throw ex;
+		}
+		synchronized (this) {
+		    if (!closed) {
+			leased.put(master, new Pooled(master));
+			return master;
+		    }
+		}
+		discard(master);
+		throw new IOException("ModbusTCPMasterPool: closed");
+	    }
+
+	    if (check(pooled)) {
+		return pooled.master;
+	    }
+
+	    // Try again with another master
+	    synchronized (this) {
+		leased.remove(pooled.master);
+	    }
+	    discard(pooled.master);
+	}
+    }
+
+    /**
+     * Function to hand a master back to the pool after using it.
+     *
+     * @param master The master leased from the pool.
+     */
+    public void release(ModbusTCPMaster master) {
+	synchronized (this) {
+	    Pooled pooled = leased.remove(master);
+
+	    if (pooled == null) {
+		throw new IllegalArgumentException("Master was not leased from this pool");
+	    }
+
+	    // A master left with transactions outstanding can not be
+	    // used again, as their responses might still arrive
+	    if (!closed && master.isConnected() && master.getOutstanding() == 0) {
+		pooled.lastUsed = System.nanoTime();
+		idle.addFirst(pooled);
+		notify();
+		return;
+	    }
+	}
+	discard(master);
+    }
+
+    /**
+     * Function to hand back a master that has gone wrong, so that it is
+     * closed rather than used again.
+     *
+     * @param master The master leased from the pool.
+     */
+    public void invalidate(ModbusTCPMaster master) {
+	synchronized (this) {
+	    if (leased.remove(master) == null) {
+		throw new IllegalArgumentException("Master was not leased from this pool");
+	    }
+	}
+	discard(master);
+    }
+
+    /**
+     * Function to execute a transaction with a master from the pool.
+     *
+     * @param transaction The transaction to be executed.
+     * @return True if the transaction completed without error.
+     * @throws IOException
+     */
+    public boolean execute(ModbusTransaction transaction) throws IOException {
+	return execute(new ModbusTransaction[] { transaction });
+    }
+
+    /**
+     * Function to execute a group of transactions with a master from
+     * the pool, pipelined up to the window size of the master.
+     *
+     * @param transactions The transactions to be executed.
+     * @return True if all of the transactions completed without error.
+     * @throws IOException
+     */
+    public boolean execute(ModbusTransaction[] transactions) throws IOException {
+	ModbusTCPMaster master = lease();
+	boolean retval;
+
+	try {
+	    retval = master.execute(transactions);
+	}
+	catch (IOException ex) {
+	    invalidate(master);
+	    throw ex;
+	}
+	catch (RuntimeException ex) {
+	    invalidate(master);
+	    throw ex;
+	}
+
+	release(master);
+	return retval;
+    }
+
+    /**
+     * Get the number of connections open, both idle and leased.
+     *
+     * @return The number of connections.
+     */
+    public synchronized int getConnections() {
+	return connections;
+    }
+
+    /**
+     * Get the number of masters waiting in the pool to be leased.
+     *
+     * @return The number of idle masters.
+     */
+    public synchronized int getIdle() {
+	return idle.size();
+    }
+
+    /**
+     * Function to close the pool.  Idle masters are closed straight
+     * away and leased ones as they are handed back.
+     */
+    public void close() {
+	List<Pooled> closing;
+
+	synchronized (this) {
+	    closed = true;
+	    closing = new ArrayList<Pooled>(idle);
+	    idle.clear();
+	    notifyAll();
+	}
+
+	if (maintainer != null) {
+	    maintainer.shutdown();
+	}
+	for (int i=0; i<closing.size(); i++) {
+	    discard(closing.get(i).master);
+	}
+    }
+
+    // Take an idle master, or return null once a new connection has
+    // been counted that the caller is to open
+    private synchronized Pooled take() throws IOException {
+	Pooled pooled;
+	long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseTimeout);
+	long wait;
+
+	while (true) {
+	    if (closed) {
+		throw new IOException("ModbusTCPMasterPool: closed");
+	    }
+
+	    pooled = idle.pollFirst();
+	    if (pooled != null) {
+		leased.put(pooled.master, pooled);
+		return pooled;
+	    }
+
+	    if (connections < maxConnections) {
+		connections++;
+		return null;
+	    }
+
+	    if (leaseTimeout == 0) {
+		wait = 0;
+	    }
+	    else {
+		wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+		if (wait <= 0) {
+		    throw new IOException("ModbusTCPMasterPool: no connection available");
+		}
+	    }
+
+	    try {
+		wait(wait);
+	    }
+	    catch (InterruptedException ex) {
+		Thread.currentThread().interrupt();
+		throw new IOException("ModbusTCPMasterPool: interrupted");
+	    }
+	}
+    }
+
+    // Check that a master taken from the pool still works
+    private boolean check(Pooled pooled) {
+	ModbusTransaction transaction;
+	long interval;
+	int unitID;
+	int reference;
+
+	synchronized (this) {
+	    interval = TimeUnit.MILLISECONDS.toNanos(checkInterval);
+	    unitID = checkUnitID;
+	    reference = checkReference;
+	}
+
+	if (!pooled.master.isConnected()) {
+	    return false;
+	}
+	if (interval == 0 || System.nanoTime() - pooled.lastUsed < interval) {
+	    return true;
+	}
+
+	transaction = ModbusTransaction.readMultipleRegisters(unitID, reference, 1);
+	try {
+	    pooled.master.execute(transaction);
+	}
+	catch (IOException ex) {
+	    if (Modbus.debug >= 2) {
+		log.debug("ModbusTCPMasterPool: health check failed: " + ex.getMessage());
+	    }
+	    return false;
+	}
+
+	return transaction.getState() == ModbusTransaction.COMPLETE
+	    || transaction.getState() == ModbusTransaction.EXCEPTION;
+    }
+
+    // Open a new connection
+    private ModbusTCPMaster open() throws IOException {
+	ModbusTCPMaster master = new ModbusTCPMaster(host, port);
+
+	try {
+	    master.setTimeout(timeout);
+	}
+	catch (IOException ex) {
+	    master.disconnect();
+	    throw ex;
+	}
+
+	if (Modbus.debug >= 2) {
+	    log.debug("ModbusTCPMasterPool: opened connection to " + host + ":" + port);
+	}
+	return master;
+    }
+
+    // Close a master that is no longer counted as idle or leased
+    private void discard(ModbusTCPMaster master) {
+	synchronized (this) {
+	    connections--;
+	    notify();
+	}
+	if (master != null) {
+	    master.disconnect();
+	}
+    }
+
+    // Close the masters that have been idle too long, and open
+    // connections up to the minimum
+    private void maintain() {
+	List<Pooled> closing = new ArrayList<Pooled>();
+	Iterator<Pooled> oldest;
+	Pooled pooled;
+	long limit;
+	int opening;
+
+	synchronized (this) {
+	    if (closed) {
+		return;
+	    }
+
+	    if (idleTimeout > 0) {
+		limit = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+		oldest = idle.descendingIterator();
+		while (oldest.hasNext() && connections - closing.size() > minConnections) {
+		    pooled = oldest.next();
+		    if (pooled.lastUsed - limit > 0) {
+			break;
+		    }
+		    oldest.remove();
+		    closing.add(pooled);
+		}
+	    }
+
+	    opening = Math.max(0, minConnections - connections);
+	    connections += opening;
+	}
+
+	for (int i=0; i<closing.size(); i++) {
+	    discard(closing.get(i).master);
+	}
+
+	for (int i=0; i<opening; i++) {
+	    try {
+		pooled = new Pooled(open());
+	    }
+	    catch (IOException ex) {
+		log.warn("ModbusTCPMasterPool: " + ex.getMessage());
+		discard(null);
+		continue;
+	    }
+	    synchronized (this) {
+		if (!closed) {
+		    idle.addLast(pooled);
+		    notify();
+		    continue;
+		}
+	    }
+	    discard(pooled.master);
+	}
+    }
+
+    // A master and when it was last handed back
+    private static class Pooled {
+	ModbusTCPMaster master;
+	long lastUsed = System.nanoTime();
+
+	Pooled(ModbusTCPMaster master) {
+	    this.master = master;
+	}
+    }
+}
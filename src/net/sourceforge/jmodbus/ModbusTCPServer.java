@@ -0,0 +1,572 @@
+/*
+ * ModbusTCPServer.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class to implement a Modbus TCP server that serves many client
+ * connections from a small number of threads.  Each thread runs a
+ * java.nio Selector over the non-blocking connections it has been
+ * given, the first one also accepting new connections and handing
+ * them out to the threads in turn.
+ * <P>
+ * All the connections are served against the same register and coil
+ * banks, which are set before the server is started.  Further units may
+ * be set for other unit identifiers, so that one server can stand in
+ * for a gateway and all the devices behind it.  The requests are
+ * processed by a single ModbusSlave shared by all the threads, so the
+ * server answers exactly as a ModbusTCPSlave would.
+ */
+public class ModbusTCPServer {
+
+	private static final Logger log = LoggerFactory.getLogger(ModbusTCPServer.class.getName());
+
+    /**
+     * The size (in bytes) of the read and write buffers of each
+     * connection.  This allows several frames to be moved with each
+     * channel operation.
+     */
+    public static final int BUFFER_SIZE = 16 * ModbusTCPTransport.MAX_TRANSACTION_LENGTH;
+
+    // Where to listen
+    private int port;
+
+    // The slave that processes the requests of all the connections,
+    // holding the registers and coils they share
+    private ModbusSlave slave;
+
+    // Messages the requests are processed in, only held while a
+    // connection is being processed so idle connections hold none
+    private ModbusMessagePool pool;
+
+    // The selector threads and which one gets the next connection
+    private Reactor[] reactors;
+    private int nextReactor = 0;
+    private ServerSocketChannel server;
+
+    /**
+     * Class constructor.
+     *
+     * @param port The port number to listen on, or 0 for any free port.
+     * @param slaveAddress The slave address (or unit indetifier) of this
+     *                     slave device.
+     * @param threads The number of selector threads to share the
+     *                connections between.
+     */
+    public ModbusTCPServer(int port, int slaveAddress, int threads) {
+	if (port < 0 || port > Modbus.UINT16_MAX) {
+	    throw new IllegalArgumentException("Port is out of range");
+	}
+	if (threads < 1) {
+	    throw new IllegalArgumentException("Number of threads must be at least 1");
+	}
+
+	this.port = port;
+	slave = new ModbusSlave(null, slaveAddress);
+	reactors = new Reactor[threads];
+	pool = new ModbusMessagePool(2*threads);
+    }
+
+    /**
+     * Set the Input Register Bank served to all the connections.
+     *
+     * @param regs The ModbusRegisterBank object that represents
+     *             the input registers.
+     */
+    public void setInputRegisters(ModbusRegisterBank regs) {
+	checkNotStarted();
+	slave.setInputRegisters(regs);
+    }
+
+    /**
+     * Set the Output Register Bank served to all the connections.
+     *
+     * @param regs The ModbusRegisterBank object that represents
+     *             the output registers.
+     */
+    public void setOutputRegisters(ModbusRegisterBank regs) {
+	checkNotStarted();
+	slave.setOutputRegisters(regs);
+    }
+
+    /**
+     * Set the Input Coil Bank served to all the connections.
+     *
+     * @param coils The ModbusCoilBank object that represents
+     *              the input coils.
+     */
+    public void setInputCoils(ModbusCoilBank coils) {
+	checkNotStarted();
+	slave.setInputCoils(coils);
+    }
+
+    /**
+     * Set the Output Coil Bank served to all the connections.
+     *
+     * @param coils The ModbusCoilBank object that represents
+     *              the output coils.
+     */
+    public void setOutputCoils(ModbusCoilBank coils) {
+	checkNotStarted();
+	slave.setOutputCoils(coils);
+    }
+
+    /**
+     * Set the unit served for a unit identifier, so that the server can
+     * answer for all the devices behind a gateway over the same
+     * connections.  A unit set for the slave address of the server
+     * replaces the banks set by setInputRegisters and the like.
+     *
+     * @param unitID The unit identifier, from 0 to 255.
+     * @param unit The unit to serve, or null to stop serving the
+     *             identifier.
+     * @throws IllegalArgumentException If the unit identifier is out of
+     *                                  range.
+     */
+    public void setUnit(int unitID, ModbusUnit unit) throws IllegalArgumentException {
+	checkNotStarted();
+	slave.setUnit(unitID, unit);
+    }
+
+    /**
+     * Set the unit served for requests to any unit identifier that has
+     * no unit of its own.
+     *
+     * @param unit The default unit, or null for none.
+     */
+    public void setDefaultUnit(ModbusUnit unit) {
+	checkNotStarted();
+	slave.setDefaultUnit(unit);
+    }
+
+    /**
+     * Set the handler of a function code for all the connections, to
+     * serve a vendor specific function code or replace the standard
+     * handling of one.  The handler is called from all the selector
+     * threads, so it must be safe to call concurrently.
+     *
+     * @param function The function code, from 0 to 255.
+     * @param handler The handler, or null to stop supporting the
+     *                function code.
+     * @throws IllegalArgumentException If the function code is out of
+     *                                  range.
+     */
+    public void setFunctionHandler(int function, ModbusFunctionHandler handler) throws IllegalArgumentException {
+	checkNotStarted();
+	slave.setFunctionHandler(function, handler);
+    }
+
+    /**
+     * Function to open the listening socket and start the selector
+     * threads.
+     *
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException {
+	checkNotStarted();
+
+	server = ServerSocketChannel.open();
+	try {
+	    server.socket().setReuseAddress(true);
+	    server.socket().bind(new InetSocketAddress(port));
+	    server.configureBlocking(false);
+
+	    for (int i=0; i<reactors.length; i++) {
+		reactors[i] = new Reactor(i);
+	    }
+	    server.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
+	}
+	catch (IOException ex) {
+	    for (int i=0; i<reactors.length; i++) {
+		if (reactors[i] != null) {
+		    reactors[i].selector.close();
+		    reactors[i] = null;
+		}
+	    }
+	    server.close();
+	    server = null;
+	    throw ex;
+	}
+
+	for (int i=0; i<reactors.length; i++) {
+	    reactors[i].thread.start();
+	}
+
+	if (Modbus.debug >= 1) {
+	    log.debug("ModbusTCPServer: listening on port " + getLocalPort());
+	}
+    }
+
+    /**
+     * Function to stop the server.  The listening socket and all the
+     * client connections are closed.
+     */
+    public synchronized void stop() {
+	for (int i=0; i<reactors.length; i++) {
+	    if (reactors[i] != null) {
+		reactors[i].running = false;
+		reactors[i].selector.wakeup();
+	    }
+	}
+    }
+
+    /**
+     * Get the port number the server is listening on.  This is useful
+     * when the server was created to listen on any free port.
+     *
+     * @return The port number, or -1 if the server has not been started.
+     */
+    public int getLocalPort() {
+	return server == null ? -1 : server.socket().getLocalPort();
+    }
+
+    // The banks may only be changed before the threads are started
+    private void checkNotStarted() {
+	if (server != null) {
+	    throw new IllegalStateException("ModbusTCPServer: already started");
+	}
+    }
+
+    // Accept all the pending connections, handing them out to
+    // the selector threads in turn
+    private void accept() {
+	SocketChannel channel;
+	Reactor reactor;
+
+	while (true) {
+	    try {
+		channel = server.accept();
+		if (channel == null) {
+		    return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+	    }
+	    catch (IOException ex) {
+		log.warn(ex.getMessage());
+		return;
+	    }
+
+	    if (Modbus.debug >= 2) {
+		log.debug("ModbusTCPServer: accepted connection from " + channel.socket().getRemoteSocketAddress());
+	    }
+
+	    reactor = reactors[nextReactor];
+	    nextReactor = (nextReactor + 1) % reactors.length;
+	    reactor.schedule(new Connection(reactor, channel));
+	}
+    }
+
+    // A selector thread and the connections it looks after
+    private class Reactor implements Runnable {
+
+	private Selector selector;
+	private Thread thread;
+	private volatile boolean running = true;
+
+	// Connections accepted on another thread that are
+	// waiting to be registered with this selector
+	private Queue<Connection> accepted = new ConcurrentLinkedQueue<Connection>();
+
+	// The connections registered with this selector, only
+	// used on the selector thread
+	private List<Connection> connections = new ArrayList<Connection>();
+
+	Reactor(int index) throws IOException {
+	    selector = Selector.open();
+	    thread = new Thread(this, "ModbusTCPServer-" + index);
+	}
+
+	// Queue a new connection to be registered by the selector thread
+	void schedule(Connection connection) {
+	    accepted.add(connection);
+	    selector.wakeup();
+	}
+
+	public void run() {
+	    Connection connection;
+	    Iterator<SelectionKey> keys;
+	    SelectionKey key;
+
+	    while (running) {
+		try {
+		    selector.select();
+		}
+		catch (IOException ex) {
+		    log.error(ex.getMessage(), ex);
+		    break;
+		}
+
+		while ((connection = accepted.poll()) != null) {
+		    connection.register();
+		}
+
+		// A key may have been cancelled by a connection being
+		// closed since it was selected, and a fault on one
+		// connection must not stop the others being served
+		keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+		    key = keys.next();
+		    keys.remove();
+		    if (!key.isValid()) {
+			continue;
+		    }
+		    if (key.isAcceptable()) {
+			accept();
+			continue;
+		    }
+		    connection = (Connection) key.attachment();
+		    try {
+			connection.handle(key);
+		    }
+		    catch (RuntimeException ex) {
+			connection.fault(ex);
+		    }
+		}
+	    }
+
+	    // Close down everything we were looking after
+	    while (!connections.isEmpty()) {
+		connections.get(connections.size()-1).close("server stopped");
+	    }
+	    while ((connection = accepted.poll()) != null) {
+		connection.close("server stopped");
+	    }
+	    try {
+		if (this == reactors[0]) {
+		    server.close();
+		}
+		selector.close();
+	    }
+	    catch (IOException ex) {
+		log.warn(ex.getMessage());
+	    }
+	}
+    }
+
+    // A connection from a single client, with the state machine
+    // that frames its requests
+    private class Connection {
+
+	private Reactor reactor;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private String name;
+	private boolean closed = false;
+
+	// Buffers used to frame the requests
+	private byte[] header = new byte[ModbusTCPTransport.HEADER_LENGTH];
+	private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+	private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+	// Receive state, the length of the body we are waiting for
+	// or -1 if we are waiting for a header, and its transaction ID
+	private int bodyLength = -1;
+	private int transID;
+
+	Connection(Reactor reactor, SocketChannel channel) {
+	    this.reactor = reactor;
+	    this.channel = channel;
+	    name = String.valueOf(channel.socket().getRemoteSocketAddress());
+	}
+
+	// Called on the selector thread to start serving the connection
+	void register() {
+	    try {
+		key = channel.register(reactor.selector, SelectionKey.OP_READ, this);
+		reactor.connections.add(this);
+	    }
+	    catch (IOException ex) {
+		close(ex.getMessage());
+	    }
+	}
+
+	// Called on the selector thread when serving the connection
+	// failed unexpectedly, so it is closed rather than the thread
+	// being stopped
+	void fault(RuntimeException ex) {
+	    log.error("ModbusTCPServer: failure on " + name, ex);
+	    close(ex.toString());
+	}
+
+	// Called on the selector thread when the channel is ready
+	void handle(SelectionKey key) {
+	    try {
+		if (key.isValid() && key.isWritable()) {
+		    // Catch up on the requests that were left waiting
+		    if (write()) {
+			process();
+		    }
+		}
+		if (key.isValid() && key.isReadable()) {
+		    if (channel.read(in) < 0) {
+			close("stream closed");
+			return;
+		    }
+		    process();
+		}
+	    }
+	    catch (IOException ex) {
+		close(ex.getMessage());
+	    }
+	}
+
+	// Answer all the complete requests.  While the responses are
+	// backed up we stop, so a client that does not read its
+	// responses can not make us buffer without limit
+	private void process() throws IOException {
+	    ModbusMessage request = pool.acquire();
+	    ModbusMessage response = pool.acquire();
+
+	    try {
+		process(request, response);
+	    }
+	    finally {
+		pool.release(response);
+		pool.release(request);
+	    }
+	}
+
+	// Answer the requests using the given messages
+	private void process(ModbusMessage request, ModbusMessage response) throws IOException {
+	    boolean full;
+
+	    do {
+		full = false;
+		in.flip();
+
+		while (true) {
+		    // Only take a request if there is room for the response
+		    if (out.remaining() < ModbusTCPTransport.MAX_TRANSACTION_LENGTH) {
+			full = true;
+			break;
+		    }
+
+		    // Waiting for a header
+		    if (bodyLength < 0) {
+			if (in.remaining() < ModbusTCPTransport.HEADER_LENGTH) {
+			    break;
+			}
+			in.get(header);
+			transID = ModbusTCPTransport.decodeTransID(header, 0);
+			bodyLength = ModbusTCPTransport.decodeHeader(header, 0);
+
+			// As per the Modbus TCP spec we close the connection
+			// if we do not understand the header
+			if (bodyLength < 0) {
+			    close("header check failed");
+			    return;
+			}
+		    }
+
+		    // Waiting for the body
+		    if (in.remaining() < bodyLength) {
+			break;
+		    }
+		    in.get(request.buff, 0, bodyLength);
+		    request.length = bodyLength;
+		    request.transID = transID;
+		    bodyLength = -1;
+
+		    if (slave.processMessage(request, response)) {
+			ModbusTCPTransport.encodeHeader(header, 0, response.transID, response.length);
+			out.put(header);
+			out.put(response.buff, 0, response.length);
+		    }
+		}
+
+		in.compact();
+	    } while (write() && full);
+	}
+
+	// Write as much as the channel will take, only reading more
+	// requests once all the responses have gone.  Returns true if
+	// everything was written
+	private boolean write() throws IOException {
+	    out.flip();
+	    channel.write(out);
+	    out.compact();
+
+	    if (out.position() > 0) {
+		key.interestOps(SelectionKey.OP_WRITE);
+		return false;
+	    }
+	    key.interestOps(SelectionKey.OP_READ);
+	    return true;
+	}
+
+	// Close the connection
+	void close(String reason) {
+	    if (closed) {
+		return;
+	    }
+	    closed = true;
+
+	    if (Modbus.debug >= 2) {
+		log.debug("ModbusTCPServer: closing " + name + ": " + reason);
+	    }
+
+	    if (key != null) {
+		key.cancel();
+		reactor.connections.remove(this);
+	    }
+	    try {
+		channel.close();
+	    }
+	    catch (IOException ex) {
+		log.warn(ex.getMessage());
+	    }
+	}
+    }
+}
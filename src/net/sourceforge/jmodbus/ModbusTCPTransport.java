@@ -103,12 +103,6 @@ public class ModbusTCPTransport implements ModbusTransport {
     private int count = 0;
     private int recv = 0;
     
-    // Protocol identifiers 
-    private short protocol_identifier;
-    
-    // Flag to indicate if the header has been validated
-    private boolean header_check = false;
-    
     // Request and reply length variables
     private int request_body_length;
     private int reply_length;
@@ -185,18 +179,9 @@ public class ModbusTCPTransport implements ModbusTransport {
 	    log.debug("ModbusTCPTransport: Sending Frame.....");
 	}
 	
-	// First create a header...
-	// First place the transaction ID into the message
-	send_header[0] = (byte) ((msg.transID >> 8) & 0xFF);
-	send_header[1] = (byte) (msg.transID & 0xFF);
-	
-	// Then the protocol identifier
-	send_header[2] = (byte) ((PROTOCOL_IDENTIFIER >> 8) & 0xFF);
-	send_header[3] = (byte) (PROTOCOL_IDENTIFIER & 0xFF);
-	
-	// Then the length of the message to follow the header
-	send_header[4] = (byte) 0x00;
-	send_header[5] = (byte) (msg.length & 0xFF);
+	// First create the header, with the transaction ID, protocol
+	// identifier and length of the message to follow the header
+	encodeHeader(send_header, 0, msg.transID, msg.length);
 	
 	try {
 	    // Print Message if in debug mode
@@ -276,49 +261,19 @@ public class ModbusTCPTransport implements ModbusTransport {
 	// We now need to see if the header is of a form that
 	// we understand.  If it is then we get and process the 
 	// rest of the message.  If not then we CLOSE the socket.
-	header_check = true;
 	
 	// In Modbus TCP the transaction identifier is ignored
 	// and blindly copied from query to response, so we should
 	// copy that value to the integet passed to us for the
 	// transaction ID now
-	msg.transID = (int) ((receive_header[0] << 8) + receive_header[1]);
-	
-	
-	// Check the protocol idnetifier
-	protocol_identifier = (short) ((receive_header[2] << 8) + receive_header[3]);
-	if (protocol_identifier != PROTOCOL_IDENTIFIER) {
-	    // Print Message if in debug mode
-	    if (Modbus.debug >= 3) {
-		log.debug("ModbusTCPTransport: incorrect protocol identifier: " + protocol_identifier);
-	    }
-	    header_check = false;
-	}
-	
-	// Check the upper byte of the length field is 0 as
-	// the maximum message size is 256 bytes
-	if (receive_header[4] != (byte) 0x00) {
-	    // Print Message if in debug mode
-	    if (Modbus.debug >= 3) {
-		log.debug("ModbusTCPTransport: incorrect length, upper byte: " + receive_header[4]);
-	    }
-	    header_check = false;
-	}
+	msg.transID = decodeTransID(receive_header, 0);
 	
-	// Now check that the lower byte of the length field is
-	// greater than or equal to 2 as otherwise it can't be a 
-	// valid message
-	if (receive_header[5] == (byte) 0x00 || receive_header[5] == (byte) 0x01) {
-	    // Print Message if in debug mode
-	    if (Modbus.debug >= 3) {
-		log.debug("ModbusTCPTransport: incorrect length, lower byte: " + receive_header[5]);
-	    }
-	    header_check = false;
-	}
+	// Check the header and get the length of the message
+	request_body_length = decodeHeader(receive_header, 0);
 	
 	// If the header check for the packet failed then
 	// the socket is to be closed, as per the Modbus TCP spec.
-	if (!header_check) {
+	if (request_body_length < 0) {
 	    // Print Message if in debug mode
 	    if (Modbus.debug >= 3) {
 		log.debug("ModbusTCPTransport: Header Check Failed!");
@@ -332,9 +287,6 @@ public class ModbusTCPTransport implements ModbusTransport {
 	    return false;
 	}
 	
-	// Get the length of the message
-	request_body_length = (int) receive_header[5];
-	
 	// Print Message if in debug mode
 	if (Modbus.debug >= 3) {
 	    log.debug("ModbusTCPTransport: Message Body Length is " + request_body_length);
@@ -376,6 +328,119 @@ public class ModbusTCPTransport implements ModbusTransport {
 	return true;
     }
 
+    /**
+     * Function to write a Modbus TCP (MBAP) header into a byte array.
+     * The header contains the transaction ID, the protocol identifier
+     * and the length of the message body that will follow it.
+     *
+     * @param header The byte array to write the header into.
+     * @param offset The index at which the header is to start.
+     * @param transID The transaction ID of the message.
+     * @param length The length of the message body.
+     */
+    public static void encodeHeader(byte[] header, int offset, int transID, int length) {
+	
+	// First place the transaction ID into the message
+	header[offset+0] = (byte) ((transID >> 8) & 0xFF);
+	header[offset+1] = (byte) (transID & 0xFF);
+	
+	// Then the protocol identifier
+	header[offset+2] = (byte) ((PROTOCOL_IDENTIFIER >> 8) & 0xFF);
+	header[offset+3] = (byte) (PROTOCOL_IDENTIFIER & 0xFF);
+	
+	// Then the length of the message to follow the header
+	header[offset+4] = (byte) 0x00;
+	header[offset+5] = (byte) (length & 0xFF);
+    }
+    
+    /**
+     * Function to get the transaction ID from a Modbus TCP (MBAP) header.
+     *
+     * @param header The byte array containing the header.
+     * @param offset The index at which the header starts.
+     * @return The transaction ID.
+     */
+    public static int decodeTransID(byte[] header, int offset) {
+	return ((header[offset+0] & 0xFF) << 8) | (header[offset+1] & 0xFF);
+    }
+    
+    /**
+     * Function to check a Modbus TCP (MBAP) header and get the length
+     * of the message body that follows it.  If the header is not of a
+     * form that we understand then -1 is returned, in which case the
+     * connection should be closed as per the Modbus TCP spec.
+     *
+     * @param header The byte array containing the header.
+     * @param offset The index at which the header starts.
+     * @return The length of the message body, or -1 if the header
+     *         is invalid.
+     */
+    public static int decodeHeader(byte[] header, int offset) {
+	boolean header_check = true;
+	short protocol_identifier;
+	
+	// Check the protocol idnetifier
+	protocol_identifier = (short) (((header[offset+2] & 0xFF) << 8) | (header[offset+3] & 0xFF));
+	if (protocol_identifier != PROTOCOL_IDENTIFIER) {
+	    // Print Message if in debug mode
+	    if (Modbus.debug >= 3) {
+		log.debug("ModbusTCPTransport: incorrect protocol identifier: " + protocol_identifier);
+	    }
+	    header_check = false;
+	}
+	
+	// Check the upper byte of the length field is 0 as
+	// the maximum message size is 256 bytes
+	if (header[offset+4] != (byte) 0x00) {
+	    // Print Message if in debug mode
+	    if (Modbus.debug >= 3) {
+		log.debug("ModbusTCPTransport: incorrect length, upper byte: " + header[offset+4]);
+	    }
+	    header_check = false;
+	}
+	
+	// Now check that the lower byte of the length field is
+	// greater than or equal to 2 as otherwise it can't be a 
+	// valid message
+	if (header[offset+5] == (byte) 0x00 || header[offset+5] == (byte) 0x01) {
+	    // Print Message if in debug mode
+	    if (Modbus.debug >= 3) {
+		log.debug("ModbusTCPTransport: incorrect length, lower byte: " + header[offset+5]);
+	    }
+	    header_check = false;
+	}
+	
+	if (!header_check) {
+	    return -1;
+	}
+	
+	return header[offset+5] & 0xFF;
+    }
+
+    /**
+     * Set the time to wait for data to arrive when receiving a frame.
+     * If it expires a SocketTimeoutException is thrown, after which
+     * the connection should be closed, as the rest of the frame may
+     * still arrive.
+     *
+     * @param timeout The timeout in milliseconds, or 0 to wait forever.
+     * @throws IOException
+     */
+    public void setTimeout(int timeout) throws IOException {
+	socket.setSoTimeout(timeout);
+    }
+
+    /**
+     * Check if the socket is still open.  This does not detect a
+     * connection that has been closed by the other end but not yet by
+     * us, which is only found by using it.
+     *
+     * @return True if the socket is connected and not closed.
+     */
+    public boolean isConnected() {
+	return socket.isConnected() && !socket.isClosed();
+    }
+
 	@Override
 	public void disconnect() {
         try {
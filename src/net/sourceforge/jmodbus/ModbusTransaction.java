@@ -0,0 +1,471 @@
+/*
+ * ModbusTransaction.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Class to represent a single Modbus transaction, that is a query to
+ * a slave device and the result of the response to it.  Transactions
+ * are created for a particular function, handed to a ModbusMaster to be
+ * executed and can then be examined for their results.
+ * <P>
+ * Separating the transaction from the master allows a master to have
+ * several transactions outstanding at once, matching each response
+ * back to its query by the transaction ID.
+ */
+public class ModbusTransaction {
+
+    /**
+     * State of a transaction that has not yet been answered.
+     */
+    public static final int PENDING   = 0;
+
+    /**
+     * State of a transaction that was answered with a valid response.
+     */
+    public static final int COMPLETE  = 1;
+
+    /**
+     * State of a transaction that was answered with a Modbus exception.
+     * The exception code can be retrieved with getExceptionCode.
+     */
+    public static final int EXCEPTION = 2;
+
+    /**
+     * State of a transaction that could not be sent, was not answered
+     * or was answered with an invalid response.
+     */
+    public static final int FAILED    = 3;
+
+    // What this transaction is to do
+    private byte function;
+    private int unitID;
+    private int reference;
+    private int length;
+
+    // The values to write, or the array the results are read into.
+    // Coils are held as 1 for on and 0 for off
+    private int[] values;
+
+    // The transaction ID this transaction was last sent with
+    private int transID;
+
+    // Outcome of the transaction
+    private int state = PENDING;
+    private byte exceptionCode = 0;
+
+    // Future to complete when the transaction has been submitted
+    // to an asynchronous master
+    CompletableFuture<ModbusTransaction> future;
+
+    /**
+     * Class constructor.  The arguments are range checked in the same
+     * way as the ModbusMaster methods, so an invalid transaction can
+     * not be created.
+     *
+     * @param function The function code of the transaction.
+     * @param unitID The unit ID of the device to talk
+     *               to (set to zero is unknown).
+     * @param reference The reference number of the first register
+     *                  or coil.
+     * @param length The number of registers or coils.
+     * @param values The values to be written, or the array into which
+     *               the values read are to be placed.  Coils are held
+     *               as 1 for on and 0 for off.
+     */
+    public ModbusTransaction(byte function,
+			     int unitID,
+			     int reference,
+			     int length,
+			     int[] values)
+	throws IllegalArgumentException {
+
+	ModbusMaster.checkArguments(unitID, reference, length, 0);
+
+	switch (function) {
+	case Modbus.READ_MULTIPLE_REGISTERS:
+	case Modbus.READ_INPUT_REGISTERS:
+	    if (length > Modbus.MAX_READ_REGISTERS) {
+		throw new IllegalArgumentException("Length is too long for a single message");
+	    }
+	    break;
+	case Modbus.WRITE_MULTIPLE_REGISTERS:
+	    if (length > Modbus.MAX_WRITE_REGISTERS) {
+		throw new IllegalArgumentException("Length is too long for a single message");
+	    }
+	    break;
+	case Modbus.READ_COILS:
+	case Modbus.READ_INPUT_DISCRETES:
+	    if (length > Modbus.MAX_READ_COILS) {
+		throw new IllegalArgumentException("Length is too long for a single message");
+	    }
+	    break;
+	case Modbus.WRITE_SINGLE_REGISTER:
+	case Modbus.WRITE_COIL:
+	    if (length != 1) {
+		throw new IllegalArgumentException("Only one value can be written by " + ByteUtils.toHex(function));
+	    }
+	    break;
+	case Modbus.WRITE_MULTIPLE_COILS:
+	    if (length > Modbus.MAX_WRITE_COILS) {
+		throw new IllegalArgumentException("Length is too long for a single message");
+	    }
+	    break;
+	default:
+	    throw new IllegalArgumentException("Unsupported function code " + ByteUtils.toHex(function));
+	}
+
+	if (values.length < length) {
+	    throw new IllegalArgumentException("Values array is shorter than the length");
+	}
+
+	this.function = function;
+	this.unitID = unitID;
+	this.reference = reference;
+	this.length = length;
+	this.values = values;
+    }
+
+    /**
+     * Create a transaction to read multiple registers.
+     *
+     * @param unitID The unit ID of the device to talk to.
+     * @param reference The reference number of the first register to read.
+     * @param length The number of registers to be read.
+     * @return The new transaction.
+     */
+    public static ModbusTransaction readMultipleRegisters(int unitID,
+							  int reference,
+							  int length) {
+	return new ModbusTransaction(Modbus.READ_MULTIPLE_REGISTERS, unitID, reference, length, new int[length]);
+    }
+
+    /**
+     * Create a transaction to read input registers.
+     *
+     * @param unitID The unit ID of the device to talk to.
+     * @param reference The reference number of the first register to read.
+     * @param length The number of registers to be read.
+     * @return The new transaction.
+     */
+    public static ModbusTransaction readInputRegisters(int unitID,
+						       int reference,
+						       int length) {
+	return new ModbusTransaction(Modbus.READ_INPUT_REGISTERS, unitID, reference, length, new int[length]);
+    }
+
+    /**
+     * Create a transaction to write multiple registers.
+     *
+     * @param unitID The unit ID of the device to talk to.
+     * @param reference The reference number of the first register to write.
+     * @param length The number of registers to be written.
+     * @param values The values to be written.
+     * @return The new transaction.
+     */
+    public static ModbusTransaction writeMultipleRegisters(int unitID,
+							   int reference,
+							   int length,
+							   int[] values) {
+	return new ModbusTransaction(Modbus.WRITE_MULTIPLE_REGISTERS, unitID, reference, length, values);
+    }
+
+    /**
+     * Create a transaction to write a single register.
+     *
+     * @param unitID The unit ID of the device to talk to.
+     * @param reference The reference number of the register to write.
+     * @param value The value to be written.
+     * @return The new transaction.
+     */
+    public static ModbusTransaction writeSingleRegister(int unitID,
+							int reference,
+							int value) {
+	return new ModbusTransaction(Modbus.WRITE_SINGLE_REGISTER, unitID, reference, 1, new int[] { value });
+    }
+
+    /**
+     * Create a transaction to read coils.
+     *
+     * @param unitID The unit ID of the device to talk to.
+     * @param reference The reference number of the first coil to read.
+     * @param length The number of coils to be read.
+     * @return The new transaction.
+     */
+    public static ModbusTransaction readCoils(int unitID,
+					      int reference,
+					      int length) {
+	return new ModbusTransaction(Modbus.READ_COILS, unitID, reference, length, new int[length]);
+    }
+
+    /**
+     * Create a transaction to read input discretes.
+     *
+     * @param unitID The unit ID of the device to talk to.
+     * @param reference The reference number of the first input to read.
+     * @param length The number of inputs to be read.
+     * @return The new transaction.
+     */
+    public static ModbusTransaction readInputDiscretes(int unitID,
+						       int reference,
+						       int length) {
+	return new ModbusTransaction(Modbus.READ_INPUT_DISCRETES, unitID, reference, length, new int[length]);
+    }
+
+    /**
+     * Create a transaction to write a single coil.
+     *
+     * @param unitID The unit ID of the device to talk to.
+     * @param reference The reference number of the coil to write.
+     * @param value The value to set the coil to.
+     * @return The new transaction.
+     */
+    public static ModbusTransaction writeCoil(int unitID,
+					      int reference,
+					      boolean value) {
+	return new ModbusTransaction(Modbus.WRITE_COIL, unitID, reference, 1, new int[] { value ? 1 : 0 });
+    }
+
+    /**
+     * Create a transaction to write multiple coils.
+     *
+     * @param unitID The unit ID of the device to talk to.
+     * @param reference The reference number of the first coil to write.
+     * @param length The number of coils to be written.
+     * @param values The values to be written, any value other than zero
+     *               turning the coil on.
+     * @return The new transaction.
+     */
+    public static ModbusTransaction writeMultipleCoils(int unitID,
+						       int reference,
+						       int length,
+						       int[] values) {
+	return new ModbusTransaction(Modbus.WRITE_MULTIPLE_COILS, unitID, reference, length, values);
+    }
+
+    /**
+     * Get the function code of this transaction.
+     *
+     * @return The function code.
+     */
+    public byte getFunction() {
+	return function;
+    }
+
+    /**
+     * Check if this transaction writes to the slave device.
+     *
+     * @return True if the transaction is a write.
+     */
+    public boolean isWrite() {
+	switch (function) {
+	case Modbus.WRITE_MULTIPLE_REGISTERS:
+	case Modbus.WRITE_SINGLE_REGISTER:
+	case Modbus.WRITE_COIL:
+	case Modbus.WRITE_MULTIPLE_COILS:
+	    return true;
+	default:
+	    return false;
+	}
+    }
+
+    /**
+     * Get the unit ID this transaction is addressed to.
+     *
+     * @return The unit ID.
+     */
+    public int getUnitID() {
+	return unitID;
+    }
+
+    /**
+     * Get the reference number of the first register or coil.
+     *
+     * @return The reference number.
+     */
+    public int getReference() {
+	return reference;
+    }
+
+    /**
+     * Get the number of registers or coils.
+     *
+     * @return The number of registers or coils.
+     */
+    public int getLength() {
+	return length;
+    }
+
+    /**
+     * Get the values of this transaction.  For a read these are the
+     * results, which are only valid once the transaction is complete.
+     * Coils are held as 1 for on and 0 for off.
+     *
+     * @return The array of register or coil values.
+     */
+    public int[] getValues() {
+	return values;
+    }
+
+    /**
+     * Get the transaction ID this transaction was last sent with.
+     *
+     * @return The transaction ID.
+     */
+    public int getTransID() {
+	return transID;
+    }
+
+    /**
+     * Get the state of this transaction, one of PENDING, COMPLETE,
+     * EXCEPTION or FAILED.
+     *
+     * @return The state of the transaction.
+     */
+    public int getState() {
+	return state;
+    }
+
+    /**
+     * Check if the transaction completed sucessfully.
+     *
+     * @return True if a valid response was received.
+     */
+    public boolean isComplete() {
+	return state == COMPLETE;
+    }
+
+    /**
+     * Get the Modbus exception code the slave answered with.  This is
+     * only set if the state is EXCEPTION.
+     *
+     * @return The exception code, or zero if there was no exception.
+     */
+    public byte getExceptionCode() {
+	return exceptionCode;
+    }
+
+    // Craft the query for this transaction into the request message
+    // and reset the outcome, so a transaction can be executed again
+    void prepare(ModbusMessage request, int transID) {
+	this.transID = transID;
+	state = PENDING;
+	exceptionCode = 0;
+
+	switch (function) {
+	case Modbus.WRITE_MULTIPLE_REGISTERS:
+	    ModbusMaster.prepareWriteMultipleRegisters(request, unitID, reference, length, transID, values);
+	    break;
+	case Modbus.READ_COILS:
+	case Modbus.READ_INPUT_DISCRETES:
+	    ModbusMaster.prepareReadCoils(request, function, unitID, reference, length, transID);
+	    break;
+	case Modbus.WRITE_SINGLE_REGISTER:
+	    ModbusMaster.prepareWriteSingleRegister(request, unitID, reference, values[0], transID);
+	    break;
+	case Modbus.WRITE_COIL:
+	    ModbusMaster.prepareWriteCoil(request, unitID, reference, values[0] != 0, transID);
+	    break;
+	case Modbus.WRITE_MULTIPLE_COILS:
+	    ModbusMaster.prepareWriteMultipleCoils(request, unitID, reference, length, transID);
+	    ModbusMaster.packCoils(values, length, request.buff, 7);
+	    break;
+	default:
+	    ModbusMaster.prepareReadRegisters(request, function, unitID, reference, length, transID);
+	    break;
+	}
+    }
+
+    // Parse the response to this transaction, recording the outcome
+    boolean complete(ModbusMessage response) {
+	int status = ModbusMaster.checkResponse(response, function, unitID, transID);
+
+	if (status == ModbusMaster.RESPONSE_VALID) {
+	    boolean parsed;
+
+	    switch (function) {
+	    case Modbus.WRITE_MULTIPLE_REGISTERS:
+	    case Modbus.WRITE_MULTIPLE_COILS:
+		parsed = ModbusMaster.parseWriteMultiple(response, reference, length);
+		break;
+	    case Modbus.READ_COILS:
+	    case Modbus.READ_INPUT_DISCRETES:
+		parsed = ModbusMaster.checkReadCoils(response, length);
+		if (parsed) {
+		    ModbusMaster.unpackCoils(response.buff, 3, length, values);
+		}
+		break;
+	    case Modbus.WRITE_SINGLE_REGISTER:
+		parsed = ModbusMaster.parseWriteSingle(response, reference, values[0]);
+		break;
+	    case Modbus.WRITE_COIL:
+		parsed = ModbusMaster.parseWriteCoil(response, reference, values[0] != 0);
+		break;
+	    default:
+		parsed = ModbusMaster.parseReadRegisters(response, length, values);
+		break;
+	    }
+
+	    state = parsed ? COMPLETE : FAILED;
+	}
+	else if (status == ModbusMaster.RESPONSE_INVALID) {
+	    state = FAILED;
+	}
+	else {
+	    exceptionCode = (byte) status;
+	    state = EXCEPTION;
+	}
+
+	return state == COMPLETE;
+    }
+
+    // Complete a read with values that were not read from the slave,
+    // such as ones held in a cache
+    void complete(int[] results) {
+	System.arraycopy(results, 0, values, 0, length);
+	exceptionCode = 0;
+	state = COMPLETE;
+    }
+
+    // Record that the transaction could not be carried out
+    void fail() {
+	state = FAILED;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * ModbusUnit.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+/**
+ * Class to represent the registers and coils of one unit served by a
+ * ModbusSlave.  A slave normally serves a single unit at its own slave
+ * address, but it may be given a unit for each of several unit
+ * identifiers, so that one connection or serial line can stand in for a
+ * gateway to many devices.
+ * <P>
+ * A bank that is not set is not served, the slave answering requests
+ * for it with ILLEGAL_DATA_ADDRESS.  The banks should be set before the
+ * unit is given to a slave.
+ */
+public class ModbusUnit {
+
+    // Registers and coils to read from and write to
+    private ModbusRegisterBank input_registers;
+    private ModbusRegisterBank output_registers;
+    private ModbusCoilBank input_coils;
+    private ModbusCoilBank output_coils;
+
+    /**
+     * Class constructor for a unit with no banks set.
+     */
+    public ModbusUnit() {
+    }
+
+    /**
+     * Class constructor for a unit with all its banks.  Any of them may
+     * be null if the unit does not have them.
+     *
+     * @param input_registers The input registers of the unit.
+     * @param output_registers The output registers of the unit.
+     * @param input_coils The input coils of the unit.
+     * @param output_coils The output coils of the unit.
+     */
+    public ModbusUnit(ModbusRegisterBank input_registers,
+		      ModbusRegisterBank output_registers,
+		      ModbusCoilBank input_coils,
+		      ModbusCoilBank output_coils) {
+	this.input_registers = input_registers;
+	this.output_registers = output_registers;
+	this.input_coils = input_coils;
+	this.output_coils = output_coils;
+    }
+
+    /**
+     * Get the Input Register Bank of this unit.
+     *
+     * @return The input registers, or null if there are none.
+     */
+    public ModbusRegisterBank getInputRegisters() {
+	return input_registers;
+    }
+
+    /**
+     * Set the Input Register Bank of this unit.
+     *
+     * @param regs The ModbusRegisterBank object that represents
+     *             the input registers.
+     */
+    public void setInputRegisters(ModbusRegisterBank regs) {
+	input_registers = regs;
+    }
+
+    /**
+     * Get the Output Register Bank of this unit.
+     *
+     * @return The output registers, or null if there are none.
+     */
+    public ModbusRegisterBank getOutputRegisters() {
+	return output_registers;
+    }
+
+    /**
+     * Set the Output Register Bank of this unit.
+     *
+     * @param regs The ModbusRegisterBank object that represents
+     *             the output registers.
+     */
+    public void setOutputRegisters(ModbusRegisterBank regs) {
+	output_registers = regs;
+    }
+
+    /**
+     * Get the Input Coil Bank of this unit.
+     *
+     * @return The input coils, or null if there are none.
+     */
+    public ModbusCoilBank getInputCoils() {
+	return input_coils;
+    }
+
+    /**
+     * Set the Input Coil Bank of this unit.
+     *
+     * @param coils The ModbusCoilBank object that represents
+     *              the input coils.
+     */
+    public void setInputCoils(ModbusCoilBank coils) {
+	input_coils = coils;
+    }
+
+    /**
+     * Get the Output Coil Bank of this unit.
+     *
+     * @return The output coils, or null if there are none.
+     */
+    public ModbusCoilBank getOutputCoils() {
+	return output_coils;
+    }
+
+    /**
+     * Set the Output Coil Bank of this unit.
+     *
+     * @param coils The ModbusCoilBank object that represents
+     *              the output coils.
+     */
+    public void setOutputCoils(ModbusCoilBank coils) {
+	output_coils = coils;
+    }
+}
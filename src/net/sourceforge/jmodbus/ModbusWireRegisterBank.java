@@ -0,0 +1,187 @@
+/*
+ * ModbusWireRegisterBank.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+/**
+ * Class to represent the registers of a Modbus device as a byte image
+ * in the Modbus wire format, 2 bytes per register with the high byte
+ * first, so register n is the unsigned 16 bit big endian value at byte
+ * 2n.  The slave reads and writes blocks of registers in this format,
+ * so a READ_MULTIPLE_REGISTERS or READ_INPUT_REGISTERS response and a
+ * WRITE_MULTIPLE_REGISTERS request are each a single array copy with no
+ * per register work.  Getting and setting single registers as ints costs
+ * a little more than for a ModbusRegisterBank in return.
+ * <P>
+ * As a register only holds 16 bits, it is always read back as an
+ * unsigned value from 0 to 65535, whatever int it was set to.
+ * <P>
+ * The image is guarded by the lock of ModbusRegisterBank in the same
+ * way as its registers, so blocks of registers are read and written
+ * atomically and reads do not take a lock unless a write overlaps them.
+ */
+public class ModbusWireRegisterBank extends ModbusRegisterBank {
+
+    // The number of registers in this bank
+    private int register_size;
+
+    // The registers in the wire format
+    private byte[] image;
+
+    /**
+     * Class constructor that allocates the registers and initializes
+     * them all to zero.
+     *
+     * @param register_size The number of registers in this bank.
+     */
+    public ModbusWireRegisterBank(int register_size) {
+	this.register_size = limitSize(register_size);
+	image = new byte[2*this.register_size];
+    }
+
+    public int getNumberRegisters() {
+	return register_size;
+    }
+
+    public int getRegister(int index) {
+	checkRange(index, 1);
+
+	long stamp = lock.tryOptimisticRead();
+	int value = decode(index);
+
+	if (!lock.validate(stamp)) {
+	    stamp = lock.readLock();
+	    try {
+		value = decode(index);
+	    }
+	    finally {
+		lock.unlockRead(stamp);
+	    }
+	}
+	return value;
+    }
+
+    public void setRegister(int index, int value) {
+	checkRange(index, 1);
+
+	long stamp = lock.writeLock();
+	try {
+	    image[2*index] = (byte) (value >>> 8);
+	    image[2*index+1] = (byte) value;
+	}
+	finally {
+	    lock.unlockWrite(stamp);
+	}
+    }
+
+    public void getRegisters(int index, int length, int[] regs, int offset) {
+	checkRange(index, length);
+
+	long stamp = lock.tryOptimisticRead();
+
+	decode(index, length, regs, offset);
+
+	if (!lock.validate(stamp)) {
+	    stamp = lock.readLock();
+	    try {
+		decode(index, length, regs, offset);
+	    }
+	    finally {
+		lock.unlockRead(stamp);
+	    }
+	}
+    }
+
+    public int getRegisters(int index, int length, byte[] buff, int offset) {
+	checkRange(index, length);
+
+	long stamp = lock.tryOptimisticRead();
+
+	System.arraycopy(image, 2*index, buff, offset, 2*length);
+
+	if (!lock.validate(stamp)) {
+	    stamp = lock.readLock();
+	    try {
+		System.arraycopy(image, 2*index, buff, offset, 2*length);
+	    }
+	    finally {
+		lock.unlockRead(stamp);
+	    }
+	}
+	return 2*length;
+    }
+
+    public void setRegister(int index, int[] regs) {
+	checkRange(index, regs.length);
+
+	long stamp = lock.writeLock();
+	try {
+	    for (int i=0; i<regs.length; i++) {
+		image[2*(index+i)] = (byte) (regs[i] >>> 8);
+		image[2*(index+i)+1] = (byte) regs[i];
+	    }
+	}
+	finally {
+	    lock.unlockWrite(stamp);
+	}
+    }
+
+    public void setRegisters(int index, int length, byte[] buff, int offset) {
+	checkRange(index, length);
+
+	long stamp = lock.writeLock();
+	try {
+	    System.arraycopy(buff, offset, image, 2*index, 2*length);
+	}
+	finally {
+	    lock.unlockWrite(stamp);
+	}
+    }
+
+    // Decode a register from the image
+    private int decode(int index) {
+	return ((image[2*index] & 0xFF) << 8) | (image[2*index+1] & 0xFF);
+    }
+
+    // Decode a block of registers from the image
+    private void decode(int index, int length, int[] regs, int offset) {
+	for (int i=0; i<length; i++) {
+	    regs[offset+i] = decode(index+i);
+	}
+    }
+}
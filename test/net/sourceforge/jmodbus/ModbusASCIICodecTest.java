@@ -0,0 +1,131 @@
+/*
+ * ModbusASCIICodecTest.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static net.sourceforge.jmodbus.ModbusCRC16Test.bytes;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests of the hexadecimal characters and LRC of ModbusASCIICodec.
+ */
+public class ModbusASCIICodecTest {
+
+    // Read 3 holding registers from 107 of slave 17, whose LRC is 7E
+    private static final byte[] MESSAGE = bytes(0x11, 0x03, 0x00, 0x6B, 0x00, 0x03);
+    private static final byte[] CHARS = "1103006B00037E".getBytes();
+
+    @Test
+    public void testEncode() {
+	byte[] dst = new byte[2 + 2*(MESSAGE.length+1)];
+
+	assertEquals(dst.length, ModbusASCIICodec.encode(MESSAGE, MESSAGE.length, dst, 2));
+	assertArrayEquals(CHARS, Arrays.copyOfRange(dst, 2, dst.length));
+    }
+
+    @Test
+    public void testDecode() {
+	byte[] src = ("::" + new String(CHARS)).getBytes();
+	byte[] dst = new byte[CHARS.length/2];
+
+	assertEquals(MESSAGE.length, ModbusASCIICodec.decode(src, 2, CHARS.length, dst));
+	assertArrayEquals(MESSAGE, Arrays.copyOf(dst, MESSAGE.length));
+    }
+
+    @Test
+    public void testRoundTrip() {
+	byte[] message = new byte[256];
+	byte[] chars = new byte[2*(message.length+1)];
+	byte[] decoded = new byte[message.length+1];
+
+	for (int i=0; i<message.length; i++) {
+	    message[i] = (byte) i;
+	}
+
+	assertEquals(chars.length, ModbusASCIICodec.encode(message, message.length, chars, 0));
+	assertEquals(message.length, ModbusASCIICodec.decode(chars, 0, chars.length, decoded));
+	assertArrayEquals(message, Arrays.copyOf(decoded, message.length));
+    }
+
+    @Test
+    public void testLRCFailed() {
+	byte[] chars = "1103006B00037F".getBytes();
+
+	assertEquals(ModbusASCIICodec.LRC_FAILED, ModbusASCIICodec.decode(chars, 0, chars.length, new byte[7]));
+    }
+
+    @Test
+    public void testInvalidCharacters() {
+	byte[] dst = new byte[7];
+
+	// Only upper case hexadecimal digits are allowed
+	assertEquals(ModbusASCIICodec.INVALID_CHARACTER, decode("1103006b00037E", dst));
+	assertEquals(ModbusASCIICodec.INVALID_CHARACTER, decode("1103006G00037E", dst));
+	assertEquals(ModbusASCIICodec.INVALID_CHARACTER, decode("1103006B0003:E", dst));
+	assertEquals(ModbusASCIICodec.INVALID_CHARACTER, decode("11 03006B0037E", dst));
+
+	// Characters with the top bit set must not index outside the table
+	byte[] high = bytes('1', '1', 0xC1, 0xC1);
+	assertEquals(ModbusASCIICodec.INVALID_CHARACTER, ModbusASCIICodec.decode(high, 0, high.length, dst));
+    }
+
+    @Test
+    public void testBadLength() {
+	byte[] dst = new byte[7];
+
+	assertEquals(ModbusASCIICodec.INVALID_CHARACTER, decode("1103006B00037", dst));
+	assertEquals(ModbusASCIICodec.INVALID_CHARACTER, decode("", dst));
+    }
+
+    @Test
+    public void testLRCOnly() {
+	// A frame of just an LRC decodes to an empty message
+	assertEquals(0, decode("00", new byte[1]));
+    }
+
+    private static int decode(String chars, byte[] dst) {
+	byte[] src = chars.getBytes();
+
+	return ModbusASCIICodec.decode(src, 0, src.length, dst);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * ModbusASCIITransportTest.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static net.sourceforge.jmodbus.ModbusCRC16Test.bytes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests of the ring buffer frame scanner of ModbusASCIITransport, using
+ * streams in place of a serial port.
+ */
+public class ModbusASCIITransportTest {
+
+    // Read 3 holding registers from 107 of slave 17
+    private static final byte[] MESSAGE = bytes(0x11, 0x03, 0x00, 0x6B, 0x00, 0x03);
+    private static final String FRAME = ":1103006B00037E\r\n";
+
+    @Test
+    public void testSend() {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	ModbusASCIITransport transport = new ModbusASCIITransport(null, out);
+
+	assertTrue(transport.sendFrame(ModbusRTUTransportTest.message(MESSAGE, MESSAGE.length)));
+	assertEquals(FRAME, new String(out.toByteArray()));
+    }
+
+    @Test
+    public void testCharacterAtATime() {
+	ModbusASCIITransport transport = new ModbusASCIITransport(new Line(FRAME, 1), null);
+
+	assertReceived(transport, MESSAGE);
+	assertFalse(transport.receiveFrame(new ModbusMessage()));
+    }
+
+    @Test
+    public void testFramesFromOneRead() {
+	Line line = new Line(FRAME + FRAME + FRAME, 1000);
+	ModbusASCIITransport transport = new ModbusASCIITransport(line, null);
+
+	// The later frames are already in the ring
+	for (int i=0; i<3; i++) {
+	    assertReceived(transport, MESSAGE);
+	}
+	assertEquals(1, line.reads);
+    }
+
+    @Test
+    public void testNoiseSkipped() {
+	ModbusASCIITransport transport = new ModbusASCIITransport(new Line("\r\nxx0102" + FRAME, 3), null);
+
+	assertReceived(transport, MESSAGE);
+    }
+
+    @Test
+    public void testFrameRestarted() {
+	ModbusASCIITransport transport = new ModbusASCIITransport(new Line(":0103" + FRAME, 4), null);
+
+	assertReceived(transport, MESSAGE);
+    }
+
+    @Test
+    public void testCRWithoutLF() {
+	ModbusASCIITransport transport = new ModbusASCIITransport(new Line(":1103006B00037E\rX" + FRAME, 5), null);
+	ModbusMessage msg = new ModbusMessage();
+
+	assertFalse(transport.receiveFrame(msg));
+	assertReceived(transport, MESSAGE);
+    }
+
+    @Test
+    public void testBadFramesRejected() {
+	String frames = ":1103006B00037F\r\n"      // LRC failed
+	    + ":1103006B00037\r\n"                // odd number of characters
+	    + ":11\r\n"                           // too short
+	    + ":1103006b00037E\r\n"               // lower case
+	    + FRAME;
+	ModbusASCIITransport transport = new ModbusASCIITransport(new Line(frames, 7), null);
+	ModbusMessage msg = new ModbusMessage();
+
+	for (int i=0; i<4; i++) {
+	    assertFalse(transport.receiveFrame(msg));
+	}
+	assertReceived(transport, MESSAGE);
+    }
+
+    @Test
+    public void testFrameTooLong() {
+	StringBuilder noise = new StringBuilder(":");
+	ModbusMessage msg = new ModbusMessage();
+
+	for (int i=0; i<=2*Modbus.MAX_MESSAGE_LENGTH; i++) {
+	    noise.append('0');
+	}
+
+	ModbusASCIITransport transport = new ModbusASCIITransport(new Line(noise + "\r\n" + FRAME, 64), null);
+
+	assertFalse(transport.receiveFrame(msg));
+	assertReceived(transport, MESSAGE);
+    }
+
+    @Test
+    public void testLongestFrame() {
+	byte[] message = new byte[Modbus.MAX_MESSAGE_LENGTH - 1];
+	byte[] chars = new byte[2*(message.length+1)];
+
+	for (int i=0; i<message.length; i++) {
+	    message[i] = (byte) (i * 7);
+	}
+	ModbusASCIICodec.encode(message, message.length, chars, 0);
+
+	ModbusASCIITransport transport = new ModbusASCIITransport(new Line(":" + new String(chars) + "\r\n", 100), null);
+	assertReceived(transport, message);
+    }
+
+    @Test
+    public void testRingWraps() {
+	StringBuilder frames = new StringBuilder();
+	byte[][] messages = new byte[100][];
+	byte[] chars = new byte[64];
+	int length;
+
+	// Many more characters than the ring holds, in reads that
+	// do not line up with the frames or the end of the ring
+	for (int i=0; i<messages.length; i++) {
+	    messages[i] = bytes(1 + i % 200, 0x03, i, 0x00, 0x00, 0x01 + i % 20);
+	    length = ModbusASCIICodec.encode(messages[i], messages[i].length, chars, 0);
+	    frames.append(':').append(new String(chars, 0, length)).append("\r\n");
+	}
+
+	ModbusASCIITransport transport = new ModbusASCIITransport(new Line(frames.toString(), 37), null);
+	for (int i=0; i<messages.length; i++) {
+	    assertReceived(transport, messages[i]);
+	}
+    }
+
+    private static void assertReceived(ModbusASCIITransport transport, byte[] message) {
+	ModbusMessage msg = new ModbusMessage();
+
+	assertTrue(transport.receiveFrame(msg));
+	assertArrayEquals(message, Arrays.copyOf(msg.buff, msg.length));
+    }
+
+    /**
+     * A serial line that delivers the characters a few at a time,
+     * counting the reads, then closes.
+     */
+    static class Line extends InputStream {
+
+	private byte[] chars;
+	private int chunk;
+	private int pos = 0;
+	int reads = 0;
+
+	Line(String chars, int chunk) {
+	    this.chars = chars.getBytes();
+	    this.chunk = chunk;
+	}
+
+	public int read(byte[] buff, int offset, int length) {
+	    if (pos == chars.length) {
+		return -1;
+	    }
+	    length = Math.min(Math.min(length, chunk), chars.length - pos);
+	    System.arraycopy(chars, pos, buff, offset, length);
+	    pos += length;
+	    reads++;
+	    return length;
+	}
+
+	public int read() {
+	    return pos == chars.length ? -1 : chars[pos++] & 0xFF;
+	}
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * ModbusCRC16Test.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+/**
+ * Tests of ModbusCRC16 against known CRC-16/MODBUS values.
+ */
+public class ModbusCRC16Test {
+
+    @Test
+    public void testCheckValue() {
+	byte[] check = "123456789".getBytes();
+
+	assertEquals(0x4B37, ModbusCRC16.calculate(check, 0, check.length));
+    }
+
+    @Test
+    public void testFrames() {
+	// Read 10 holding registers from slave 1, sent as C5 CD
+	assertEquals(0xCDC5, ModbusCRC16.calculate(bytes(0x01, 0x03, 0x00, 0x00, 0x00, 0x0A), 0, 6));
+
+	// Read 3 holding registers from 107 of slave 17, sent as 76 87
+	assertEquals(0x8776, ModbusCRC16.calculate(bytes(0x11, 0x03, 0x00, 0x6B, 0x00, 0x03), 0, 6));
+    }
+
+    @Test
+    public void testEmpty() {
+	assertEquals(ModbusCRC16.INITIAL, ModbusCRC16.calculate(new byte[0], 0, 0));
+    }
+
+    @Test
+    public void testIntactFrameChecksToZero() {
+	byte[] frame = bytes(0x11, 0x03, 0x00, 0x6B, 0x00, 0x03, 0x76, 0x87);
+
+	assertEquals(0, ModbusCRC16.calculate(frame, 0, frame.length));
+
+	frame[3] ^= 0x10;
+	assertFalse(ModbusCRC16.calculate(frame, 0, frame.length) == 0);
+    }
+
+    @Test
+    public void testByteAtATime() {
+	byte[] frame = bytes(0x01, 0x10, 0x00, 0x01, 0x00, 0x02, 0x04, 0x00, 0x0A, 0x01, 0x02);
+	int crc = ModbusCRC16.INITIAL;
+
+	for (int i=0; i<frame.length; i++) {
+	    crc = ModbusCRC16.update(crc, frame[i]);
+	}
+	assertEquals(ModbusCRC16.calculate(frame, 0, frame.length), crc);
+
+	// And in two parts, from an offset
+	crc = ModbusCRC16.update(ModbusCRC16.INITIAL, frame, 0, 4);
+	assertEquals(crc, ModbusCRC16.calculate(frame, 0, 4));
+	assertEquals(ModbusCRC16.calculate(frame, 0, frame.length),
+		     ModbusCRC16.update(crc, frame, 4, frame.length - 4));
+    }
+
+    static byte[] bytes(int... values) {
+	byte[] buff = new byte[values.length];
+
+	for (int i=0; i<values.length; i++) {
+	    buff[i] = (byte) values[i];
+	}
+	return buff;
+    }
+}
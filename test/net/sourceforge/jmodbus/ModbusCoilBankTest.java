@@ -0,0 +1,187 @@
+/*
+ * ModbusCoilBankTest.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static net.sourceforge.jmodbus.ModbusCRC16Test.bytes;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of the packing of coils into longs by ModbusCoilBank, checked
+ * against the Modbus wire format and against a plain array of booleans.
+ */
+public class ModbusCoilBankTest {
+
+    // Coils 20 to 38 of the READ_COILS example in the Modbus spec
+    private static final byte[] PACKED = bytes(0xCD, 0x6B, 0x05);
+
+    @Test
+    public void testWireFormat() {
+	ModbusCoilBank bank = new ModbusCoilBank(200);
+	byte[] buff = new byte[4];
+
+	bank.setCoils(20, 19, PACKED, 0);
+
+	assertArrayEquals(new boolean[] { true, false, true, true, false, false, true, true },
+			  bank.getCoils(20, 8));
+	assertEquals(PACKED.length, bank.getCoils(20, 19, buff, 1));
+	assertArrayEquals(PACKED, Arrays.copyOfRange(buff, 1, 4));
+	assertEquals(12, bank.countCoils(0, 200));
+    }
+
+    @Test
+    public void testUnusedBitsCleared() {
+	ModbusCoilBank bank = new ModbusCoilBank(100);
+	byte[] buff = new byte[3];
+
+	bank.fillCoils(0, 100, true);
+	assertEquals(3, bank.getCoils(60, 19, buff, 0));
+	assertArrayEquals(bytes(0xFF, 0xFF, 0x07), buff);
+    }
+
+    @Test
+    public void testUnpackLeavesNeighbours() {
+	ModbusCoilBank bank = new ModbusCoilBank(200);
+
+	bank.fillCoils(0, 200, true);
+	bank.setCoils(61, 5, bytes(0xE0), 0);
+
+	assertTrue(bank.getCoil(60));
+	assertEquals(0, bank.countCoils(61, 5));
+	assertTrue(bank.getCoil(66));
+	assertEquals(195, bank.countCoils(0, 200));
+    }
+
+    @Test
+    public void testAgainstBooleans() {
+	Random random = new Random(1);
+	ModbusCoilBank bank = new ModbusCoilBank(1000);
+	boolean[] model = new boolean[1000];
+	byte[] buff = new byte[(Modbus.MAX_READ_COILS + 7) / 8];
+	boolean[] values;
+	int index;
+	int length;
+	int count;
+
+	// Blocks of every alignment and length, many crossing
+	// the boundaries between the longs
+	for (int i=0; i<5000; i++) {
+	    length = 1 + random.nextInt(200);
+	    index = random.nextInt(model.length - length + 1);
+
+	    switch (random.nextInt(5)) {
+	    case 0:
+		bank.setCoil(index, !model[index]);
+		model[index] = !model[index];
+		break;
+	    case 1:
+		values = new boolean[length];
+		for (int j=0; j<length; j++) {
+		    values[j] = random.nextBoolean();
+		}
+		bank.setCoils(index, values);
+		System.arraycopy(values, 0, model, index, length);
+		break;
+	    case 2:
+		random.nextBytes(buff);
+		bank.setCoils(index, length, buff, 0);
+		for (int j=0; j<length; j++) {
+		    model[index+j] = (buff[j >> 3] & (1 << (j & 7))) != 0;
+		}
+		break;
+	    case 3:
+		boolean value = random.nextBoolean();
+		bank.fillCoils(index, length, value);
+		Arrays.fill(model, index, index + length, value);
+		break;
+	    default:
+		count = 0;
+		for (int j=0; j<length; j++) {
+		    count += model[index+j] ? 1 : 0;
+		}
+		assertEquals(count, bank.countCoils(index, length));
+		break;
+	    }
+
+	    // Read a block back in both forms
+	    length = 1 + random.nextInt(200);
+	    index = random.nextInt(model.length - length + 1);
+	    assertArrayEquals(Arrays.copyOfRange(model, index, index + length), bank.getCoils(index, length));
+
+	    Arrays.fill(buff, (byte) 0x5A);
+	    assertEquals((length + 7) / 8, bank.getCoils(index, length, buff, 0));
+	    for (int j=0; j<(length + 7) / 8 * 8; j++) {
+		assertEquals(j < length && model[index+j], (buff[j >> 3] & (1 << (j & 7))) != 0);
+	    }
+	}
+    }
+
+    @Test
+    public void testRange() {
+	ModbusCoilBank bank = new ModbusCoilBank(70);
+
+	bank.setCoil(69, true);
+	assertTrue(bank.getCoil(69));
+	assertFalse(bank.getCoil(68));
+
+	try {
+	    bank.getCoil(70);
+	    fail("coil past the end of the bank");
+	}
+	catch (ArrayIndexOutOfBoundsException ex) {
+	    // expected
+	}
+	try {
+	    bank.fillCoils(60, 11, true);
+	    fail("block past the end of the bank");
+	}
+	catch (ArrayIndexOutOfBoundsException ex) {
+	    // expected
+	}
+	assertEquals(1, bank.countCoils(0, 70));
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * ModbusRTUTransportTest.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static net.sourceforge.jmodbus.ModbusCRC16Test.bytes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests of the framing of ModbusRTUTransport, using streams in place of
+ * a serial port.
+ */
+public class ModbusRTUTransportTest {
+
+    // Read 3 holding registers from 107 of slave 17, with its CRC
+    private static final byte[] REQUEST = bytes(0x11, 0x03, 0x00, 0x6B, 0x00, 0x03, 0x76, 0x87);
+
+    @Test
+    public void testSendAppendsCRC() throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	ModbusRTUTransport transport = new ModbusRTUTransport(new Line(), out, 0);
+
+	assertTrue(transport.sendFrame(message(REQUEST, 6)));
+	assertArrayEquals(REQUEST, out.toByteArray());
+    }
+
+    @Test
+    public void testReceiveAtSilence() throws IOException {
+	ModbusRTUTransport transport = new ModbusRTUTransport(new Line(slice(REQUEST, 0, 3), slice(REQUEST, 3, 8)), null, 0);
+	ModbusMessage msg = new ModbusMessage();
+
+	// The frame arrives in two parts without a silence between them
+	assertTrue(transport.receiveFrame(msg));
+	assertEquals(6, msg.length);
+	assertArrayEquals(slice(REQUEST, 0, 6), slice(msg.buff, 0, msg.length));
+	assertFalse(transport.receiveFrame(msg));
+    }
+
+    @Test
+    public void testBadFramesDropped() throws IOException {
+	byte[] corrupt = REQUEST.clone();
+	ModbusMessage msg = new ModbusMessage();
+
+	corrupt[4] ^= 0x01;
+
+	ModbusRTUTransport transport = new ModbusRTUTransport(new Line(null, corrupt, null, slice(REQUEST, 0, 3), null, REQUEST), null, 0);
+
+	// The corrupt and the short frames are skipped
+	assertTrue(transport.receiveFrame(msg));
+	assertEquals(6, msg.length);
+	assertArrayEquals(slice(REQUEST, 0, 6), slice(msg.buff, 0, msg.length));
+    }
+
+    @Test
+    public void testFrameTooLongDropped() throws IOException {
+	byte[] noise = new byte[ModbusRTUTransport.MAX_RTU_MESSAGE_LENGTH + 10];
+	ModbusMessage msg = new ModbusMessage();
+
+	ModbusRTUTransport transport = new ModbusRTUTransport(new Line(noise, null, REQUEST), null, 0);
+
+	assertTrue(transport.receiveFrame(msg));
+	assertEquals(6, msg.length);
+    }
+
+    @Test
+    public void testRequestLengths() {
+	assertEquals(0, ModbusRTUTransport.frameLength(bytes(0x11), 1, true));
+	assertEquals(4, ModbusRTUTransport.frameLength(bytes(0x11, 0x07), 2, true));
+	assertEquals(8, ModbusRTUTransport.frameLength(bytes(0x11, 0x01), 2, true));
+	assertEquals(8, ModbusRTUTransport.frameLength(bytes(0x11, 0x03), 2, true));
+	assertEquals(8, ModbusRTUTransport.frameLength(bytes(0x11, 0x06), 2, true));
+	assertEquals(10, ModbusRTUTransport.frameLength(bytes(0x11, 0x16), 2, true));
+
+	// The byte count is needed for the writes of many values
+	byte[] write = bytes(0x11, 0x10, 0x00, 0x01, 0x00, 0x02, 0x04);
+	assertEquals(0, ModbusRTUTransport.frameLength(write, 6, true));
+	assertEquals(13, ModbusRTUTransport.frameLength(write, 7, true));
+
+	byte[] coils = bytes(0x11, 0x0F, 0x00, 0x13, 0x00, 0x0A, 0x02);
+	assertEquals(11, ModbusRTUTransport.frameLength(coils, 7, true));
+
+	byte[] readWrite = bytes(0x11, 0x17, 0x00, 0x01, 0x00, 0x01, 0x00, 0x02, 0x00, 0x03, 0x06);
+	assertEquals(0, ModbusRTUTransport.frameLength(readWrite, 10, true));
+	assertEquals(19, ModbusRTUTransport.frameLength(readWrite, 11, true));
+
+	assertEquals(-1, ModbusRTUTransport.frameLength(bytes(0x11, 0x2B), 2, true));
+    }
+
+    @Test
+    public void testResponseLengths() {
+	byte[] read = bytes(0x11, 0x03, 0x06);
+	assertEquals(0, ModbusRTUTransport.frameLength(read, 2, false));
+	assertEquals(11, ModbusRTUTransport.frameLength(read, 3, false));
+	assertEquals(6, ModbusRTUTransport.frameLength(bytes(0x11, 0x01, 0x01), 3, false));
+
+	assertEquals(8, ModbusRTUTransport.frameLength(bytes(0x11, 0x06), 2, false));
+	assertEquals(8, ModbusRTUTransport.frameLength(bytes(0x11, 0x10), 2, false));
+	assertEquals(8, ModbusRTUTransport.frameLength(bytes(0x11, 0x0F), 2, false));
+	assertEquals(5, ModbusRTUTransport.frameLength(bytes(0x11, 0x07), 2, false));
+
+	// Exception responses
+	assertEquals(5, ModbusRTUTransport.frameLength(bytes(0x11, 0x83), 2, false));
+	assertEquals(5, ModbusRTUTransport.frameLength(bytes(0x11, 0xC1), 2, false));
+
+	assertEquals(-1, ModbusRTUTransport.frameLength(bytes(0x11, 0x2B), 2, false));
+    }
+
+    @Test
+    public void testBackToBackRequests() throws IOException {
+	byte[] second = frame(0x11, 0x06, 0x00, 0x01, 0x00, 0x03);
+	ModbusMessage msg = new ModbusMessage();
+
+	// Two requests with no silence between them
+	ModbusRTUTransport transport = new ModbusRTUTransport(new Line(concat(REQUEST, second)), null, 0);
+	transport.setReceiveMode(ModbusRTUTransport.RECEIVE_REQUESTS);
+
+	assertTrue(transport.receiveFrame(msg));
+	assertArrayEquals(slice(REQUEST, 0, 6), slice(msg.buff, 0, msg.length));
+	assertTrue(transport.receiveFrame(msg));
+	assertArrayEquals(slice(second, 0, 6), slice(msg.buff, 0, msg.length));
+	assertFalse(transport.receiveFrame(msg));
+
+	// Waiting for the silence they run together and fail the CRC
+	transport = new ModbusRTUTransport(new Line(concat(REQUEST, second)), null, 0);
+	assertFalse(transport.receiveFrame(msg));
+    }
+
+    @Test
+    public void testBackToBackResponses() throws IOException {
+	byte[] read = frame(0x11, 0x03, 0x06, 0x02, 0x2B, 0x00, 0x00, 0x00, 0x64);
+	byte[] exception = frame(0x11, 0x83, 0x02);
+	ModbusMessage msg = new ModbusMessage();
+
+	ModbusRTUTransport transport = new ModbusRTUTransport(new Line(concat(read, exception)), null, 0);
+	transport.setReceiveMode(ModbusRTUTransport.RECEIVE_RESPONSES);
+
+	assertTrue(transport.receiveFrame(msg));
+	assertEquals(9, msg.length);
+	assertTrue(transport.receiveFrame(msg));
+	assertArrayEquals(bytes(0x11, 0x83, 0x02), slice(msg.buff, 0, msg.length));
+    }
+
+    @Test
+    public void testUnknownFunctionWaitsForSilence() throws IOException {
+	byte[] vendor = frame(0x11, 0x41, 0x01, 0x02, 0x03);
+	ModbusMessage msg = new ModbusMessage();
+
+	ModbusRTUTransport transport = new ModbusRTUTransport(new Line(vendor), null, 0);
+	transport.setReceiveMode(ModbusRTUTransport.RECEIVE_REQUESTS);
+
+	assertTrue(transport.receiveFrame(msg));
+	assertEquals(5, msg.length);
+    }
+
+    // Build a frame with its CRC, low byte first
+    static byte[] frame(int... body) {
+	byte[] frame = Arrays.copyOf(bytes(body), body.length + 2);
+	int crc = ModbusCRC16.calculate(frame, 0, body.length);
+
+	frame[body.length] = (byte) crc;
+	frame[body.length+1] = (byte) (crc >>> 8);
+	return frame;
+    }
+
+    static byte[] concat(byte[] a, byte[] b) {
+	byte[] buff = Arrays.copyOf(a, a.length + b.length);
+
+	System.arraycopy(b, 0, buff, a.length, b.length);
+	return buff;
+    }
+
+    static ModbusMessage message(byte[] frame, int length) {
+	ModbusMessage msg = new ModbusMessage();
+
+	System.arraycopy(frame, 0, msg.buff, 0, length);
+	msg.length = length;
+	return msg;
+    }
+
+    static byte[] slice(byte[] buff, int from, int to) {
+	return Arrays.copyOfRange(buff, from, to);
+    }
+
+    /**
+     * A serial line that delivers each chunk with a single read, and
+     * goes quiet for the frame break time wherever a chunk is null, or
+     * once all the chunks have been read before the stream closes.
+     */
+    static class Line extends InputStream {
+
+	private byte[][] chunks;
+	private int next = 0;
+	private boolean quiet = false;
+
+	Line(byte[]... chunks) {
+	    this.chunks = chunks;
+	}
+
+	public int read(byte[] buff, int offset, int length) throws IOException {
+	    if (next == chunks.length) {
+		if (!quiet) {
+		    quiet = true;
+		    throw new InterruptedIOException("quiet");
+		}
+		return -1;
+	    }
+	    byte[] chunk = chunks[next++];
+	    if (chunk == null) {
+		throw new InterruptedIOException("quiet");
+	    }
+	    System.arraycopy(chunk, 0, buff, offset, Math.min(length, chunk.length));
+	    if (length < chunk.length) {
+		chunks[--next] = slice(chunk, length, chunk.length);
+	    }
+	    return Math.min(length, chunk.length);
+	}
+
+	public int read() throws IOException {
+	    byte[] b = new byte[1];
+
+	    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+	}
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * ModbusReadPlannerTest.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Tests of the merging of register ranges into requests by
+ * ModbusReadPlanner, and of scattering the results back into the
+ * ranges.
+ */
+public class ModbusReadPlannerTest {
+
+    private static final byte HOLDING = Modbus.READ_MULTIPLE_REGISTERS;
+    private static final byte INPUT = Modbus.READ_INPUT_REGISTERS;
+
+    @Test
+    public void testOverlappingAndAdjacentMerged() {
+	ModbusReadPlanner planner = new ModbusReadPlanner(0);
+
+	planner.add(1, HOLDING, 12, 10);
+	planner.add(1, HOLDING, 0, 10);
+	planner.add(1, HOLDING, 10, 5);
+
+	ModbusTransaction[] transactions = planner.getTransactions();
+	assertEquals(1, transactions.length);
+	assertRequest(transactions[0], 1, HOLDING, 0, 22);
+    }
+
+    @Test
+    public void testGapFill() {
+	ModbusReadPlanner planner = new ModbusReadPlanner(4);
+
+	// A gap of 4 registers is filled
+	planner.add(1, HOLDING, 0, 10);
+	planner.add(1, HOLDING, 14, 6);
+	assertEquals(1, planner.getTransactions().length);
+	assertRequest(planner.getTransactions()[0], 1, HOLDING, 0, 20);
+
+	// But not one of 5
+	planner.setGapFill(3);
+	assertEquals(2, planner.getTransactions().length);
+	assertRequest(planner.getTransactions()[0], 1, HOLDING, 0, 10);
+	assertRequest(planner.getTransactions()[1], 1, HOLDING, 14, 6);
+    }
+
+    @Test
+    public void testUnitsAndFunctionsKeptApart() {
+	ModbusReadPlanner planner = new ModbusReadPlanner(10);
+
+	planner.add(2, HOLDING, 5, 5);
+	planner.add(1, INPUT, 0, 5);
+	planner.add(1, HOLDING, 0, 5);
+
+	ModbusTransaction[] transactions = planner.getTransactions();
+	assertEquals(3, transactions.length);
+	assertRequest(transactions[0], 1, HOLDING, 0, 5);
+	assertRequest(transactions[1], 1, INPUT, 0, 5);
+	assertRequest(transactions[2], 2, HOLDING, 5, 5);
+    }
+
+    @Test
+    public void testSplitAtMaxLength() {
+	ModbusReadPlanner planner = new ModbusReadPlanner(0);
+
+	planner.setMaxLength(10);
+	planner.add(1, HOLDING, 100, 25);
+
+	ModbusTransaction[] transactions = planner.getTransactions();
+	assertEquals(3, transactions.length);
+	assertRequest(transactions[0], 1, HOLDING, 100, 10);
+	assertRequest(transactions[1], 1, HOLDING, 110, 10);
+	assertRequest(transactions[2], 1, HOLDING, 120, 5);
+    }
+
+    @Test
+    public void testLongestRequest() {
+	ModbusReadPlanner planner = new ModbusReadPlanner(0);
+
+	planner.add(1, HOLDING, 0, Modbus.MAX_READ_REGISTERS + 1);
+
+	ModbusTransaction[] transactions = planner.getTransactions();
+	assertEquals(2, transactions.length);
+	assertRequest(transactions[0], 1, HOLDING, 0, Modbus.MAX_READ_REGISTERS);
+	assertRequest(transactions[1], 1, HOLDING, Modbus.MAX_READ_REGISTERS, 1);
+    }
+
+    @Test
+    public void testExecuteScatters() throws IOException {
+	ModbusReadPlanner planner = new ModbusReadPlanner(2);
+	ModbusReadPlanner.Range a, b, c;
+
+	planner.setMaxLength(8);
+	a = planner.add(1, HOLDING, 3, 4);
+	b = planner.add(1, HOLDING, 5, 10);
+	c = planner.add(1, HOLDING, 17);
+
+	assertTrue(planner.execute(newMaster(100)));
+	assertValues(a);
+	assertValues(b);
+	assertValues(c);
+    }
+
+    @Test
+    public void testFailedRequestInvalidatesRange() throws IOException {
+	ModbusReadPlanner planner = new ModbusReadPlanner(0);
+	ModbusReadPlanner.Range good, bad;
+
+	good = planner.add(1, HOLDING, 0, 10);
+	bad = planner.add(1, HOLDING, 200, 10);
+
+	assertFalse(planner.execute(newMaster(100)));
+	assertTrue(good.isValid());
+	assertValues(good);
+	assertFalse(bad.isValid());
+    }
+
+    private static void assertRequest(ModbusTransaction transaction, int unitID,
+				      byte function, int reference, int length) {
+	assertEquals(unitID, transaction.getUnitID());
+	assertEquals(function, transaction.getFunction());
+	assertEquals(reference, transaction.getReference());
+	assertEquals(length, transaction.getLength());
+    }
+
+    // The registers of the slave hold three times their reference number
+    private static void assertValues(ModbusReadPlanner.Range range) {
+	assertTrue(range.isValid());
+	for (int i=0; i<range.getLength(); i++) {
+	    assertEquals(3*(range.getReference()+i), range.getValues()[i]);
+	}
+    }
+
+    // A master talking straight to a slave with the given number of
+    // holding registers
+    private static ModbusMaster newMaster(int registers) {
+	final ModbusSlave slave = new ModbusSlave(null, 1);
+	ModbusRegisterBank bank = new ModbusRegisterBank(registers);
+
+	for (int i=0; i<registers; i++) {
+	    bank.setRegister(i, 3*i);
+	}
+	slave.setOutputRegisters(bank);
+
+	return new ModbusMaster(new ModbusTransport() {
+		private ModbusMessage response = new ModbusMessage();
+
+		public boolean sendFrame(ModbusMessage msg) {
+		    return slave.processMessage(msg, response);
+		}
+
+		public boolean receiveFrame(ModbusMessage msg) {
+		    System.arraycopy(response.buff, 0, msg.buff, 0, response.length);
+		    msg.length = response.length;
+		    msg.transID = response.transID;
+		    return true;
+		}
+
+		public void disconnect() {
+		}
+	    });
+    }
+}
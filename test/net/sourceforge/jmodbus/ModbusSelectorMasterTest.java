@@ -0,0 +1,151 @@
+/*
+ * ModbusSelectorMasterTest.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of ModbusSelectorMaster against a ModbusTCPServer, in particular
+ * that every future completes however connections race a shutdown.
+ */
+public class ModbusSelectorMasterTest {
+
+    private ModbusTCPServer server;
+
+    @Before
+    public void setUp() throws IOException {
+	ModbusRegisterBank regs = new ModbusRegisterBank(100);
+
+	for (int i=0; i<100; i++) {
+	    regs.setRegister(i, 5*i);
+	}
+	server = new ModbusTCPServer(0, 1, 2);
+	server.setOutputRegisters(regs);
+	server.start();
+    }
+
+    @After
+    public void tearDown() {
+	server.stop();
+    }
+
+    @Test
+    public void testPipelinedReads() throws Exception {
+	ModbusSelectorMaster engine = new ModbusSelectorMaster(2);
+	List<CompletableFuture<int[]>> futures = new ArrayList<CompletableFuture<int[]>>();
+
+	engine.setWindowSize(8);
+	try {
+	    ModbusAsyncMaster master = engine.connect("localhost", server.getLocalPort());
+	    for (int i=0; i<50; i++) {
+		futures.add(master.readMultipleRegisters(1, i, 3));
+	    }
+	    for (int i=0; i<50; i++) {
+		assertArrayEquals(new int[] { 5*i, 5*i+5, 5*i+10 }, futures.get(i).get(10, TimeUnit.SECONDS));
+	    }
+	}
+	finally {
+	    engine.shutdown();
+	}
+    }
+
+    @Test
+    public void testShutdownRace() throws Exception {
+	for (int round=0; round<50; round++) {
+	    final ModbusSelectorMaster engine = new ModbusSelectorMaster(2);
+	    final List<CompletableFuture<int[]>> futures = new ArrayList<CompletableFuture<int[]>>();
+	    final CountDownLatch start = new CountDownLatch(1);
+	    Thread[] threads = new Thread[4];
+
+	    engine.setTimeout(0);
+	    for (int t=0; t<threads.length; t++) {
+		threads[t] = new Thread(() -> {
+			try {
+			    start.await();
+			    for (int i=0; i<20; i++) {
+				ModbusAsyncMaster master = engine.connect("localhost", server.getLocalPort());
+				CompletableFuture<int[]> future = master.readMultipleRegisters(1, i, 1);
+				synchronized (futures) {
+				    futures.add(future);
+				}
+			    }
+			}
+			catch (IOException ex) {
+			    // shut down before we connected
+			}
+			catch (InterruptedException ex) {
+			    Thread.currentThread().interrupt();
+			}
+		});
+		threads[t].start();
+	    }
+
+	    start.countDown();
+	    Thread.sleep(round % 5);
+	    engine.shutdown();
+	    for (Thread thread : threads) {
+		thread.join(10000);
+	    }
+
+	    // Without a timeout only the shutdown can complete these
+	    synchronized (futures) {
+		for (CompletableFuture<int[]> future : futures) {
+		    try {
+			future.get(10, TimeUnit.SECONDS);
+		    }
+		    catch (java.util.concurrent.ExecutionException ex) {
+			assertTrue(ex.getCause() instanceof IOException);
+		    }
+		}
+	    }
+	}
+    }
+}
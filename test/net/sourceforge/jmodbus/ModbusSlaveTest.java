@@ -0,0 +1,297 @@
+/*
+ * ModbusSlaveTest.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the processing of requests by ModbusSlave.processMessage,
+ * for each of the standard function codes, the units and replacing the
+ * handler of a function code.
+ */
+public class ModbusSlaveTest {
+
+    private ModbusSlave slave;
+    private ModbusRegisterBank inputRegisters;
+    private ModbusRegisterBank outputRegisters;
+    private ModbusCoilBank inputCoils;
+    private ModbusCoilBank outputCoils;
+
+    // The slave at address 1 has ten of everything, the registers
+    // holding their reference number plus 0x100 or 0x200, and the
+    // coils alternating, the input coils starting with one on
+    @Before
+    public void setUp() {
+	inputRegisters = new ModbusRegisterBank(10);
+	outputRegisters = new ModbusRegisterBank(10);
+	inputCoils = new ModbusCoilBank(10);
+	outputCoils = new ModbusCoilBank(10);
+
+	for (int i=0; i<10; i++) {
+	    inputRegisters.setRegister(i, 0x100 + i);
+	    outputRegisters.setRegister(i, 0x200 + i);
+	    inputCoils.setCoil(i, i % 2 == 0);
+	    outputCoils.setCoil(i, i % 2 == 1);
+	}
+
+	slave = new ModbusSlave(null, 1);
+	slave.setInputRegisters(inputRegisters);
+	slave.setOutputRegisters(outputRegisters);
+	slave.setInputCoils(inputCoils);
+	slave.setOutputCoils(outputCoils);
+    }
+
+    @Test
+    public void testReadCoils() {
+	assertResponse(process(1, 0x01, 0, 1, 0, 9), 1, 0x01, 2, 0x55, 0x01);
+	assertResponse(process(1, 0x01, 0, 9, 0, 2), 1, 0x81, 0x02);
+	assertResponse(process(1, 0x01, 0, 0, 0, 0), 1, 0x81, 0x03);
+	assertResponse(process(1, 0x01, 0, 0, 0), 1, 0x81, 0x03);
+    }
+
+    @Test
+    public void testReadInputDiscretes() {
+	assertResponse(process(1, 0x02, 0, 0, 0, 10), 1, 0x02, 2, 0x55, 0x01);
+	assertResponse(process(1, 0x02, 0, 10, 0, 1), 1, 0x82, 0x02);
+	assertResponse(process(1, 0x02, 0, 0, 0x07, 0xD1), 1, 0x82, 0x03);
+    }
+
+    @Test
+    public void testReadMultipleRegisters() {
+	assertResponse(process(1, 0x03, 0, 8, 0, 2), 1, 0x03, 4, 0x02, 0x08, 0x02, 0x09);
+	assertResponse(process(1, 0x03, 0, 8, 0, 3), 1, 0x83, 0x02);
+	assertResponse(process(1, 0x03, 0, 8, 0, 2, 0), 1, 0x83, 0x03);
+    }
+
+    @Test
+    public void testReadInputRegisters() {
+	assertResponse(process(1, 0x04, 0, 0, 0, 1), 1, 0x04, 2, 0x01, 0x00);
+	assertResponse(process(1, 0x04, 0, 10, 0, 1), 1, 0x84, 0x02);
+	assertResponse(process(1, 0x04, 0, 0, 0), 1, 0x84, 0x03);
+    }
+
+    @Test
+    public void testWriteCoil() {
+	assertResponse(process(1, 0x05, 0, 2, 0xFF, 0), 1, 0x05, 0, 2, 0xFF, 0);
+	assertTrue(outputCoils.getCoil(2));
+	assertResponse(process(1, 0x05, 0, 3, 0, 0), 1, 0x05, 0, 3, 0, 0);
+	assertFalse(outputCoils.getCoil(3));
+
+	// Only 0xFF00 and 0x0000 are allowed values
+	assertResponse(process(1, 0x05, 0, 4, 0x12, 0x34), 1, 0x85, 0x03);
+	assertResponse(process(1, 0x05, 0, 10, 0xFF, 0), 1, 0x85, 0x02);
+	assertResponse(process(1, 0x05, 0, 4, 0xFF), 1, 0x85, 0x03);
+    }
+
+    @Test
+    public void testWriteSingleRegister() {
+	assertResponse(process(1, 0x06, 0, 4, 0x12, 0x34), 1, 0x06, 0, 4, 0x12, 0x34);
+	assertEquals(0x1234, outputRegisters.getRegister(4));
+	assertResponse(process(1, 0x06, 0, 10, 0x12, 0x34), 1, 0x86, 0x02);
+    }
+
+    @Test
+    public void testWriteSingleRegisterWrongLength() {
+	assertResponse(process(1, 0x06, 0, 4, 0x12), 1, 0x86, 0x03);
+	assertResponse(process(1, 0x06, 0, 4, 0x12, 0x34, 0x56), 1, 0x86, 0x03);
+	assertEquals(0x204, outputRegisters.getRegister(4));
+    }
+
+    @Test
+    public void testWriteMultipleCoils() {
+	// Set coils 1 to 9 to 0b1_0000_1111
+	assertResponse(process(1, 0x0F, 0, 1, 0, 9, 2, 0x0F, 0x01), 1, 0x0F, 0, 1, 0, 9);
+	for (int i=1; i<10; i++) {
+	    assertEquals(i <= 4 || i == 9, outputCoils.getCoil(i));
+	}
+	assertResponse(process(1, 0x0F, 0, 9, 0, 2, 1, 0x03), 1, 0x8F, 0x02);
+	assertResponse(process(1, 0x0F, 0, 0, 0, 0, 0), 1, 0x8F, 0x03);
+    }
+
+    @Test
+    public void testWriteMultipleCoilsWrongLength() {
+	// Byte count of one for nine coils
+	assertResponse(process(1, 0x0F, 0, 0, 0, 9, 1, 0xFF), 1, 0x8F, 0x03);
+
+	// Byte count right but a data byte missing, then one too many
+	assertResponse(process(1, 0x0F, 0, 0, 0, 9, 2, 0xFF), 1, 0x8F, 0x03);
+	assertResponse(process(1, 0x0F, 0, 0, 0, 8, 1, 0xFF, 0xFF), 1, 0x8F, 0x03);
+
+	// Too short to hold a byte count
+	assertResponse(process(1, 0x0F, 0, 0, 0, 8), 1, 0x8F, 0x03);
+	assertFalse(outputCoils.getCoil(0));
+    }
+
+    @Test
+    public void testWriteMultipleRegisters() {
+	assertResponse(process(1, 0x10, 0, 8, 0, 2, 4, 0xAB, 0xCD, 0x12, 0x34), 1, 0x10, 0, 8, 0, 2);
+	assertEquals(0xABCD, outputRegisters.getRegister(8));
+	assertEquals(0x1234, outputRegisters.getRegister(9));
+	assertResponse(process(1, 0x10, 0, 9, 0, 2, 4, 0xAB, 0xCD, 0x12, 0x34), 1, 0x90, 0x02);
+    }
+
+    @Test
+    public void testWriteMultipleRegistersWrongLength() {
+	// Byte count that does not match the register count
+	assertResponse(process(1, 0x10, 0, 0, 0, 2, 2, 0xAB, 0xCD, 0x12, 0x34), 1, 0x90, 0x03);
+
+	// Data that does not match the register count
+	assertResponse(process(1, 0x10, 0, 0, 0, 2, 4, 0xAB, 0xCD), 1, 0x90, 0x03);
+	assertResponse(process(1, 0x10, 0, 0, 0, 1, 2, 0xAB, 0xCD, 0x12), 1, 0x90, 0x03);
+	assertEquals(0x200, outputRegisters.getRegister(0));
+    }
+
+    @Test
+    public void testMissingBanks() {
+	slave = new ModbusSlave(null, 1);
+
+	assertResponse(process(1, 0x01, 0, 0, 0, 1), 1, 0x81, 0x02);
+	assertResponse(process(1, 0x02, 0, 0, 0, 1), 1, 0x82, 0x02);
+	assertResponse(process(1, 0x03, 0, 0, 0, 1), 1, 0x83, 0x02);
+	assertResponse(process(1, 0x04, 0, 0, 0, 1), 1, 0x84, 0x02);
+	assertResponse(process(1, 0x05, 0, 0, 0xFF, 0), 1, 0x85, 0x02);
+	assertResponse(process(1, 0x06, 0, 0, 0, 1), 1, 0x86, 0x02);
+	assertResponse(process(1, 0x0F, 0, 0, 0, 1, 1, 1), 1, 0x8F, 0x02);
+	assertResponse(process(1, 0x10, 0, 0, 0, 1, 2, 0, 1), 1, 0x90, 0x02);
+    }
+
+    @Test
+    public void testUnknownFunction() {
+	assertResponse(process(1, 0x2B, 0x0E, 0x01, 0x00), 1, 0xAB, 0x01);
+    }
+
+    @Test
+    public void testUnits() {
+	ModbusRegisterBank registers = new ModbusRegisterBank(1);
+
+	registers.setRegister(0, 0x7777);
+
+	// Requests for another unit are ignored
+	assertNull(process(2, 0x03, 0, 0, 0, 1));
+
+	slave.setUnit(2, new ModbusUnit(null, registers, null, null));
+	assertResponse(process(2, 0x03, 0, 0, 0, 1), 2, 0x03, 2, 0x77, 0x77);
+	assertResponse(process(1, 0x03, 0, 0, 0, 1), 1, 0x03, 2, 0x02, 0x00);
+
+	slave.setUnit(2, null);
+	assertNull(process(2, 0x03, 0, 0, 0, 1));
+    }
+
+    @Test
+    public void testDefaultUnit() {
+	ModbusRegisterBank registers = new ModbusRegisterBank(1);
+
+	registers.setRegister(0, 0x5555);
+	slave.setDefaultUnit(new ModbusUnit(null, registers, null, null));
+
+	// Any unit without one of its own falls back to the default
+	assertResponse(process(7, 0x03, 0, 0, 0, 1), 7, 0x03, 2, 0x55, 0x55);
+	assertResponse(process(0xFF, 0x03, 0, 0, 0, 1), 0xFF, 0x03, 2, 0x55, 0x55);
+	assertResponse(process(1, 0x03, 0, 0, 0, 1), 1, 0x03, 2, 0x02, 0x00);
+
+	slave.setDefaultUnit(null);
+	assertNull(process(7, 0x03, 0, 0, 0, 1));
+    }
+
+    @Test
+    public void testReplaceHandler() {
+	final ModbusFunctionHandler standard = slave.getFunctionHandler(Modbus.READ_MULTIPLE_REGISTERS);
+
+	// Refuse reads of register 0, leaving the others to the standard handler
+	slave.setFunctionHandler(Modbus.READ_MULTIPLE_REGISTERS, (unit, request, response) -> {
+		if (request.buff[2] == 0 && request.buff[3] == 0) {
+		    return Modbus.ILLEGAL_DATA_ADDRESS;
+		}
+		return standard.process(unit, request, response);
+	});
+	assertResponse(process(1, 0x03, 0, 0, 0, 1), 1, 0x83, 0x02);
+	assertResponse(process(1, 0x03, 0, 1, 0, 1), 1, 0x03, 2, 0x02, 0x01);
+
+	// And a function code can be dropped altogether
+	slave.setFunctionHandler(Modbus.WRITE_SINGLE_REGISTER, null);
+	assertResponse(process(1, 0x06, 0, 1, 0, 1), 1, 0x86, 0x01);
+	assertEquals(0x201, outputRegisters.getRegister(1));
+    }
+
+    @Test
+    public void testTransactionID() {
+	ModbusMessage request = message(1, 0x03, 0, 0, 0, 1);
+	ModbusMessage response = new ModbusMessage();
+
+	request.transID = 0x4242;
+	assertTrue(slave.processMessage(request, response));
+	assertEquals(0x4242, response.transID);
+
+	request = message(1, 0x07);
+	request.transID = 0x4343;
+	assertTrue(slave.processMessage(request, response));
+	assertEquals(0x4343, response.transID);
+    }
+
+    // Process a request, returning the response or null if the slave
+    // would not answer it
+    private ModbusMessage process(int... bytes) {
+	ModbusMessage response = new ModbusMessage();
+
+	return slave.processMessage(message(bytes), response) ? response : null;
+    }
+
+    private static ModbusMessage message(int... bytes) {
+	ModbusMessage msg = new ModbusMessage();
+
+	for (int i=0; i<bytes.length; i++) {
+	    msg.buff[i] = (byte) bytes[i];
+	}
+	msg.length = bytes.length;
+	return msg;
+    }
+
+    private static void assertResponse(ModbusMessage response, int... bytes) {
+	assertEquals(bytes.length, response.length);
+	for (int i=0; i<bytes.length; i++) {
+	    assertEquals("byte " + i, (byte) bytes[i], response.buff[i]);
+	}
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * ModbusTCPChannelTransportTest.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of ModbusTCPChannelTransport over a connected pair of
+ * SocketChannels, of frames that arrive together or in pieces.
+ */
+public class ModbusTCPChannelTransportTest {
+
+    private SocketChannel local;
+    private SocketChannel peer;
+    private ModbusTCPChannelTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+	ServerSocketChannel server = ServerSocketChannel.open();
+
+	try {
+	    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+	    local = SocketChannel.open(server.getLocalAddress());
+	    peer = server.accept();
+	}
+	finally {
+	    server.close();
+	}
+	transport = new ModbusTCPChannelTransport(local);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+	transport.disconnect();
+	peer.close();
+    }
+
+    @Test
+    public void testNoDelay() throws IOException {
+	assertTrue(local.socket().getTcpNoDelay());
+    }
+
+    @Test
+    public void testSendFrame() throws IOException {
+	ModbusFrame frame = frame(0x1234, 1, 3, 0, 0, 0, 2);
+	ByteBuffer received = ByteBuffer.allocate(12);
+
+	assertTrue(transport.sendFrame(frame));
+	while (received.hasRemaining()) {
+	    peer.read(received);
+	}
+	assertEquals(ByteBuffer.wrap(bytes(0x12, 0x34, 0, 0, 0, 6, 1, 3, 0, 0, 0, 2)), received.flip());
+    }
+
+    @Test
+    public void testTwoFramesInOneRead() throws IOException {
+	ModbusFrame frame = new ModbusFrame(false);
+
+	write(bytes(0, 1, 0, 0, 0, 3, 1, 0x83, 2,
+		    0, 2, 0, 0, 0, 5, 1, 3, 2, 0xAB, 0xCD));
+
+	assertTrue(transport.receiveFrame(frame));
+	assertFrame(frame, 1, 1, 0x83, 2);
+	assertTrue(transport.receiveFrame(frame));
+	assertFrame(frame, 2, 1, 3, 2, 0xAB, 0xCD);
+    }
+
+    @Test
+    public void testHeaderSplitAcrossReads() throws Exception {
+	final ModbusFrame frame = new ModbusFrame(false);
+	Thread writer = new Thread(() -> {
+		try {
+		    write(bytes(0, 7, 0));
+		    Thread.sleep(50);
+		    write(bytes(0, 0, 4, 1, 6));
+		    Thread.sleep(50);
+		    write(bytes(0, 9, 0, 8, 0));
+		}
+		catch (Exception ex) {
+		    // the receive fails instead
+		}
+	});
+
+	writer.start();
+	assertTrue(transport.receiveFrame(frame));
+	assertFrame(frame, 7, 1, 6, 0, 9);
+
+	// The start of the next frame was read along with the last one
+	writer.join();
+	write(bytes(0, 0, 2, 1, 5));
+	assertTrue(transport.receiveFrame(frame));
+	assertFrame(frame, 8, 1, 5);
+    }
+
+    @Test
+    public void testBadHeader() throws IOException {
+	ModbusFrame frame = new ModbusFrame(false);
+
+	write(bytes(0, 1, 0, 1, 0, 2, 1, 3));
+	assertFalse(transport.receiveFrame(frame));
+
+	// The connection is closed as per the Modbus TCP spec
+	assertFalse(local.isOpen());
+	assertEquals(-1, peer.read(ByteBuffer.allocate(1)));
+    }
+
+    @Test
+    public void testBadLength() throws IOException {
+	ModbusFrame frame = new ModbusFrame(false);
+
+	write(bytes(0, 1, 0, 0, 1, 2, 1, 3));
+	assertFalse(transport.receiveFrame(frame));
+	assertFalse(local.isOpen());
+    }
+
+    @Test
+    public void testStreamClosed() throws IOException {
+	ModbusFrame frame = new ModbusFrame(false);
+
+	write(bytes(0, 1, 0, 0, 0, 3, 1));
+	peer.close();
+	assertFalse(transport.receiveFrame(frame));
+    }
+
+    private void write(byte[] bytes) throws IOException {
+	ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+	while (buffer.hasRemaining()) {
+	    peer.write(buffer);
+	}
+    }
+
+    private static ModbusFrame frame(int transID, int... body) {
+	ModbusMessage msg = new ModbusMessage();
+	ModbusFrame frame = new ModbusFrame(false);
+
+	for (int i=0; i<body.length; i++) {
+	    msg.buff[i] = (byte) body[i];
+	}
+	msg.length = body.length;
+	msg.transID = transID;
+	frame.copyFrom(msg);
+	return frame;
+    }
+
+    private static void assertFrame(ModbusFrame frame, int transID, int... body) {
+	assertEquals(transID, frame.getTransID());
+	assertEquals(body.length, frame.getLength());
+	for (int i=0; i<body.length; i++) {
+	    assertEquals("byte " + i, (byte) body[i], frame.get(i));
+	}
+    }
+
+    private static byte[] bytes(int... values) {
+	byte[] bytes = new byte[values.length];
+
+	for (int i=0; i<values.length; i++) {
+	    bytes[i] = (byte) values[i];
+	}
+	return bytes;
+    }
+}
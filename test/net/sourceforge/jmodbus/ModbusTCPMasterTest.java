@@ -0,0 +1,243 @@
+/*
+ * ModbusTCPMasterTest.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the pipelining of transactions by ModbusTCPMaster, against
+ * a slave that answers each batch of requests in reverse order so the
+ * responses can only be matched back by transaction ID.
+ */
+public class ModbusTCPMasterTest {
+
+    private ServerSocket server;
+    private Thread slave;
+    private ModbusTCPMaster master;
+
+    @Before
+    public void setUp() throws IOException {
+	server = new ServerSocket(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+	if (master != null) {
+	    master.disconnect();
+	}
+	server.close();
+	if (slave != null) {
+	    slave.join(5000);
+	}
+    }
+
+    @Test
+    public void testResponsesOutOfOrder() throws Exception {
+	ModbusTransaction[] transactions = new ModbusTransaction[8];
+
+	startSlave(4, false);
+	master = new ModbusTCPMaster("localhost", server.getLocalPort());
+	master.setWindowSize(4);
+
+	for (int i=0; i<transactions.length; i++) {
+	    transactions[i] = ModbusTransaction.readMultipleRegisters(1, 100*i, 3);
+	}
+
+	assertTrue(master.execute(transactions));
+	assertEquals(0, master.getOutstanding());
+	for (int i=0; i<transactions.length; i++) {
+	    assertEquals(ModbusTransaction.COMPLETE, transactions[i].getState());
+	    assertArrayEquals(new int[] { 100*i, 100*i+1, 100*i+2 }, transactions[i].getValues());
+	}
+    }
+
+    @Test
+    public void testTransactionIDsAreDistinct() throws Exception {
+	ModbusTransaction[] transactions = new ModbusTransaction[4];
+
+	startSlave(4, false);
+	master = new ModbusTCPMaster("localhost", server.getLocalPort());
+	master.setWindowSize(4);
+
+	for (int i=0; i<transactions.length; i++) {
+	    transactions[i] = ModbusTransaction.readMultipleRegisters(1, i, 1);
+	}
+	assertTrue(master.execute(transactions));
+
+	for (int i=0; i<transactions.length; i++) {
+	    for (int j=i+1; j<transactions.length; j++) {
+		assertTrue(transactions[i].getTransID() != transactions[j].getTransID());
+	    }
+	}
+    }
+
+    @Test
+    public void testUnknownTransactionIDDiscarded() throws Exception {
+	ModbusTransaction[] transactions = new ModbusTransaction[2];
+
+	startSlave(2, true);
+	master = new ModbusTCPMaster("localhost", server.getLocalPort());
+	master.setWindowSize(2);
+
+	transactions[0] = ModbusTransaction.readMultipleRegisters(1, 10, 2);
+	transactions[1] = ModbusTransaction.readMultipleRegisters(1, 20, 2);
+
+	assertTrue(master.execute(transactions));
+	assertArrayEquals(new int[] { 10, 11 }, transactions[0].getValues());
+	assertArrayEquals(new int[] { 20, 21 }, transactions[1].getValues());
+    }
+
+    @Test
+    public void testConnectionLostFailsBatch() throws Exception {
+	ModbusTransaction[] transactions = new ModbusTransaction[6];
+
+	// The slave takes the first batch and then hangs up
+	slave = new Thread(() -> {
+		try (Socket socket = server.accept()) {
+		    DataInputStream in = new DataInputStream(socket.getInputStream());
+		    for (int i=0; i<2; i++) {
+			readFrame(in, new byte[ModbusTCPTransport.MAX_TRANSACTION_LENGTH]);
+		    }
+		}
+		catch (IOException ex) {
+		    // the test has finished
+		}
+	});
+	slave.start();
+
+	master = new ModbusTCPMaster("localhost", server.getLocalPort());
+	master.setWindowSize(2);
+	for (int i=0; i<transactions.length; i++) {
+	    transactions[i] = ModbusTransaction.readMultipleRegisters(1, i, 1);
+	}
+
+	assertFalse(master.execute(transactions));
+	assertEquals(0, master.getOutstanding());
+	for (int i=0; i<transactions.length; i++) {
+	    assertEquals(ModbusTransaction.FAILED, transactions[i].getState());
+	}
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReadTooLong() {
+	ModbusTransaction.readMultipleRegisters(1, 0, Modbus.MAX_READ_REGISTERS + 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWriteTooLong() {
+	ModbusTransaction.writeMultipleRegisters(1, 0, Modbus.MAX_WRITE_REGISTERS + 1,
+						 new int[Modbus.MAX_WRITE_REGISTERS + 1]);
+    }
+
+    // Start a slave that reads the given number of READ_MULTIPLE_REGISTERS
+    // requests at a time, answering them in reverse order with each
+    // register holding its own reference number.  It may first send a
+    // response to a transaction ID that was never used
+    private void startSlave(final int batch, final boolean stray) {
+	slave = new Thread(() -> {
+		byte[][] requests = new byte[batch][ModbusTCPTransport.MAX_TRANSACTION_LENGTH];
+		byte[] response = new byte[ModbusTCPTransport.MAX_TRANSACTION_LENGTH];
+		boolean first = stray;
+
+		try (Socket socket = server.accept()) {
+		    DataInputStream in = new DataInputStream(socket.getInputStream());
+		    OutputStream out = socket.getOutputStream();
+
+		    while (true) {
+			for (int i=0; i<batch; i++) {
+			    readFrame(in, requests[i]);
+			}
+			if (first) {
+			    out.write(respond(requests[0], 0xBEEF, response), 0, frameLength(response));
+			    first = false;
+			}
+			for (int i=batch-1; i>=0; i--) {
+			    int transID = ModbusTCPTransport.decodeTransID(requests[i], 0);
+			    out.write(respond(requests[i], transID, response), 0, frameLength(response));
+			}
+			out.flush();
+		    }
+		}
+		catch (IOException ex) {
+		    // the master has disconnected
+		}
+	});
+	slave.start();
+    }
+
+    // Read a whole MBAP frame, header and body
+    private static void readFrame(DataInputStream in, byte[] frame) throws IOException {
+	in.readFully(frame, 0, ModbusTCPTransport.HEADER_LENGTH);
+	in.readFully(frame, ModbusTCPTransport.HEADER_LENGTH, ModbusTCPTransport.decodeHeader(frame, 0));
+    }
+
+    // Build the response to a READ_MULTIPLE_REGISTERS request
+    private static byte[] respond(byte[] request, int transID, byte[] response) {
+	int h = ModbusTCPTransport.HEADER_LENGTH;
+	int reference = ((request[h+2] & 0xFF) << 8) | (request[h+3] & 0xFF);
+	int length = ((request[h+4] & 0xFF) << 8) | (request[h+5] & 0xFF);
+
+	response[h+0] = request[h+0];
+	response[h+1] = request[h+1];
+	response[h+2] = (byte) (2*length);
+	for (int i=0; i<length; i++) {
+	    response[h+3+2*i] = (byte) ((reference+i) >> 8);
+	    response[h+4+2*i] = (byte) (reference+i);
+	}
+	ModbusTCPTransport.encodeHeader(response, 0, transID, 3 + 2*length);
+	return response;
+    }
+
+    private static int frameLength(byte[] frame) {
+	return ModbusTCPTransport.HEADER_LENGTH + ModbusTCPTransport.decodeHeader(frame, 0);
+    }
+}
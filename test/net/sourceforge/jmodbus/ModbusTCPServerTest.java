@@ -0,0 +1,241 @@
+/*
+ * ModbusTCPServerTest.java
+ */
+
+/* 
+ * The jModbus project is distrubuted under the following license terms
+ * 
+ * Copyright (c) 2001 by The Java Modbus Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions 
+ * are met:
+ * 
+ *  1.  Redistributions of source code must retain the above copyright 
+ *      notice, this list of conditions and the following disclaimer. 
+ *  2.  Redistributions in binary form must reproduce the above copyright 
+ *      notice, this list of conditions and the following disclaimer in 
+ *      the documentation and/or other materials provided with the 
+ *      distribution. 
+ *  3.  Neither the name of the The Java Modbus Project nor the names of 
+ *      its contributors may be used to endorse or promote products 
+ *      derived from this software without specific prior written 
+ *      permission. 
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS 
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT 
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR 
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE REGENTS OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR 
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY 
+ * OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING 
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.sourceforge.jmodbus;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of ModbusTCPServer at the socket level, of the framing of
+ * requests however they arrive and of closing only the connection
+ * that misbehaves.
+ */
+public class ModbusTCPServerTest {
+
+    private ModbusTCPServer server;
+    private Socket[] sockets = new Socket[0];
+
+    // Registers hold their reference number plus 1000
+    @Before
+    public void setUp() throws IOException {
+	ModbusRegisterBank regs = new ModbusRegisterBank(200);
+
+	for (int i=0; i<200; i++) {
+	    regs.setRegister(i, 1000 + i);
+	}
+	server = new ModbusTCPServer(0, 1, 2);
+	server.setOutputRegisters(regs);
+
+	// Function code 0x41 fails as a bug in a handler would
+	server.setFunctionHandler(0x41, (unit, request, response) -> {
+		throw new IllegalStateException("handler bug");
+	});
+	server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+	for (Socket socket : sockets) {
+	    socket.close();
+	}
+	server.stop();
+    }
+
+    @Test
+    public void testPipelinedRequests() throws IOException {
+	Socket socket = connect();
+
+	for (int i=0; i<50; i++) {
+	    socket.getOutputStream().write(read(i, i, 2));
+	}
+	for (int i=0; i<50; i++) {
+	    assertResponse(socket, i, i, 2);
+	}
+    }
+
+    @Test
+    public void testSplitRequest() throws Exception {
+	Socket socket = connect();
+	byte[] frame = read(7, 10, 3);
+
+	// Split within the header and within the body
+	for (int i=0; i<frame.length; i+=4) {
+	    socket.getOutputStream().write(frame, i, Math.min(4, frame.length - i));
+	    socket.getOutputStream().flush();
+	    Thread.sleep(20);
+	}
+	assertResponse(socket, 7, 10, 3);
+    }
+
+    @Test
+    public void testSeveralRequestsInOneWrite() throws IOException {
+	Socket socket = connect();
+	byte[] frame = read(0, 0, 1);
+	byte[] frames = new byte[5 * frame.length + 5];
+
+	// Five requests and the first few bytes of a sixth
+	for (int i=0; i<6; i++) {
+	    frame = read(i, 20*i, 4);
+	    System.arraycopy(frame, 0, frames, i*frame.length, Math.min(frame.length, frames.length - i*frame.length));
+	}
+	socket.getOutputStream().write(frames);
+	for (int i=0; i<5; i++) {
+	    assertResponse(socket, i, 20*i, 4);
+	}
+
+	socket.getOutputStream().write(frame, 5, frame.length - 5);
+	assertResponse(socket, 5, 100, 4);
+    }
+
+    @Test
+    public void testBadProtocolClosesOnlyThatConnection() throws IOException {
+	Socket good = connect();
+	Socket bad = connect();
+	byte[] frame = read(1, 0, 1);
+
+	frame[3] = 1;
+	bad.getOutputStream().write(frame);
+	assertClosed(bad);
+
+	good.getOutputStream().write(read(2, 5, 1));
+	assertResponse(good, 2, 5, 1);
+	assertResponse(connect(read(3, 6, 1)), 3, 6, 1);
+    }
+
+    @Test
+    public void testFaultClosesOnlyThatConnection() throws IOException {
+	Socket good = connect();
+	Socket bad = connect();
+
+	bad.getOutputStream().write(new byte[] { 0, 1, 0, 0, 0, 2, 1, 0x41 });
+	assertClosed(bad);
+
+	good.getOutputStream().write(read(2, 5, 1));
+	assertResponse(good, 2, 5, 1);
+	assertResponse(connect(read(3, 6, 1)), 3, 6, 1);
+    }
+
+    @Test
+    public void testClientNotReading() throws Exception {
+	final Socket socket = connect();
+	final int count = 2000;
+	Thread writer;
+
+	// Far more response than the buffers hold, so the server must
+	// stop reading requests until the responses are taken
+	writer = new Thread(() -> {
+		try {
+		    for (int i=0; i<count; i++) {
+			socket.getOutputStream().write(read(i, i % 100, 100));
+		    }
+		}
+		catch (IOException ex) {
+		    // the test fails on reading
+		}
+	});
+	writer.start();
+	Thread.sleep(500);
+
+	for (int i=0; i<count; i++) {
+	    assertResponse(socket, i, i % 100, 100);
+	}
+	writer.join();
+    }
+
+    private Socket connect(byte[]... frames) throws IOException {
+	Socket socket = new Socket("localhost", server.getLocalPort());
+	Socket[] all = new Socket[sockets.length + 1];
+
+	System.arraycopy(sockets, 0, all, 0, sockets.length);
+	all[sockets.length] = socket;
+	sockets = all;
+
+	socket.setSoTimeout(10000);
+	for (byte[] frame : frames) {
+	    socket.getOutputStream().write(frame);
+	}
+	return socket;
+    }
+
+    // A READ_MULTIPLE_REGISTERS request to unit 1
+    private static byte[] read(int transID, int ref, int count) {
+	byte[] frame = new byte[ModbusTCPTransport.HEADER_LENGTH + 6];
+
+	ModbusTCPTransport.encodeHeader(frame, 0, transID, 6);
+	frame[6] = 1;
+	frame[7] = Modbus.READ_MULTIPLE_REGISTERS;
+	frame[8] = (byte) (ref >> 8);
+	frame[9] = (byte) ref;
+	frame[10] = (byte) (count >> 8);
+	frame[11] = (byte) count;
+	return frame;
+    }
+
+    private static void assertResponse(Socket socket, int transID, int ref, int count) throws IOException {
+	DataInputStream in = new DataInputStream(socket.getInputStream());
+
+	assertEquals(transID, in.readUnsignedShort());
+	assertEquals(0, in.readUnsignedShort());
+	assertEquals(3 + 2*count, in.readUnsignedShort());
+	assertEquals(1, in.readUnsignedByte());
+	assertEquals(Modbus.READ_MULTIPLE_REGISTERS, in.readByte());
+	assertEquals(2*count, in.readUnsignedByte());
+	for (int i=0; i<count; i++) {
+	    assertEquals(1000 + ref + i, in.readUnsignedShort());
+	}
+    }
+
+    private static void assertClosed(Socket socket) throws IOException {
+	try {
+	    assertEquals(-1, socket.getInputStream().read());
+	}
+	catch (SocketException ex) {
+	    // reset rather than closed cleanly
+	}
+    }
+}